@@ -1,19 +1,88 @@
 package nettyexample;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+
+import nettyexample.server.ChunkedBody;
+import nettyexample.server.Compression;
+import nettyexample.server.Execution;
+import nettyexample.server.Handler;
+import nettyexample.server.Route;
+import nettyexample.server.RouteOptions;
+import nettyexample.server.StreamingHandler;
 import nettyexample.server.WebServer;
 
 public class App {
     public static void main(final String[] args) throws Exception {
-        new WebServer()
+        final WebServer server = new WebServer();
+        final Compression compression = new Compression();
+
+        // Preset dictionary for small JSON responses, built with DictionaryBuilder
+        final Path dictionary = Paths.get("dictionary.bin");
+        if (Files.exists(dictionary)) {
+            compression.dictionary(Files.readAllBytes(dictionary));
+        }
+
+        server
+
+                // gzip or deflate for clients that accept it
+                .compression(compression)
 
                 // Simple GET request
                 .get("/hello", (request, response) -> "Hello world")
 
+                // Constant response, encoded once at registration
+                .get("/health", Handler.constant("OK"))
+
+                // Path parameters
+                .get("/hello/:name", (request, response) -> "Hello " + request.param("name"))
+
                 // Simple POST request
                 .post("/hello", (request, response) -> {
                     return "Hello world: " + request.body();
                 })
 
+                // Blocking handler, run off the event loop
+                .get("/slow", new RouteOptions().execution(Execution.WORKER), (request, response) -> {
+                    Thread.sleep(100);
+                    return "Done sleeping";
+                })
+
+                // Streaming request body, never aggregated in memory
+                .postStreaming("/upload", (request, response) -> new StreamingHandler.BodyConsumer() {
+                    private long length;
+
+                    @Override
+                    public void content(final ByteBuf chunk) {
+                        length += chunk.readableBytes();
+                    }
+
+                    @Override
+                    public Object complete() {
+                        return "Received " + length + " bytes";
+                    }
+                })
+
+                // Chunked response, produced only as fast as the client reads
+                .get("/count", (request, response) -> new ChunkedBody() {
+                    private int i;
+
+                    @Override
+                    public ByteBuf next(final ByteBufAllocator alloc) {
+                        if (i == 100000) {
+                            return null;
+                        }
+                        final ByteBuf buf = alloc.buffer();
+                        ByteBufUtil.writeUtf8(buf, (i++) + "\n");
+                        return buf;
+                    }
+                })
+
                 // Error handling
                 .get("/boom", (request, response) -> {
                     throw new Exception("asdf");
@@ -24,6 +93,29 @@ public static void main(final String[] args) throws Exception {
                     return "What is this? " + request.body();
                 })
 
+                // Route ranking by hit count
+                .get("/admin/routes", (request, response) -> {
+                    final StringBuilder sb = new StringBuilder();
+                    for (final Route route : server.getRouteTable().getRanking()) {
+                        sb.append(route.getHits()).append(' ')
+                                .append(route.getMethod()).append(' ')
+                                .append(route.getPath()).append('\n');
+                    }
+                    sb.append(server.getRouteTable().getRejectedMisses()).append(" rejected misses\n");
+                    return sb;
+                })
+
+                // Compression level, lowered while the event loops are saturated
+                .get("/admin/compression", (request, response) ->
+                        "level " + compression.getLevel() + "\nload " + compression.getLoad() + "\n")
+
+                // The preset dictionary, for clients of the x-deflate-dict coding
+                .get("/admin/dictionary", (request, response) -> {
+                    response.contentType(WebServer.TYPE_OCTET_STREAM);
+                    response.header(Compression.DICTIONARY_ID, String.valueOf(compression.getDictionaryId()));
+                    return compression.getDictionary();
+                })
+
                 // Start the server
                 .start();
     }
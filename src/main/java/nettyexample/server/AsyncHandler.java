@@ -0,0 +1,19 @@
+package nettyexample.server;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The AsyncHandler interface is a handler whose result is completed later,
+ * typically by another thread.
+ *
+ * The handler returns immediately and the event loop moves on.  When the
+ * stage completes, its value is written exactly like the return value of a
+ * Handler; if it completes exceptionally the client receives 500.  The
+ * Request and Response stay valid until the stage completes.
+ */
+@FunctionalInterface
+public interface AsyncHandler {
+
+    CompletionStage<?> handle(Request request, Response response) throws Exception;
+
+}
@@ -0,0 +1,255 @@
+package nettyexample.server;
+
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.FastThreadLocalThread;
+
+/**
+ * The BodyEncoder class compresses a response body, in one piece or as a
+ * stream of chunks, with the gzip or deflate content coding.
+ *
+ * The deflate coding is the zlib format, as HTTP defines it.  The gzip
+ * coding is a raw deflate stream framed by hand with the gzip header and
+ * the CRC-32 trailer.  The dictionary coding is the zlib format with a
+ * preset dictionary, whose Adler-32 the zlib header carries.
+ *
+ * Encoders are pooled per event loop thread, so that a response does not
+ * pay for a new native deflater and its buffers: acquire() takes one from
+ * the calling thread's pool, and end() resets it and returns it there.
+ * Only FastThreadLocalThreads pool, since their thread locals are removed
+ * when the thread exits, which is what frees the pooled deflaters.  On
+ * any other thread, such as a worker or a virtual thread, and for an
+ * encoder ended on a different thread than the one that acquired it, the
+ * deflater is created and freed per response instead.  Instances are not
+ * thread safe, and must be ended exactly once.
+ */
+final class BodyEncoder {
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 4;
+    private static final FastThreadLocal<Pool> POOL = new FastThreadLocal<Pool>() {
+        @Override
+        protected Pool initialValue() {
+            return new Pool();
+        }
+
+        @Override
+        protected void onRemoval(final Pool pool) {
+            pool.clear();
+        }
+    };
+
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] input;
+    private final byte[] buffer;
+    private Thread owner;
+    private boolean started;
+
+
+    /**
+     * Creates a new BodyEncoder.
+     *
+     * @param gzip True for the raw deflate stream of the gzip coding.
+     */
+    private BodyEncoder(final boolean gzip) {
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+        this.crc = gzip ? new CRC32() : null;
+        this.input = new byte[BUFFER_SIZE];
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+
+    /**
+     * Returns an encoder from the calling thread's pool, or a new one if
+     * the pool is empty or the thread is not an event loop.
+     *
+     * @param coding The content coding, GZIP, DEFLATE or DICTIONARY.
+     * @param level The compression level, 1 to 9.
+     * @param dictionary The preset dictionary for the DICTIONARY coding, or null.
+     * @return The encoder, which must be ended.
+     */
+    static BodyEncoder acquire(final ContentCoding coding, final int level, final byte[] dictionary) {
+        final boolean gzip = coding == ContentCoding.GZIP;
+        final Thread thread = Thread.currentThread();
+        final boolean pooled = thread instanceof FastThreadLocalThread;
+        BodyEncoder encoder = pooled ? POOL.get().poll(gzip) : null;
+        if (encoder == null) {
+            encoder = new BodyEncoder(gzip);
+        }
+        encoder.owner = pooled ? thread : null;
+        encoder.deflater.setLevel(level);
+        if (coding == ContentCoding.DICTIONARY) {
+            encoder.deflater.setDictionary(dictionary);
+        }
+        return encoder;
+    }
+
+
+    /**
+     * Compresses a complete body.
+     *
+     * @param alloc The allocator for the output.
+     * @param coding The content coding, GZIP, DEFLATE or DICTIONARY.
+     * @param level The compression level, 1 to 9.
+     * @param dictionary The preset dictionary for the DICTIONARY coding, or null.
+     * @param body The body; it is not released.
+     * @return The compressed body.
+     */
+    static ByteBuf encode(
+            final ByteBufAllocator alloc,
+            final ContentCoding coding,
+            final int level,
+            final byte[] dictionary,
+            final ByteBuf body) {
+
+        final BodyEncoder encoder = acquire(coding, level, dictionary);
+        try {
+            return encoder.encode(alloc, body, true);
+        } finally {
+            encoder.end();
+        }
+    }
+
+
+    /**
+     * Compresses the next piece of a body.
+     *
+     * Every piece but the last is sync flushed, so the client can decode
+     * everything written so far without waiting for the rest of the stream.
+     *
+     * @param alloc The allocator for the output.
+     * @param in The input; it is not released.
+     * @param last True if this is the end of the body.
+     * @return The compressed bytes, possibly empty.
+     */
+    ByteBuf encode(final ByteBufAllocator alloc, final ByteBuf in, final boolean last) {
+        final int length = in.readableBytes();
+        final ByteBuf out = alloc.buffer(Math.max(64, length / 2 + 32));
+
+        if (!started) {
+            started = true;
+            if (crc != null) {
+                out.writeBytes(GZIP_HEADER);
+            }
+        }
+
+        if (in.hasArray()) {
+            deflate(out, in.array(), in.arrayOffset() + in.readerIndex(), length);
+        } else {
+            // Copy direct input through the pooled array, one slice at a time.
+            for (int done = 0; done < length; ) {
+                final int n = Math.min(input.length, length - done);
+                in.getBytes(in.readerIndex() + done, input, 0, n);
+                deflate(out, input, 0, n);
+                done += n;
+            }
+        }
+
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(out, Deflater.NO_FLUSH);
+            }
+            if (crc != null) {
+                out.writeInt(Integer.reverseBytes((int) crc.getValue()));
+                out.writeInt(Integer.reverseBytes((int) deflater.getBytesRead()));
+            }
+        } else {
+            // A full buffer means the flush may not be complete yet.
+            int n;
+            do {
+                n = drain(out, Deflater.SYNC_FLUSH);
+            } while (n == buffer.length);
+        }
+
+        return out;
+    }
+
+
+    /**
+     * Resets the encoder and returns it to the pool it came from, or frees
+     * the native deflater if it was not pooled, is ended on another
+     * thread, or the pool is full.
+     */
+    void end() {
+        if (owner != Thread.currentThread()) {
+            owner = null;
+            deflater.end();
+            return;
+        }
+        owner = null;
+        deflater.reset();
+        if (crc != null) {
+            crc.reset();
+        }
+        started = false;
+        if (!POOL.get().offer(this)) {
+            deflater.end();
+        }
+    }
+
+
+    /**
+     * Feeds input to the deflater until it has consumed all of it, so that
+     * the array is free to reuse when this returns.
+     */
+    private void deflate(final ByteBuf out, final byte[] array, final int offset, final int length) {
+        if (length == 0) {
+            return;
+        }
+        if (crc != null) {
+            crc.update(array, offset, length);
+        }
+        deflater.setInput(array, offset, length);
+        while (!deflater.needsInput()) {
+            drain(out, Deflater.NO_FLUSH);
+        }
+    }
+
+
+    private int drain(final ByteBuf out, final int flush) {
+        final int n = deflater.deflate(buffer, 0, buffer.length, flush);
+        out.writeBytes(buffer, 0, n);
+        return n;
+    }
+
+
+    /**
+     * The Pool class holds one thread's idle encoders, apart for the gzip
+     * and zlib formats since a deflater cannot switch between them.
+     */
+    private static final class Pool {
+        private final ArrayDeque<BodyEncoder> gzip = new ArrayDeque<BodyEncoder>(MAX_POOLED);
+        private final ArrayDeque<BodyEncoder> zlib = new ArrayDeque<BodyEncoder>(MAX_POOLED);
+
+        BodyEncoder poll(final boolean gzip) {
+            return (gzip ? this.gzip : this.zlib).poll();
+        }
+
+        boolean offer(final BodyEncoder encoder) {
+            final ArrayDeque<BodyEncoder> idle = encoder.crc != null ? gzip : zlib;
+            if (idle.size() >= MAX_POOLED) {
+                return false;
+            }
+            idle.push(encoder);
+            return true;
+        }
+
+        void clear() {
+            for (final BodyEncoder encoder : gzip) {
+                encoder.deflater.end();
+            }
+            for (final BodyEncoder encoder : zlib) {
+                encoder.deflater.end();
+            }
+            gzip.clear();
+            zlib.clear();
+        }
+    }
+}
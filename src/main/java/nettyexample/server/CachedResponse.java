@@ -0,0 +1,171 @@
+package nettyexample.server;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+
+/**
+ * The CachedResponse class holds a rendered response from the
+ * ResponseCache, encoded to bytes apart from the Date header.
+ *
+ * Like a PreEncodedResponse it is split into a head and a tail, and the
+ * ResponseEncoder writes retained duplicates of both around the event
+ * loop's Date line.  Unlike a PreEncodedResponse the bytes live in pooled
+ * off-heap buffers that are freed when the last reference is released:
+ * the cache holds one reference, and each response being written holds
+ * another, so an entry evicted mid-write stays valid until the write
+ * completes.
+ *
+ * An entry is fresh until its time to live passes, then stale until its
+ * stale window passes as well.  A stale entry is still served, while a
+ * single background refresh replaces it.
+ */
+final class CachedResponse extends AbstractReferenceCounted {
+    private final ByteBuf head;
+    private final ByteBuf tail;
+    private final long staleAt;
+    private final long expires;
+    private final AtomicBoolean refreshing;
+    private final HttpHeaders validators;
+
+
+    /**
+     * Encodes a rendered response.
+     *
+     * @param response The response; it is not released.
+     * @param staleAt The System.nanoTime() after which the entry is refreshed.
+     * @param expires The System.nanoTime() after which the entry is dropped.
+     */
+    CachedResponse(final FullHttpResponse response, final long staleAt, final long expires) {
+        this.staleAt = staleAt;
+        this.expires = expires;
+        this.refreshing = new AtomicBoolean();
+        this.validators = ConditionalGet.validators(response.headers());
+
+        final ByteBuf head = PooledByteBufAllocator.DEFAULT.directBuffer();
+        ByteBufUtil.writeAscii(head, "HTTP/1.1 ");
+        ByteBufUtil.writeAscii(head, Integer.toString(response.status().code()));
+        head.writeByte(' ');
+        ByteBufUtil.writeAscii(head, response.status().reasonPhrase());
+        head.writeBytes(PreEncodedResponse.CRLF);
+        for (final Map.Entry<CharSequence, CharSequence> header : response.headers()) {
+            if (!AsciiString.equalsIgnoreCase(header.getKey(), HttpHeaderNames.DATE)) {
+                PreEncodedResponse.writeHeader(head, header.getKey(), header.getValue());
+            }
+        }
+
+        final ByteBuf content = response.content();
+        final ByteBuf tail = PooledByteBufAllocator.DEFAULT.directBuffer(
+                PreEncodedResponse.CRLF.length + content.readableBytes());
+        tail.writeBytes(PreEncodedResponse.CRLF);
+        tail.writeBytes(content, content.readerIndex(), content.readableBytes());
+
+        this.head = head;
+        this.tail = tail;
+    }
+
+
+    /**
+     * Returns the number of bytes the entry occupies.
+     *
+     * @return The size in bytes.
+     */
+    int size() {
+        return head.readableBytes() + tail.readableBytes();
+    }
+
+
+    /**
+     * Returns the headers that a 304 Not Modified response for this entry
+     * repeats, including its ETag and Last-Modified.
+     *
+     * @return The validator headers; they must not be modified.
+     */
+    HttpHeaders validators() {
+        return validators;
+    }
+
+
+    /**
+     * Returns true if the entry has outlived its time to live.
+     *
+     * @param now The current System.nanoTime().
+     * @return True if the entry should be refreshed.
+     */
+    boolean isStale(final long now) {
+        return now - staleAt >= 0;
+    }
+
+
+    /**
+     * Returns true if the entry has outlived its stale window.
+     *
+     * @param now The current System.nanoTime().
+     * @return True if the entry must not be served.
+     */
+    boolean isExpired(final long now) {
+        return now - expires >= 0;
+    }
+
+
+    /**
+     * Claims the refresh of a stale entry.
+     *
+     * @return True if the caller should refresh the entry; false if
+     *         another refresh is already running.
+     */
+    boolean startRefresh() {
+        return refreshing.compareAndSet(false, true);
+    }
+
+
+    /**
+     * Gives up the refresh of an entry after it failed, so that a later
+     * request tries again.
+     */
+    void refreshFailed() {
+        refreshing.set(false);
+    }
+
+
+    /**
+     * Returns a retained duplicate of the status line and headers.
+     *
+     * @return The head buffer.
+     */
+    ByteBuf head() {
+        return head.duplicate().retain();
+    }
+
+
+    /**
+     * Returns a retained duplicate of the blank line and body.
+     *
+     * @return The tail buffer.
+     */
+    ByteBuf tail() {
+        return tail.duplicate().retain();
+    }
+
+
+    @Override
+    public ReferenceCounted touch(final Object hint) {
+        return this;
+    }
+
+
+    @Override
+    protected void deallocate() {
+        head.release();
+        tail.release();
+    }
+}
@@ -0,0 +1,43 @@
+package nettyexample.server;
+
+import java.io.IOException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * The ChunkedBody interface produces a response body piece by piece.
+ *
+ * A handler that returns a ChunkedBody gets a response with chunked
+ * transfer encoding instead of a Content-Length.  The server pulls the next
+ * chunk only while the channel is writable, and resumes when the client has
+ * caught up, so a body of any size is sent with bounded memory per
+ * connection.
+ *
+ * Chunks are pulled on the event loop, so next() should not block for long.
+ */
+@FunctionalInterface
+public interface ChunkedBody extends AutoCloseable {
+
+    /**
+     * Returns the next chunk of the body.  Ownership of the buffer passes
+     * to the server.
+     *
+     * @param alloc The channel's allocator.
+     * @return The next chunk, or null at the end of the body.
+     * @throws Exception on failure; the connection is closed, since the
+     *         response status has already been sent.
+     */
+    ByteBuf next(ByteBufAllocator alloc) throws Exception;
+
+
+    /**
+     * Called once when the body has been written, or when writing stops
+     * early because the connection closed.
+     *
+     * @throws IOException on failure; it is logged and otherwise ignored.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
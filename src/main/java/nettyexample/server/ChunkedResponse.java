@@ -0,0 +1,73 @@
+package nettyexample.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * The ChunkedResponse class is a rendered response whose body is produced
+ * by a ChunkedBody while it is written.
+ */
+final class ChunkedResponse {
+    private final HttpResponse head;
+    private final ChunkedBody body;
+    private ByteBuf first;
+
+
+    /**
+     * Creates a new ChunkedResponse.
+     *
+     * @param head The response status and headers.
+     * @param body The body source.
+     * @param first Content the handler wrote before returning the body, or null.
+     */
+    ChunkedResponse(final HttpResponse head, final ChunkedBody body, final ByteBuf first) {
+        this.head = head;
+        this.body = body;
+        this.first = first;
+    }
+
+
+    /**
+     * Returns the response status and headers.
+     *
+     * @return The response head.
+     */
+    HttpResponse head() {
+        return head;
+    }
+
+
+    /**
+     * Returns the next chunk, starting with any content the handler wrote
+     * to its Response.
+     *
+     * @param alloc The channel's allocator.
+     * @return The next chunk, or null at the end of the body.
+     * @throws Exception if the body fails.
+     */
+    ByteBuf next(final ByteBufAllocator alloc) throws Exception {
+        if (first != null) {
+            final ByteBuf result = first;
+            first = null;
+            return result;
+        }
+        return body.next(alloc);
+    }
+
+
+    /**
+     * Releases the unwritten content and closes the body source.
+     */
+    void close() {
+        if (first != null) {
+            first.release();
+            first = null;
+        }
+        try {
+            body.close();
+        } catch (final Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+}
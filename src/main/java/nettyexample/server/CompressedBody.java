@@ -0,0 +1,119 @@
+package nettyexample.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The CompressedBody class is a ChunkedBody that compresses the chunks of
+ * another response as they are pulled.
+ *
+ * When the body has a variant key, a copy of the compressed output is kept
+ * while it is written, and stored in the Compression cache once the body
+ * ends, so the next request for the same bytes is served without
+ * compressing again.
+ */
+final class CompressedBody implements ChunkedBody {
+    private final ChunkedResponse source;
+    private final BodyEncoder encoder;
+    private final Compression compression;
+    private final ContentCoding coding;
+    private final byte[] dictionary;
+    private Object key;
+    private CompositeByteBuf copy;
+    private boolean finished;
+
+
+    /**
+     * Creates a new CompressedBody.
+     *
+     * @param source The uncompressed response.
+     * @param compression The compression settings and variant cache.
+     * @param coding The content coding, GZIP, DEFLATE or DICTIONARY.
+     * @param level The compression level.
+     * @param dictionary The preset dictionary for the DICTIONARY coding, or null.
+     * @param key The variant key of the body, or null if it is not cacheable.
+     */
+    CompressedBody(
+            final ChunkedResponse source,
+            final Compression compression,
+            final ContentCoding coding,
+            final int level,
+            final byte[] dictionary,
+            final Object key) {
+
+        this.source = source;
+        this.encoder = BodyEncoder.acquire(coding, level, dictionary);
+        this.compression = compression;
+        this.key = key;
+        this.coding = coding;
+        this.dictionary = dictionary;
+    }
+
+
+    @Override
+    public ByteBuf next(final ByteBufAllocator alloc) throws Exception {
+        if (finished) {
+            return null;
+        }
+
+        final ByteBuf chunk = source.next(alloc);
+        final ByteBuf out;
+        if (chunk == null) {
+            finished = true;
+            out = encoder.encode(alloc, Unpooled.EMPTY_BUFFER, true);
+        } else {
+            try {
+                out = encoder.encode(alloc, chunk, false);
+            } finally {
+                chunk.release();
+            }
+        }
+
+        keep(alloc, out);
+        return out;
+    }
+
+
+    @Override
+    public void close() {
+        try {
+            source.close();
+        } finally {
+            encoder.end();
+            if (copy != null) {
+                if (finished) {
+                    compression.store(key, coding, dictionary, copy);
+                }
+                copy.release();
+                copy = null;
+            }
+        }
+    }
+
+
+    /**
+     * Keeps a copy of compressed output for the variant cache, until the
+     * body grows past what the cache would accept.
+     *
+     * @param alloc The channel's allocator.
+     * @param out The compressed output about to be written.
+     */
+    private void keep(final ByteBufAllocator alloc, final ByteBuf out) {
+        if (key == null || !out.isReadable()) {
+            return;
+        }
+        if (copy == null) {
+            copy = alloc.compositeBuffer(Integer.MAX_VALUE);
+        }
+        if (copy.readableBytes() + out.readableBytes() > compression.maxVariantSize()) {
+            key = null;
+            copy.release();
+            copy = null;
+            return;
+        }
+        copy.addComponent(out.duplicate().retain());
+        copy.writerIndex(copy.writerIndex() + out.readableBytes());
+    }
+}
@@ -0,0 +1,502 @@
+package nettyexample.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.AsciiString;
+
+/**
+ * The Compression class holds the response compression settings of a
+ * WebServer.
+ *
+ * A response is compressed with gzip or deflate when the client accepts
+ * one of them, its status is 200, its content type is on the list of
+ * compressible types, and its body is at least the minimum size.  Bodies
+ * of unknown length, such as a ChunkedBody, are compressed as they are
+ * written.
+ *
+ * Constant routes are compressed once per coding and the result is kept
+ * with the route.  Static files are compressed once per version of the
+ * file, and the results are kept in a cache bounded by a byte budget, so
+ * the same bytes are never compressed twice.
+ *
+ * The level of per-request compression adapts to the event loop load:
+ * while the loops are saturated it steps down, as far as not compressing
+ * at all, and it steps back up to the configured level when there is
+ * headroom again.  Cached variants are still served at any level.
+ *
+ * Small responses with the same keys and values barely shrink with plain
+ * gzip.  A preset dictionary, built from sample responses with the
+ * DictionaryBuilder, primes the compressor with those strings.  Clients
+ * that hold the dictionary ask for it with "Accept-Encoding:
+ * x-deflate-dict" and "X-Dictionary-Id: " followed by the id, which is the
+ * hexadecimal Adler-32 of the dictionary, as in the zlib header.
+ */
+public class Compression {
+    public static final AsciiString DICTIONARY_ID = new AsciiString("x-dictionary-id");
+    private static final int DEFAULT_MIN_SIZE = 1024;
+    private static final int DEFAULT_DICTIONARY_MIN_SIZE = 64;
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    private static final int DEFAULT_LEVEL = 6;
+    private static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final double HIGH_LOAD = 0.85;
+    private static final double LOW_LOAD = 0.6;
+    private static final String[] DEFAULT_TYPES = {
+        "text/*",
+        "application/json",
+        "application/javascript",
+        "application/xml",
+        "application/x-ndjson",
+        "application/wasm",
+        "image/svg+xml",
+    };
+
+    private final ContentEncoder[] encoders;
+    private final LinkedHashMap<VariantKey, ByteBuf> variants;
+    private volatile String[] types;
+    private volatile int minSize;
+    private volatile int dictionaryMinSize;
+    private volatile byte[] dictionary;
+    private volatile String dictionaryId;
+    private volatile int maxLevel;
+    private volatile int level;
+    private volatile boolean adaptive;
+    private volatile double load;
+    private long maxBytes;
+    private long bytes;
+
+
+    /**
+     * Creates a new Compression with the default settings.
+     */
+    public Compression() {
+        this.encoders = new ContentEncoder[ContentCoding.values().length];
+        for (final ContentCoding coding : ContentCoding.values()) {
+            encoders[coding.ordinal()] = new ContentEncoder(this, coding);
+        }
+        this.variants = new LinkedHashMap<VariantKey, ByteBuf>(16, 0.75f, true);
+        this.types = DEFAULT_TYPES;
+        this.minSize = DEFAULT_MIN_SIZE;
+        this.dictionaryMinSize = DEFAULT_DICTIONARY_MIN_SIZE;
+        this.maxLevel = DEFAULT_LEVEL;
+        this.level = DEFAULT_LEVEL;
+        this.adaptive = true;
+        this.maxBytes = DEFAULT_CACHE_BYTES;
+    }
+
+
+    /**
+     * Sets the content types to compress, replacing the defaults.
+     *
+     * A type ending in "/*" matches every subtype.  Parameters such as the
+     * charset are ignored when matching.
+     *
+     * @param types The content types.
+     * @return This Compression.
+     */
+    public Compression types(final String... types) {
+        this.types = normalize(Arrays.asList(types));
+        return this;
+    }
+
+
+    /**
+     * Adds content types to compress.
+     *
+     * @param types The content types.
+     * @return This Compression.
+     */
+    public Compression addTypes(final String... types) {
+        final List<String> all = new ArrayList<String>(Arrays.asList(this.types));
+        all.addAll(Arrays.asList(types));
+        this.types = normalize(all);
+        return this;
+    }
+
+
+    /**
+     * Sets the smallest body that is compressed.  Smaller bodies do not
+     * gain enough to pay for the CPU time and the gzip framing.
+     *
+     * @param minSize The minimum body size in bytes.
+     * @return This Compression.
+     */
+    public Compression minSize(final int minSize) {
+        this.minSize = minSize;
+        return this;
+    }
+
+
+    /**
+     * Sets the preset dictionary for the x-deflate-dict coding.
+     *
+     * The dictionary should be set before the server starts.  Only the last
+     * 32KB are used, since deflate cannot refer further back.  Cached
+     * variants compressed with a previous dictionary are dropped.
+     *
+     * @param dictionary The dictionary, or null to disable the coding.
+     * @return This Compression.
+     */
+    public Compression dictionary(final byte[] dictionary) {
+        if (dictionary == null) {
+            this.dictionary = null;
+            this.dictionaryId = null;
+            dropDictionaryVariants();
+            return this;
+        }
+
+        final byte[] bytes = dictionary.length <= MAX_DICTIONARY_SIZE
+                ? dictionary.clone()
+                : Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+        final Adler32 adler = new Adler32();
+        adler.update(bytes);
+        this.dictionary = bytes;
+        this.dictionaryId = Long.toHexString(adler.getValue());
+        dropDictionaryVariants();
+        return this;
+    }
+
+
+    /**
+     * Returns the preset dictionary, for clients to download.
+     *
+     * @return A copy of the dictionary, or null if none is set.
+     */
+    public byte[] getDictionary() {
+        final byte[] dictionary = this.dictionary;
+        return dictionary == null ? null : dictionary.clone();
+    }
+
+
+    /**
+     * Returns the id that clients send in X-Dictionary-Id.
+     *
+     * @return The dictionary id, or null if none is set.
+     */
+    public String getDictionaryId() {
+        return dictionaryId;
+    }
+
+
+    /**
+     * Sets the smallest body that is compressed with the preset dictionary.
+     *
+     * @param minSize The minimum body size in bytes.
+     * @return This Compression.
+     */
+    public Compression dictionaryMinSize(final int minSize) {
+        this.dictionaryMinSize = minSize;
+        return this;
+    }
+
+
+    /**
+     * Returns the deflate level currently used for responses compressed per
+     * request.  This is the configured level unless the server is under
+     * load.
+     *
+     * @return The compression level, 0 if compression is suspended.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+
+    /**
+     * Returns the event loop load last measured by the server.
+     *
+     * @return The busy fraction of the event loops, from 0 to 1.
+     */
+    public double getLoad() {
+        return load;
+    }
+
+
+    /**
+     * Sets the deflate level used for responses compressed per request.
+     * Cached variants are always compressed at the best level, since the
+     * cost is paid once.
+     *
+     * @param level The compression level, 1 to 9.
+     * @return This Compression.
+     */
+    public Compression level(final int level) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 1 and 9: " + level);
+        }
+        this.maxLevel = level;
+        this.level = level;
+        return this;
+    }
+
+
+    /**
+     * Sets whether the level adapts to the event loop load.  When false
+     * the configured level is always used.
+     *
+     * @param adaptive True to lower the level under load.
+     * @return This Compression.
+     */
+    public Compression adaptive(final boolean adaptive) {
+        this.adaptive = adaptive;
+        if (!adaptive) {
+            this.level = maxLevel;
+        }
+        return this;
+    }
+
+
+    /**
+     * Adjusts the level to a new load sample.  Called periodically from the
+     * server's maintenance thread.
+     *
+     * The level moves one step per sample, and only when the load leaves
+     * the band between LOW_LOAD and HIGH_LOAD, so that it does not flap
+     * when the load is near a threshold.
+     *
+     * @param load The busy fraction of the event loops, from 0 to 1.
+     */
+    void adjust(final double load) {
+        this.load = load;
+        if (!adaptive) {
+            return;
+        }
+
+        final int current = level;
+        if (load > HIGH_LOAD && current > 0) {
+            level = current - 1;
+        } else if (load < LOW_LOAD && current < maxLevel) {
+            level = current + 1;
+        }
+    }
+
+
+    /**
+     * Sets the budget of the cache of compressed static files.  A budget
+     * of 0 disables the cache.
+     *
+     * @param maxBytes The total number of compressed bytes to keep.
+     * @return This Compression.
+     */
+    public synchronized Compression cache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+        return this;
+    }
+
+
+    /**
+     * Returns the encoder for a request's Accept-Encoding header.
+     *
+     * @param acceptEncoding The Accept-Encoding header, or null.
+     * @param dictionaryId The X-Dictionary-Id header, or null.
+     * @return The encoder.
+     */
+    ContentEncoder encoder(final CharSequence acceptEncoding, final CharSequence dictionaryId) {
+        final String id = this.dictionaryId;
+        final boolean dictionary = id != null && dictionaryId != null && id.contentEquals(dictionaryId);
+        return encoders[ContentCoding.negotiate(acceptEncoding, dictionary).ordinal()];
+    }
+
+
+    /**
+     * Returns the smallest body that is compressed with a coding.
+     *
+     * @param coding The content coding.
+     * @return The minimum body size in bytes.
+     */
+    int minSize(final ContentCoding coding) {
+        return coding == ContentCoding.DICTIONARY ? dictionaryMinSize : minSize;
+    }
+
+
+    /**
+     * Returns the preset dictionary without copying it.
+     *
+     * @return The dictionary, or null.
+     */
+    byte[] dictionary() {
+        return dictionary;
+    }
+
+
+    /**
+     * Returns the size of the largest variant the cache accepts.
+     *
+     * @return The size in bytes.
+     */
+    synchronized int maxVariantSize() {
+        return (int) Math.min(Integer.MAX_VALUE, maxBytes / 8);
+    }
+
+
+    /**
+     * Returns true if responses of a content type are compressed.
+     *
+     * @param contentType The Content-Type header value, or null.
+     * @return True if the type is compressible.
+     */
+    boolean isCompressible(final CharSequence contentType) {
+        if (contentType == null) {
+            return false;
+        }
+
+        int end = 0;
+        while (end < contentType.length() && contentType.charAt(end) != ';') {
+            end++;
+        }
+        while (end > 0 && contentType.charAt(end - 1) == ' ') {
+            end--;
+        }
+
+        for (final String type : types) {
+            if (type.endsWith("/*")) {
+                if (end >= type.length() - 1 && regionMatches(contentType, type, type.length() - 1)) {
+                    return true;
+                }
+            } else if (end == type.length() && regionMatches(contentType, type, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns a cached variant of a body.
+     *
+     * @param key The variant key of the uncompressed body.
+     * @param coding The content coding.
+     * @param dictionary The preset dictionary the caller would compress
+     *                   with; a DICTIONARY variant made with another one
+     *                   is not returned.
+     * @return A retained duplicate of the compressed body, which the caller
+     *         must release, or null if it is not cached.
+     */
+    synchronized ByteBuf variant(final Object key, final ContentCoding coding, final byte[] dictionary) {
+        final ByteBuf content = variants.get(new VariantKey(key, coding, dictionary));
+        return content == null ? null : content.duplicate().retain();
+    }
+
+
+    /**
+     * Stores a copy of a compressed body in the cache.
+     *
+     * @param key The variant key of the uncompressed body.
+     * @param coding The content coding.
+     * @param dictionary The preset dictionary the body was compressed with.
+     * @param content The compressed body; it is copied and not released.
+     */
+    void store(final Object key, final ContentCoding coding, final byte[] dictionary, final ByteBuf content) {
+        final int size = content.readableBytes();
+        if (size > maxVariantSize()) {
+            return;
+        }
+
+        final ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(size);
+        copy.writeBytes(content, content.readerIndex(), size);
+
+        synchronized (this) {
+            final ByteBuf previous = variants.put(new VariantKey(key, coding, dictionary), copy);
+            if (previous != null) {
+                bytes -= previous.readableBytes();
+                previous.release();
+            }
+            bytes += size;
+            evict();
+        }
+    }
+
+
+    /**
+     * Evicts the least recently used variants until the cache fits its budget.
+     */
+    private void evict() {
+        final Iterator<ByteBuf> it = variants.values().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            final ByteBuf content = it.next();
+            it.remove();
+            bytes -= content.readableBytes();
+            content.release();
+        }
+    }
+
+
+    /**
+     * Drops the cached variants of the dictionary coding, after the
+     * dictionary changed.
+     */
+    private synchronized void dropDictionaryVariants() {
+        final Iterator<Map.Entry<VariantKey, ByteBuf>> it = variants.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<VariantKey, ByteBuf> entry = it.next();
+            if (entry.getKey().coding == ContentCoding.DICTIONARY) {
+                it.remove();
+                bytes -= entry.getValue().readableBytes();
+                entry.getValue().release();
+            }
+        }
+    }
+
+
+    private static String[] normalize(final List<String> types) {
+        final String[] result = new String[types.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = types.get(i).trim().toLowerCase(Locale.ROOT);
+        }
+        return result;
+    }
+
+
+    private static boolean regionMatches(final CharSequence s, final String type, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(s.charAt(i)) != type.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * The VariantKey class identifies a compressed body in the cache.
+     *
+     * A DICTIONARY variant is also keyed on the identity of the dictionary
+     * array, which is replaced whenever the dictionary changes, so a body
+     * compressed with an old dictionary can never be found again, even if
+     * it is stored after the change.
+     */
+    private static final class VariantKey {
+        private final Object key;
+        private final ContentCoding coding;
+        private final byte[] dictionary;
+
+        VariantKey(final Object key, final ContentCoding coding, final byte[] dictionary) {
+            this.key = key;
+            this.coding = coding;
+            this.dictionary = coding == ContentCoding.DICTIONARY ? dictionary : null;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof VariantKey)) {
+                return false;
+            }
+            final VariantKey other = (VariantKey) obj;
+            return coding == other.coding && dictionary == other.dictionary && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return (key.hashCode() * 31 + coding.ordinal()) * 31 + System.identityHashCode(dictionary);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package nettyexample.server;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * The ConditionalGet class computes validators for handler responses and
+ * answers conditional requests with 304 Not Modified.
+ *
+ * A computed ETag is the length and CRC-32 of the uncompressed body.  It
+ * is a strong validator, and the ContentEncoder weakens it for compressed
+ * variants.  If-None-Match is compared weakly, as RFC 7232 requires, and
+ * takes precedence over If-Modified-Since.
+ */
+final class ConditionalGet {
+    private static final AsciiString[] VALIDATOR_HEADERS = {
+        HttpHeaderNames.ETAG,
+        HttpHeaderNames.LAST_MODIFIED,
+        HttpHeaderNames.CACHE_CONTROL,
+        HttpHeaderNames.EXPIRES,
+        HttpHeaderNames.VARY,
+        HttpHeaderNames.CONTENT_LOCATION,
+    };
+
+
+    private ConditionalGet() {
+    }
+
+
+    /**
+     * Computes a strong entity tag for a body.
+     *
+     * @param body The body; its readable bytes are hashed.
+     * @return The quoted entity tag.
+     */
+    static String etag(final ByteBuf body) {
+        final CRC32 crc = new CRC32();
+        if (body.nioBufferCount() == 1) {
+            crc.update(body.nioBuffer());
+        } else {
+            for (final ByteBuffer buffer : body.nioBuffers()) {
+                crc.update(buffer);
+            }
+        }
+        return '"' + Integer.toHexString(body.readableBytes()) + '-' + Long.toHexString(crc.getValue()) + '"';
+    }
+
+
+    /**
+     * Returns true if a conditional request's cached copy is current.
+     *
+     * @param request The request headers.
+     * @param etag The response's entity tag, or null.
+     * @param lastModified The response's Last-Modified header, or null.
+     * @return True if the response should be 304 Not Modified.
+     */
+    static boolean isNotModified(final HttpHeaders request, final CharSequence etag, final CharSequence lastModified) {
+        final CharSequence ifNoneMatch = request.get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return etag != null && StaticFiles.matchesAny(ifNoneMatch.toString(), etag.toString());
+        }
+
+        final CharSequence ifModifiedSince = request.get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null && lastModified != null) {
+            final long since = HttpDate.parse(ifModifiedSince);
+            final long modified = HttpDate.parse(lastModified);
+            return since >= 0 && modified >= 0 && modified <= since;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns true if a request carries a validator.
+     *
+     * @param request The request headers.
+     * @return True if the request is conditional.
+     */
+    static boolean isConditional(final HttpHeaders request) {
+        return request.contains(HttpHeaderNames.IF_NONE_MATCH) || request.contains(HttpHeaderNames.IF_MODIFIED_SINCE);
+    }
+
+
+    /**
+     * Copies the headers that a 304 response repeats from the full response.
+     *
+     * @param headers The full response headers.
+     * @return The validator headers.
+     */
+    static HttpHeaders validators(final HttpHeaders headers) {
+        final HttpHeaders validators = new DefaultHttpHeaders(false);
+        for (final AsciiString name : VALIDATOR_HEADERS) {
+            for (final CharSequence value : headers.getAll(name)) {
+                validators.add(name, value);
+            }
+        }
+        return validators;
+    }
+
+
+    /**
+     * Builds a 304 Not Modified response.
+     *
+     * @param executor The channel's event loop.
+     * @param validators The validator headers of the full response.
+     * @return The response, without a body.
+     */
+    static FullHttpResponse notModified(final EventExecutor executor, final HttpHeaders validators) {
+        final FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.NOT_MODIFIED,
+                Unpooled.EMPTY_BUFFER,
+                false);
+        response.headers().set(HttpHeaderNames.SERVER, WebServer.SERVER_NAME);
+        response.headers().set(HttpHeaderNames.DATE, HttpDate.get(executor));
+        response.headers().setAll(validators);
+        return response;
+    }
+}
@@ -0,0 +1,84 @@
+package nettyexample.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * The ConstantHandler class is a Handler whose response never changes.
+ *
+ * Declaring a route's output immutable with a ConstantHandler lets the
+ * server encode the complete HTTP response once, when the route is
+ * registered, and answer every request with a retained duplicate of it.
+ * This is intended for health checks and canned responses.
+ */
+public final class ConstantHandler implements Handler {
+    private final byte[] content;
+    private final CharSequence contentType;
+
+
+    /**
+     * Creates a new plain text ConstantHandler.
+     *
+     * @param content The response content.
+     */
+    public ConstantHandler(final Object content) {
+        this(content, WebServer.TYPE_PLAIN);
+    }
+
+
+    /**
+     * Creates a new ConstantHandler.
+     *
+     * The content is copied, so later changes to a mutable content object
+     * do not affect the response.
+     *
+     * @param content The response content; a byte[], ByteBuffer, ByteBuf or any other object
+     *                whose toString() is the body.
+     * @param contentType The response content type.
+     */
+    public ConstantHandler(final Object content, final CharSequence contentType) {
+        this.content = toBytes(content);
+        this.contentType = contentType;
+    }
+
+
+    @Override
+    public Object handle(final Request request, final Response response) {
+        response.contentType(contentType);
+        return content;
+    }
+
+
+    /**
+     * Encodes the complete response.
+     *
+     * @return The pre-encoded response.
+     */
+    PreEncodedResponse encode() {
+        return new PreEncodedResponse(HttpResponseStatus.OK, contentType, null, Unpooled.wrappedBuffer(content));
+    }
+
+
+    private static byte[] toBytes(final Object content) {
+        if (content instanceof byte[]) {
+            return ((byte[]) content).clone();
+        }
+        if (content instanceof ByteBuffer) {
+            final ByteBuffer buffer = ((ByteBuffer) content).duplicate();
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+        if (content instanceof ByteBuf) {
+            final ByteBuf buf = (ByteBuf) content;
+            final byte[] bytes = new byte[buf.readableBytes()];
+            buf.getBytes(buf.readerIndex(), bytes);
+            return bytes;
+        }
+        return String.valueOf(content).getBytes(StandardCharsets.UTF_8);
+    }
+}
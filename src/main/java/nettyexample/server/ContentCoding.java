@@ -0,0 +1,187 @@
+package nettyexample.server;
+
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.HttpHeaderValues;
+
+/**
+ * The ContentCoding enum lists the content codings the server can apply
+ * to a response body.
+ *
+ * DICTIONARY is the zlib format compressed with the server's preset
+ * dictionary.  It is not a registered coding: a client opts in by listing
+ * "x-deflate-dict" in Accept-Encoding and naming the dictionary it holds
+ * in an X-Dictionary-Id header.
+ */
+enum ContentCoding {
+    IDENTITY(HttpHeaderValues.IDENTITY),
+    GZIP(HttpHeaderValues.GZIP),
+    DEFLATE(HttpHeaderValues.DEFLATE),
+    DICTIONARY(new AsciiString("x-deflate-dict"));
+
+    private final AsciiString name;
+
+
+    ContentCoding(final AsciiString name) {
+        this.name = name;
+    }
+
+
+    /**
+     * Returns the Content-Encoding token of this coding.
+     *
+     * @return The token.
+     */
+    AsciiString headerValue() {
+        return name;
+    }
+
+
+    /**
+     * Picks the coding for a response from the request's Accept-Encoding
+     * header.  gzip is preferred over deflate when the client accepts both,
+     * and a coding with q=0 is never chosen.
+     *
+     * @param acceptEncoding The Accept-Encoding header, or null.
+     * @return The coding to apply.
+     */
+    static ContentCoding negotiate(final CharSequence acceptEncoding) {
+        return negotiate(acceptEncoding, false);
+    }
+
+
+    /**
+     * Picks the coding for a response from the request's Accept-Encoding
+     * header.  The dictionary coding is preferred when it is allowed, since
+     * it was built for these responses; it is not matched by "*".
+     *
+     * @param acceptEncoding The Accept-Encoding header, or null.
+     * @param dictionary True if the client holds the server's dictionary.
+     * @return The coding to apply.
+     */
+    static ContentCoding negotiate(final CharSequence acceptEncoding, final boolean dictionary) {
+        if (acceptEncoding == null) {
+            return IDENTITY;
+        }
+
+        // -1 means not listed; 0 means refused.
+        int gzip = -1;
+        int deflate = -1;
+        int dict = -1;
+        int any = -1;
+
+        final int length = acceptEncoding.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && acceptEncoding.charAt(end) != ',') {
+                end++;
+            }
+
+            int nameEnd = start;
+            while (nameEnd < end && acceptEncoding.charAt(nameEnd) != ';') {
+                nameEnd++;
+            }
+
+            final int q = parseQuality(acceptEncoding, nameEnd, end);
+            if (matches(acceptEncoding, start, nameEnd, "gzip") || matches(acceptEncoding, start, nameEnd, "x-gzip")) {
+                gzip = q;
+            } else if (matches(acceptEncoding, start, nameEnd, "deflate")) {
+                deflate = q;
+            } else if (matches(acceptEncoding, start, nameEnd, "x-deflate-dict")) {
+                dict = q;
+            } else if (matches(acceptEncoding, start, nameEnd, "*")) {
+                any = q;
+            }
+
+            start = end + 1;
+        }
+
+        if (dictionary && dict > 0) {
+            return DICTIONARY;
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        if (deflate > 0) {
+            return DEFLATE;
+        }
+        return IDENTITY;
+    }
+
+
+    /**
+     * Returns true if a token of a header, ignoring surrounding spaces,
+     * equals a name, ignoring case.
+     *
+     * @param s The header.
+     * @param start The start index of the token.
+     * @param end The end index of the token.
+     * @param name The lower case name.
+     * @return True if the token is the name.
+     */
+    private static boolean matches(final CharSequence s, final int start, final int end, final String name) {
+        int from = start;
+        int to = end;
+        while (from < to && s.charAt(from) == ' ') {
+            from++;
+        }
+        while (to > from && s.charAt(to - 1) == ' ') {
+            to--;
+        }
+        if (to - from != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(s.charAt(from + i)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Parses the q parameter of an Accept-Encoding element.
+     *
+     * @param s The header.
+     * @param start The index of the parameters, after the coding name.
+     * @param end The end index of the element.
+     * @return The quality in thousandths, 1000 if absent.
+     */
+    private static int parseQuality(final CharSequence s, final int start, final int end) {
+        int i = start;
+        while (i < end) {
+            final char c = s.charAt(i);
+            if ((c == 'q' || c == 'Q') && i + 1 < end && s.charAt(i + 1) == '=') {
+                int value = 0;
+                int digits = 0;
+                boolean fraction = false;
+                for (int j = i + 2; j < end; j++) {
+                    final char d = s.charAt(j);
+                    if (d == '.') {
+                        fraction = true;
+                    } else if (d >= '0' && d <= '9') {
+                        if (!fraction) {
+                            value = (d - '0') * 1000;
+                        } else if (digits < 3) {
+                            value += (d - '0') * (digits == 0 ? 100 : digits == 1 ? 10 : 1);
+                            digits++;
+                        }
+                    } else if (d != ' ') {
+                        break;
+                    }
+                }
+                return Math.min(value, 1000);
+            }
+            i++;
+        }
+        return 1000;
+    }
+}
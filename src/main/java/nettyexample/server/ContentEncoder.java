@@ -0,0 +1,295 @@
+package nettyexample.server;
+
+import java.util.zip.Deflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * The ContentEncoder class applies the negotiated content coding of one
+ * request to its rendered response.
+ *
+ * Every response whose type is compressible gets "Vary: Accept-Encoding",
+ * whether or not it is compressed, so that shared caches keep the
+ * variants apart.  A compressed response carries a weak ETag, since its
+ * bytes differ from the uncompressed entity.  There is one instance per
+ * coding, shared by all channels.
+ *
+ * While the Compression level is 0, nothing is compressed per request;
+ * only variants that are already cached are sent compressed.
+ */
+final class ContentEncoder {
+    private final Compression compression;
+    private final ContentCoding coding;
+
+
+    /**
+     * Creates a new ContentEncoder.
+     *
+     * @param compression The compression settings.
+     * @param coding The negotiated content coding.
+     */
+    ContentEncoder(final Compression compression, final ContentCoding coding) {
+        this.compression = compression;
+        this.coding = coding;
+    }
+
+
+    /**
+     * Returns the negotiated content coding.
+     *
+     * @return The content coding.
+     */
+    ContentCoding coding() {
+        return coding;
+    }
+
+
+    /**
+     * Returns true if a body of the given length would be compressed, so
+     * that the caller can render it in a form that allows this.
+     *
+     * @param response The handler's response.
+     * @param length The body length.
+     * @return True if the body would be compressed.
+     */
+    boolean compresses(final Response response, final long length) {
+        return coding != ContentCoding.IDENTITY
+                && compression.getLevel() > 0
+                && isEligible(response)
+                && length >= compression.minSize(coding);
+    }
+
+
+    /**
+     * Encodes a rendered response.
+     *
+     * @param alloc The channel's allocator.
+     * @param response The handler's response.
+     * @param rendered The HTTP response, PreEncodedResponse, ChunkedResponse, or FileResponse.
+     * @return The encoded response, which may be the rendered response itself.
+     */
+    Object encode(final ByteBufAllocator alloc, final Response response, final Object rendered) {
+        if (rendered instanceof PreEncodedResponse) {
+            return encode(alloc, (PreEncodedResponse) rendered);
+        }
+        if (!isEligible(response)) {
+            return rendered;
+        }
+        if (rendered instanceof FullHttpResponse) {
+            return encode(alloc, (FullHttpResponse) rendered, response.variantKey());
+        }
+        if (rendered instanceof ChunkedResponse) {
+            return encode((ChunkedResponse) rendered, response.variantKey());
+        }
+        if (rendered instanceof FileResponse) {
+            vary(((FileResponse) rendered).head().headers());
+        }
+        return rendered;
+    }
+
+
+    /**
+     * Returns the variant of a pre-encoded response for this coding.  The
+     * variant is encoded on first use and kept with the response.
+     *
+     * @param alloc The channel's allocator.
+     * @param response The pre-encoded response.
+     * @return The variant, or the response itself if it is not compressible.
+     */
+    PreEncodedResponse encode(final ByteBufAllocator alloc, final PreEncodedResponse response) {
+        if (response.status().code() != HttpResponseStatus.OK.code()
+                || !compression.isCompressible(response.contentType())) {
+            return response;
+        }
+
+        final ContentCoding target = response.contentLength() < compression.minSize(coding)
+                ? ContentCoding.IDENTITY
+                : coding;
+        final byte[] dictionary = target == ContentCoding.DICTIONARY ? compression.dictionary() : null;
+        PreEncodedResponse variant = response.variant(target);
+        if (variant == null || variant.dictionary() != dictionary) {
+            variant = newVariant(alloc, response, target, dictionary);
+            response.variant(target, variant);
+        }
+        return variant;
+    }
+
+
+    /**
+     * Compresses a complete response.  Bodies with a variant key are
+     * compressed at the best level and cached.
+     *
+     * @param alloc The channel's allocator.
+     * @param full The uncompressed response; released if it is replaced.
+     * @param key The variant key of the body, or null.
+     * @return The encoded response.
+     */
+    private Object encode(final ByteBufAllocator alloc, final FullHttpResponse full, final Object key) {
+        vary(full.headers());
+
+        final int length = full.content().readableBytes();
+        if (coding == ContentCoding.IDENTITY || length < compression.minSize(coding)) {
+            return full;
+        }
+
+        final byte[] dictionary = compression.dictionary();
+        ByteBuf body = key == null ? null : compression.variant(key, coding, dictionary);
+        if (body == null) {
+            final int level = compression.getLevel();
+            if (level == 0) {
+                return full;
+            }
+            body = BodyEncoder.encode(
+                    alloc,
+                    coding,
+                    key == null ? level : Deflater.BEST_COMPRESSION,
+                    dictionary,
+                    full.content());
+            if (body.readableBytes() >= length) {
+                body.release();
+                return full;
+            }
+            if (key != null) {
+                compression.store(key, coding, dictionary, body);
+            }
+        }
+
+        final FullHttpResponse encoded = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, full.status(), body, false);
+        encoded.headers().set(full.headers());
+        setEncoding(encoded.headers(), body.readableBytes());
+        full.release();
+        return encoded;
+    }
+
+
+    /**
+     * Compresses a chunked response as it is written, or replaces it with
+     * a cached variant of its body.
+     *
+     * @param chunked The uncompressed response; closed if it is replaced.
+     * @param key The variant key of the body, or null.
+     * @return The encoded response.
+     */
+    private Object encode(final ChunkedResponse chunked, final Object key) {
+        final HttpHeaders headers = chunked.head().headers();
+        vary(headers);
+
+        if (coding == ContentCoding.IDENTITY) {
+            return chunked;
+        }
+
+        final byte[] dictionary = compression.dictionary();
+        final ByteBuf cached = key == null ? null : compression.variant(key, coding, dictionary);
+        if (cached != null) {
+            chunked.close();
+            final FullHttpResponse encoded = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    chunked.head().status(),
+                    cached,
+                    false);
+            encoded.headers().set(headers);
+            encoded.headers().remove(HttpHeaderNames.TRANSFER_ENCODING);
+            setEncoding(encoded.headers(), cached.readableBytes());
+            return encoded;
+        }
+
+        final int level = compression.getLevel();
+        if (level == 0) {
+            return chunked;
+        }
+
+        setEncoding(headers, -1);
+        return new ChunkedResponse(
+                chunked.head(),
+                new CompressedBody(chunked, compression, coding, level, dictionary, key),
+                null);
+    }
+
+
+    /**
+     * Builds the variant of a pre-encoded response for a coding.  A body
+     * that does not shrink is sent as it is.
+     *
+     * @param alloc The allocator for the compressed body.
+     * @param response The pre-encoded response.
+     * @param target The content coding.
+     * @param dictionary The preset dictionary, or null.
+     * @return The variant.
+     */
+    private PreEncodedResponse newVariant(
+            final ByteBufAllocator alloc,
+            final PreEncodedResponse response,
+            final ContentCoding target,
+            final byte[] dictionary) {
+
+        final HttpHeaders headers = new DefaultHttpHeaders(false);
+        if (response.headers() != null) {
+            headers.set(response.headers());
+        }
+        vary(headers);
+
+        final ByteBuf body = response.body();
+        if (target != ContentCoding.IDENTITY) {
+            final ByteBuf compressed = BodyEncoder.encode(alloc, target, Deflater.BEST_COMPRESSION, dictionary, body);
+            try {
+                if (compressed.readableBytes() < body.readableBytes()) {
+                    headers.set(HttpHeaderNames.CONTENT_ENCODING, target.headerValue());
+                    weakenETag(headers);
+                    return new PreEncodedResponse(response.status(), response.contentType(), headers, compressed, dictionary);
+                }
+            } finally {
+                compressed.release();
+            }
+        }
+        return new PreEncodedResponse(response.status(), response.contentType(), headers, body, dictionary);
+    }
+
+
+    /**
+     * Returns true if a response may be compressed: it is a 200 with a
+     * compressible type that the handler did not encode itself.
+     *
+     * @param response The handler's response.
+     * @return True if the response is eligible.
+     */
+    private boolean isEligible(final Response response) {
+        return response.status().code() == HttpResponseStatus.OK.code()
+                && compression.isCompressible(response.contentType())
+                && !(response.hasHeaders() && response.headers().contains(HttpHeaderNames.CONTENT_ENCODING));
+    }
+
+
+    private void setEncoding(final HttpHeaders headers, final long contentLength) {
+        headers.set(HttpHeaderNames.CONTENT_ENCODING, coding.headerValue());
+        if (contentLength >= 0) {
+            headers.setLong(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+        } else {
+            headers.remove(HttpHeaderNames.CONTENT_LENGTH);
+        }
+        weakenETag(headers);
+    }
+
+
+    private void vary(final HttpHeaders headers) {
+        headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        if (compression.getDictionaryId() != null) {
+            headers.add(HttpHeaderNames.VARY, Compression.DICTIONARY_ID);
+        }
+    }
+
+
+    private static void weakenETag(final HttpHeaders headers) {
+        final CharSequence etag = headers.get(HttpHeaderNames.ETAG);
+        if (etag != null && etag.length() > 0 && etag.charAt(0) == '"') {
+            headers.set(HttpHeaderNames.ETAG, "W/" + etag);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package nettyexample.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * The DictionaryBuilder class builds a preset dictionary for the
+ * x-deflate-dict coding from sampled response bodies.
+ *
+ * Every substring of a few fixed lengths is counted once per sample it
+ * appears in.  A substring is worth the bytes it saves in each response
+ * that contains it, so the substrings are ranked by the number of samples
+ * times their length, and picked greedily until the dictionary is full.
+ * Substrings already contained in the dictionary are skipped.  Deflate
+ * codes nearby matches more cheaply, so the most valuable strings are
+ * placed at the end.
+ *
+ * The tool can also be run from the command line:
+ *
+ *     java nettyexample.server.DictionaryBuilder [-size bytes] output sample...
+ *
+ * Each sample is a file holding one response body, or a directory of them.
+ */
+public class DictionaryBuilder {
+    private static final int DEFAULT_SIZE = 16 * 1024;
+    private static final int[] SEGMENT_LENGTHS = { 6, 12, 24, 48 };
+    private final List<byte[]> samples;
+
+
+    /**
+     * Creates a new DictionaryBuilder.
+     */
+    public DictionaryBuilder() {
+        this.samples = new ArrayList<byte[]>();
+    }
+
+
+    /**
+     * Adds a sample response body.
+     *
+     * @param body The body.
+     * @return This DictionaryBuilder.
+     */
+    public DictionaryBuilder add(final byte[] body) {
+        samples.add(body.clone());
+        return this;
+    }
+
+
+    /**
+     * Adds a sample response body, UTF-8 encoded.
+     *
+     * @param body The body.
+     * @return This DictionaryBuilder.
+     */
+    public DictionaryBuilder add(final CharSequence body) {
+        samples.add(body.toString().getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+
+    /**
+     * Builds the dictionary.
+     *
+     * @param maxSize The largest dictionary size in bytes; deflate uses at most 32KB.
+     * @return The dictionary.
+     */
+    public byte[] build(final int maxSize) {
+        // Bytes are mapped one to one onto chars, so that Strings can key the counts.
+        final Map<String, int[]> counts = new HashMap<String, int[]>();
+        for (final byte[] sample : samples) {
+            final String text = new String(sample, StandardCharsets.ISO_8859_1);
+            final Set<String> seen = new HashSet<String>();
+            for (final int length : SEGMENT_LENGTHS) {
+                for (int i = 0; i + length <= text.length(); i++) {
+                    final String segment = text.substring(i, i + length);
+                    if (seen.add(segment)) {
+                        final int[] count = counts.get(segment);
+                        if (count == null) {
+                            counts.put(segment, new int[] { 1 });
+                        } else {
+                            count[0]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        final List<Map.Entry<String, int[]>> ranked = new ArrayList<Map.Entry<String, int[]>>();
+        for (final Map.Entry<String, int[]> entry : counts.entrySet()) {
+            if (entry.getValue()[0] > 1) {
+                ranked.add(entry);
+            }
+        }
+        ranked.sort((a, b) -> Long.compare(score(b), score(a)));
+
+        final List<String> picked = new ArrayList<String>();
+        final StringBuilder dictionary = new StringBuilder();
+        for (final Map.Entry<String, int[]> entry : ranked) {
+            final String segment = entry.getKey();
+            if (dictionary.length() + segment.length() > maxSize) {
+                continue;
+            }
+            if (dictionary.indexOf(segment) >= 0) {
+                continue;
+            }
+            picked.add(segment);
+            dictionary.append(segment);
+            if (dictionary.length() == maxSize) {
+                break;
+            }
+        }
+
+        // Most valuable last, closest to the data.
+        final StringBuilder ordered = new StringBuilder(dictionary.length());
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            ordered.append(picked.get(i));
+        }
+        return ordered.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+
+    /**
+     * Returns the total compressed size of the samples.
+     *
+     * @param dictionary The preset dictionary, or null for plain deflate.
+     * @return The total size in bytes.
+     */
+    public long compressedSize(final byte[] dictionary) {
+        final byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        for (final byte[] sample : samples) {
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(sample);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    total += deflater.deflate(buffer);
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     * Returns the total size of the samples.
+     *
+     * @return The total size in bytes.
+     */
+    public long size() {
+        long total = 0;
+        for (final byte[] sample : samples) {
+            total += sample.length;
+        }
+        return total;
+    }
+
+
+    private static long score(final Map.Entry<String, int[]> entry) {
+        return (long) entry.getValue()[0] * entry.getKey().length();
+    }
+
+
+    /**
+     * Builds a dictionary from sample files and reports how well it works.
+     *
+     * @param args [-size bytes] output sample...
+     * @throws IOException if a file cannot be read or written.
+     */
+    public static void main(final String[] args) throws IOException {
+        int size = DEFAULT_SIZE;
+        int arg = 0;
+        if (args.length > 1 && args[0].equals("-size")) {
+            size = Integer.parseInt(args[1]);
+            arg = 2;
+        }
+        if (args.length - arg < 2) {
+            System.err.println("Usage: DictionaryBuilder [-size bytes] output sample...");
+            System.exit(1);
+        }
+
+        final Path output = Paths.get(args[arg++]);
+        final DictionaryBuilder builder = new DictionaryBuilder();
+        int count = 0;
+        for (; arg < args.length; arg++) {
+            final Path path = Paths.get(args[arg]);
+            if (Files.isDirectory(path)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                    for (final Path file : files) {
+                        if (Files.isRegularFile(file)) {
+                            builder.add(Files.readAllBytes(file));
+                            count++;
+                        }
+                    }
+                }
+            } else {
+                builder.add(Files.readAllBytes(path));
+                count++;
+            }
+        }
+
+        final byte[] dictionary = builder.build(size);
+        Files.write(output, dictionary);
+
+        System.out.println("Samples:         " + count + " (" + builder.size() + " bytes)");
+        System.out.println("Dictionary:      " + dictionary.length + " bytes");
+        System.out.println("Deflate:         " + builder.compressedSize(null) + " bytes");
+        System.out.println("With dictionary: " + builder.compressedSize(dictionary) + " bytes");
+    }
+}
@@ -0,0 +1,25 @@
+package nettyexample.server;
+
+/**
+ * The Execution enum selects the thread a route's handler runs on.
+ */
+public enum Execution {
+
+    /**
+     * Run the handler directly on the channel's event loop.  This is the
+     * fastest option for handlers that never block.
+     */
+    EVENT_LOOP,
+
+    /**
+     * Run the handler on the server's bounded worker pool.  Requests are
+     * rejected with 503 Service Unavailable when the pool is saturated.
+     */
+    WORKER,
+
+    /**
+     * Run the handler on a new virtual thread per request.  Falls back to
+     * the worker pool on JDKs without virtual threads.
+     */
+    VIRTUAL_THREAD
+}
@@ -0,0 +1,67 @@
+package nettyexample.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * The FileBody class reads a range of a file into pooled buffers, one
+ * chunk at a time.  It is the fallback for files that cannot be sent with a
+ * FileRegion because their bytes must pass through the pipeline.
+ */
+final class FileBody implements ChunkedBody {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private final FileContent content;
+    private final FileChannel channel;
+    private long position;
+    private long remaining;
+
+
+    /**
+     * Creates a new FileBody.
+     *
+     * @param content The file range.
+     */
+    FileBody(final FileContent content) {
+        this.content = content;
+        this.channel = content.file().getChannel();
+        this.position = content.offset();
+        this.remaining = content.length();
+    }
+
+
+    @Override
+    public ByteBuf next(final ByteBufAllocator alloc) throws IOException {
+        if (remaining == 0) {
+            return null;
+        }
+
+        final int size = (int) Math.min(CHUNK_SIZE, remaining);
+        final ByteBuf buf = alloc.directBuffer(size);
+        try {
+            while (buf.writerIndex() < size) {
+                final int read = channel.read(buf.nioBuffer(buf.writerIndex(), size - buf.writerIndex()), position);
+                if (read < 0) {
+                    throw new EOFException("File truncated while being sent");
+                }
+                buf.writerIndex(buf.writerIndex() + read);
+                position += read;
+            }
+        } catch (final IOException ex) {
+            buf.release();
+            throw ex;
+        }
+
+        remaining -= size;
+        return buf;
+    }
+
+
+    @Override
+    public void close() {
+        content.close();
+    }
+}
@@ -0,0 +1,401 @@
+package nettyexample.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * The FileCache class keeps the contents of small, frequently requested
+ * files in pooled off-heap buffers.
+ *
+ * Entries are evicted least recently used first once the cached bytes pass
+ * the budget.  Every directory holding a cached file is watched with a
+ * WatchService, and a change to a file drops its entry, so a hit needs no
+ * file system calls at all.  Hits are handed out as retained duplicates of
+ * the cached buffer; an evicted buffer is freed once the last write that
+ * uses it completes.
+ *
+ * Hits do not lock: entries are found in a ConcurrentHashMap and stamp
+ * their access time, which eviction compares.  Since an entry may be
+ * dropped by another thread while a hit is taken, each entry counts its
+ * own references to the buffer: the cache holds one, a hit holds another
+ * while it retains the buffer, and the buffer is released when the count
+ * reaches zero.  A hit that finds the count at zero is a miss, so it
+ * never touches a buffer that may already be recycled.  Files are read
+ * without the lock as well.  Each invalidation advances a generation counter, and a
+ * load only inserts its entry if no invalidation happened since it began,
+ * so a change that lands while the file is read is never lost.
+ *
+ * The watcher thread runs until close() is called, which the WebServer
+ * does when it stops.
+ */
+final class FileCache {
+    private final long maxBytes;
+    private final int maxFileSize;
+    private final ConcurrentHashMap<Path, Entry> entries;
+    private final Set<Path> watched;
+    private volatile long generation;
+    private long bytes;
+    private WatchService watcher;
+
+
+    /**
+     * Creates a new FileCache.
+     *
+     * @param maxBytes The total number of bytes to keep cached.
+     * @param maxFileSize The size of the largest file to cache.
+     */
+    FileCache(final long maxBytes, final int maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+        this.entries = new ConcurrentHashMap<Path, Entry>();
+        this.watched = ConcurrentHashMap.newKeySet();
+    }
+
+
+    /**
+     * Returns a cached file.
+     *
+     * @param file The normalized absolute file path.
+     * @return The entry with a retained duplicate of its content, which the
+     *         caller must release, or null if the file is not cached or
+     *         was dropped while it was looked up.
+     */
+    Entry get(final Path file) {
+        final Entry entry = entries.get(file);
+        if (entry == null) {
+            return null;
+        }
+        entry.accessed = System.nanoTime();
+        return entry.retain();
+    }
+
+
+    /**
+     * Reads a file into the cache, if it is small enough.
+     *
+     * @param file The normalized absolute file path.
+     * @param attributes The attributes read before the call.
+     * @return The entry with a retained duplicate of its content, which the
+     *         caller must release, or null if the file was not cached.
+     */
+    Entry load(final Path file, final BasicFileAttributes attributes) {
+        final long size = attributes.size();
+        if (size > maxFileSize || size > maxBytes) {
+            return null;
+        }
+
+        // Watch before reading, so a change during the read is not missed.
+        final long start = generation;
+        if (!watch(file.getParent())) {
+            return null;
+        }
+
+        final ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer((int) size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (content.writerIndex() < size) {
+                if (content.writeBytes(channel, (int) size - content.writerIndex()) < 0) {
+                    content.release();
+                    return null;
+                }
+            }
+            // Skip files that changed between the caller's stat and the read.
+            final BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class);
+            if (current.size() != size || !current.lastModifiedTime().equals(attributes.lastModifiedTime())) {
+                content.release();
+                return null;
+            }
+        } catch (final IOException ex) {
+            content.release();
+            return null;
+        }
+
+        final Entry entry = new Entry(file, attributes.lastModifiedTime().toMillis(), content);
+        synchronized (this) {
+            if (generation != start) {
+                // The file, or another one, changed while it was read.
+                content.release();
+                return null;
+            }
+            final Entry previous = entries.put(file, entry);
+            if (previous != null) {
+                bytes -= previous.size();
+                previous.drop();
+            }
+            bytes += size;
+            final Entry result = entry.retain();
+            evict();
+            return result;
+        }
+    }
+
+
+    /**
+     * Drops a file from the cache.
+     *
+     * @param file The file path.
+     */
+    synchronized void invalidate(final Path file) {
+        generation++;
+        final Entry entry = entries.remove(file);
+        if (entry != null) {
+            bytes -= entry.size();
+            entry.drop();
+        }
+    }
+
+
+    /**
+     * Drops every file in a directory from the cache.
+     *
+     * @param directory The directory.
+     */
+    synchronized void invalidateAll(final Path directory) {
+        generation++;
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.file.getParent().equals(directory)) {
+                it.remove();
+                bytes -= entry.size();
+                entry.drop();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of cached bytes.
+     *
+     * @return The cached bytes.
+     */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+
+    /**
+     * Stops the watcher thread and drops every entry.  A later load starts
+     * a new watcher.
+     */
+    void close() {
+        final WatchService service;
+        synchronized (this) {
+            generation++;
+            service = watcher;
+            watcher = null;
+            watched.clear();
+            for (final Entry entry : entries.values()) {
+                entry.drop();
+            }
+            entries.clear();
+            bytes = 0;
+        }
+        if (service != null) {
+            try {
+                service.close();
+            } catch (final IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Evicts the least recently used entries until the cache fits its
+     * budget.  Must be called with the lock held.
+     */
+    private void evict() {
+        while (bytes > maxBytes && !entries.isEmpty()) {
+            Entry oldest = null;
+            for (final Entry entry : entries.values()) {
+                if (oldest == null || entry.accessed - oldest.accessed < 0) {
+                    oldest = entry;
+                }
+            }
+            entries.remove(oldest.file);
+            bytes -= oldest.size();
+            oldest.drop();
+        }
+    }
+
+
+    /**
+     * Registers a directory with the watch service, starting the watcher
+     * thread on first use.
+     *
+     * @param directory The directory.
+     * @return True if changes in the directory will be seen.
+     */
+    private boolean watch(final Path directory) {
+        if (watched.contains(directory)) {
+            return true;
+        }
+
+        final WatchService service = watcher();
+        if (service == null) {
+            return false;
+        }
+        try {
+            // Registering a directory twice returns the same key, so racing
+            // loads need no lock here.
+            directory.register(
+                    service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watched.add(directory);
+            return true;
+        } catch (final IOException | ClosedWatchServiceException ex) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns the watch service, creating it and starting the watcher
+     * thread on first use.
+     *
+     * @return The watch service, or null if it cannot be created.
+     */
+    private synchronized WatchService watcher() {
+        if (watcher == null) {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+            } catch (final IOException ex) {
+                return null;
+            }
+            final WatchService service = watcher;
+            final Thread thread = new Thread(() -> run(service), "web-server-file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return watcher;
+    }
+
+
+    /**
+     * Runs the watcher thread, invalidating entries whose files change,
+     * until the watch service is closed.
+     *
+     * @param service The watch service.
+     */
+    private void run(final WatchService service) {
+        try {
+            while (true) {
+                final WatchKey key = service.take();
+                final Path directory = (Path) key.watchable();
+
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidateAll(directory);
+                    } else {
+                        invalidate(directory.resolve((Path) event.context()));
+                    }
+                }
+
+                if (!key.reset()) {
+                    watched.remove(directory);
+                    invalidateAll(directory);
+                }
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException ex) {
+            // Closed by close(), or the thread was interrupted.
+        }
+    }
+
+
+    /**
+     * The Entry class is a cached file.
+     *
+     * A cached entry owns one reference to its buffer, which it releases
+     * when its own count of references drops to zero.  Entries handed out
+     * by get() and load() are copies that hold a retained duplicate
+     * instead.
+     */
+    static final class Entry {
+        private final Path file;
+        private final long modified;
+        private final ByteBuf content;
+        private final AtomicInteger refs;
+        private volatile long accessed;
+
+
+        private Entry(final Path file, final long modified, final ByteBuf content) {
+            this.file = file;
+            this.modified = modified;
+            this.content = content;
+            this.refs = new AtomicInteger(1);
+            this.accessed = System.nanoTime();
+        }
+
+
+        long size() {
+            return content.readableBytes();
+        }
+
+
+        long modified() {
+            return modified;
+        }
+
+
+        /**
+         * Returns the cached content.  Only valid on an entry returned by
+         * get() or load(), which holds its own reference.
+         *
+         * @return The content.
+         */
+        ByteBuf content() {
+            return content;
+        }
+
+
+        /**
+         * Returns a copy holding a retained duplicate of the content.
+         *
+         * @return The copy, or null if the entry was dropped.
+         */
+        private Entry retain() {
+            int n;
+            do {
+                n = refs.get();
+                if (n == 0) {
+                    return null;
+                }
+            } while (!refs.compareAndSet(n, n + 1));
+            try {
+                return new Entry(file, modified, content.duplicate().retain());
+            } finally {
+                drop();
+            }
+        }
+
+
+        /**
+         * Drops one reference, releasing the buffer with the last one.  The
+         * cache calls this once when it removes the entry.
+         */
+        private void drop() {
+            if (refs.decrementAndGet() == 0) {
+                content.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package nettyexample.server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * The FileContent class is a handler result naming a range of an open file
+ * to send as the response body.
+ *
+ * The server sends it with a FileRegion, which the transport writes with
+ * sendfile, or through a ChunkedBody when the bytes must pass through the
+ * pipeline.  Either way the file is closed once it has been written.
+ */
+final class FileContent {
+    private final RandomAccessFile file;
+    private final long offset;
+    private final long length;
+    private final boolean zeroCopy;
+
+
+    /**
+     * Creates a new FileContent.
+     *
+     * @param file The open file.
+     * @param offset The offset of the first byte to send.
+     * @param length The number of bytes to send.
+     * @param zeroCopy True to send the file with a FileRegion.
+     */
+    FileContent(final RandomAccessFile file, final long offset, final long length, final boolean zeroCopy) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.zeroCopy = zeroCopy;
+    }
+
+
+    RandomAccessFile file() {
+        return file;
+    }
+
+
+    long offset() {
+        return offset;
+    }
+
+
+    long length() {
+        return length;
+    }
+
+
+    boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+
+    /**
+     * Closes the file without sending it.
+     */
+    void close() {
+        try {
+            file.close();
+        } catch (final IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package nettyexample.server;
+
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpResponse;
+
+/**
+ * The FileResponse class is a rendered response whose body is a FileRegion,
+ * written by the transport without copying the file through user space.
+ */
+final class FileResponse {
+    private final HttpResponse head;
+    private final FileRegion region;
+
+
+    /**
+     * Creates a new FileResponse.
+     *
+     * @param head The response status and headers.
+     * @param region The file region; released, and the file closed, once written.
+     */
+    FileResponse(final HttpResponse head, final FileRegion region) {
+        this.head = head;
+        this.region = region;
+    }
+
+
+    HttpResponse head() {
+        return head;
+    }
+
+
+    FileRegion region() {
+        return region;
+    }
+}
@@ -4,4 +4,29 @@ public interface Handler {
 
     Object handle(Request request, Response response) throws Exception;
 
+
+    /**
+     * Returns a handler that always responds with the same plain text
+     * content.  The response is encoded once, when the route is registered.
+     *
+     * @param content The response content.
+     * @return The constant handler.
+     */
+    static Handler constant(final Object content) {
+        return new ConstantHandler(content);
+    }
+
+
+    /**
+     * Returns a handler that always responds with the same content.
+     * The response is encoded once, when the route is registered.
+     *
+     * @param content The response content.
+     * @param contentType The response content type.
+     * @return The constant handler.
+     */
+    static Handler constant(final Object content, final CharSequence contentType) {
+        return new ConstantHandler(content, contentType);
+    }
+
 }
@@ -0,0 +1,133 @@
+package nettyexample.server;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * The HttpDate class caches the value of the Date response header.
+ *
+ * Each event loop owns one HttpDate, which a task scheduled on that loop
+ * reformats once per second.  Responses read the cached AsciiString, or the
+ * cached pre-encoded header line, so no date formatting or time zone work
+ * happens per request.
+ */
+final class HttpDate {
+    private static final DateTimeFormatter FORMATTER =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+    private static final FastThreadLocal<HttpDate> CURRENT = new FastThreadLocal<HttpDate>();
+
+    private AsciiString value;
+    private ByteBuf line;
+
+
+    private HttpDate() {
+        update();
+    }
+
+
+    /**
+     * Returns the current Date header value.
+     *
+     * @param executor The event loop of the calling channel.
+     * @return The formatted date.
+     */
+    static AsciiString get(final EventExecutor executor) {
+        if (!executor.inEventLoop()) {
+            return format();
+        }
+        return current(executor).value;
+    }
+
+
+    /**
+     * Returns the current "date: ...\r\n" header line, encoded.
+     *
+     * @param executor The event loop of the calling channel.
+     * @return A retained duplicate of the encoded header line.
+     */
+    static ByteBuf line(final EventExecutor executor) {
+        if (!executor.inEventLoop()) {
+            return encodeLine(format());
+        }
+        return current(executor).line.duplicate().retain();
+    }
+
+
+    /**
+     * Formats a timestamp as a HTTP date, for headers such as Last-Modified.
+     *
+     * @param millis The time in milliseconds since the epoch.
+     * @return The formatted date.
+     */
+    static String format(final long millis) {
+        return FORMATTER.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+
+    /**
+     * Parses a HTTP date, such as an If-Modified-Since header.
+     *
+     * @param value The header value.
+     * @return The time in milliseconds since the epoch, or -1 if the value is not a valid date.
+     */
+    static long parse(final CharSequence value) {
+        try {
+            return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (final DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+
+    private static HttpDate current(final EventExecutor executor) {
+        HttpDate date = CURRENT.get();
+        if (date == null) {
+            date = new HttpDate();
+            CURRENT.set(date);
+            final long delay = 1000 - System.currentTimeMillis() % 1000;
+            executor.scheduleAtFixedRate(date::update, delay, 1000, TimeUnit.MILLISECONDS);
+        }
+        return date;
+    }
+
+
+    private void update() {
+        final ByteBuf previous = line;
+        value = format();
+        line = encodeLine(value);
+
+        // Writes still in flight hold their own references to the old line.
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+
+    private static ByteBuf encodeLine(final AsciiString value) {
+        final ByteBuf buf = Unpooled.directBuffer(HttpHeaderNames.DATE.length() + value.length() + 4);
+        ByteBufUtil.writeAscii(buf, HttpHeaderNames.DATE);
+        buf.writeByte(':').writeByte(' ');
+        ByteBufUtil.writeAscii(buf, value);
+        buf.writeByte('\r').writeByte('\n');
+        return buf;
+    }
+
+
+    private static AsciiString format() {
+        return new AsciiString(FORMATTER.format(ZonedDateTime.now(ZoneOffset.UTC)));
+    }
+}
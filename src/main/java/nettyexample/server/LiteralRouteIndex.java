@@ -0,0 +1,109 @@
+package nettyexample.server;
+
+import java.util.List;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * The LiteralRouteIndex class is an exact-match hash table for routes
+ * without parameters.
+ *
+ * It is keyed on (method, path) like a HashMap, but hashes and compares the
+ * path range of the request URI in place, so a lookup never has to copy the
+ * path out of a URI that carries a query string.
+ */
+final class LiteralRouteIndex {
+    private final Route[] routes;
+    private final int[] hashes;
+    private final int mask;
+
+
+    /**
+     * Creates a new LiteralRouteIndex.
+     *
+     * @param literalRoutes The routes without parameters.
+     */
+    LiteralRouteIndex(final List<Route> literalRoutes) {
+        int capacity = 2;
+        while (capacity < literalRoutes.size() * 2) {
+            capacity <<= 1;
+        }
+
+        this.routes = new Route[capacity];
+        this.hashes = new int[capacity];
+        this.mask = capacity - 1;
+
+        for (final Route route : literalRoutes) {
+            final String path = route.getPath();
+            final int hash = hash(route.getMethod(), path, path.length());
+            int i = hash & mask;
+            while (routes[i] != null) {
+                i = (i + 1) & mask;
+            }
+            routes[i] = route;
+            hashes[i] = hash;
+        }
+    }
+
+
+    /**
+     * Finds the route for an exact (method, path) pair.
+     *
+     * @param hash The hash of the method and path.
+     * @param method The HTTP method.
+     * @param path The request path.
+     * @param end The end index of the path within the sequence.
+     * @return The route, or null if no literal route matches.
+     */
+    Route find(final int hash, final HttpMethod method, final CharSequence path, final int end) {
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            final Route route = routes[i];
+            if (route == null) {
+                return null;
+            }
+            if (hashes[i] == hash
+                    && route.getMethod().equals(method)
+                    && contentEquals(route.getPath(), path, end)) {
+                return route;
+            }
+        }
+    }
+
+
+    /**
+     * Hashes a (method, path) pair.
+     *
+     * @param method The HTTP method.
+     * @param path The request path.
+     * @param end The end index of the path within the sequence.
+     * @return The hash.
+     */
+    static int hash(final HttpMethod method, final CharSequence path, final int end) {
+        int h = method.hashCode();
+        for (int i = 0; i < end; i++) {
+            h = 31 * h + path.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+
+    /**
+     * Compares a stored path with a range of a request path.
+     *
+     * @param routePath The stored path.
+     * @param path The request path.
+     * @param end The end index of the path within the sequence.
+     * @return True if the paths are equal.
+     */
+    static boolean contentEquals(final String routePath, final CharSequence path, final int end) {
+        if (routePath.length() != end) {
+            return false;
+        }
+        for (int i = 0; i < end; i++) {
+            if (routePath.charAt(i) != path.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
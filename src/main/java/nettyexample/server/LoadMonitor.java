@@ -0,0 +1,145 @@
+package nettyexample.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+/**
+ * The LoadMonitor class measures how busy the event loops are.
+ *
+ * Each sample compares the CPU time the event loop threads used since the
+ * previous sample with the wall clock time that passed.  A thread waiting
+ * in epoll or select uses no CPU, so the ratio is the fraction of time the
+ * loops spent handling requests, from 0 when idle to 1 when saturated.
+ * Samples are taken on the maintenance thread, never on an event loop.
+ */
+final class LoadMonitor {
+    private final int threadCount;
+    private final LongSupplier cpuTime;
+    private final LongSupplier wallTime;
+    private final boolean supported;
+    private long lastCpuTime;
+    private long lastWallTime;
+
+
+    /**
+     * Creates a new LoadMonitor for the threads of an event loop group.
+     *
+     * @param group The event loop group.
+     * @throws InterruptedException on interruption.
+     */
+    LoadMonitor(final EventExecutorGroup group) throws InterruptedException {
+        this(ManagementFactory.getThreadMXBean(), threadIds(group));
+    }
+
+
+    private LoadMonitor(final ThreadMXBean threads, final long[] threadIds) {
+        this(
+                threadIds.length,
+                () -> cpuTime(threads, threadIds),
+                System::nanoTime,
+                threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled());
+    }
+
+
+    /**
+     * Creates a new LoadMonitor over given clocks.
+     *
+     * @param threadCount The number of threads the CPU time is summed over.
+     * @param cpuTime The total CPU time of the threads, in nanoseconds.
+     * @param wallTime The wall clock, in nanoseconds.
+     * @param supported True if the CPU time is meaningful.
+     */
+    LoadMonitor(
+            final int threadCount,
+            final LongSupplier cpuTime,
+            final LongSupplier wallTime,
+            final boolean supported) {
+
+        this.threadCount = threadCount;
+        this.cpuTime = cpuTime;
+        this.wallTime = wallTime;
+        this.supported = supported;
+        this.lastCpuTime = cpuTime.getAsLong();
+        this.lastWallTime = wallTime.getAsLong();
+    }
+
+
+    /**
+     * Returns true if the JVM can measure thread CPU time.
+     *
+     * @return True if samples are meaningful.
+     */
+    boolean isSupported() {
+        return supported;
+    }
+
+
+    /**
+     * Measures the event loop load since the previous sample.
+     *
+     * @return The average busy fraction of the event loops, from 0 to 1.
+     */
+    double sample() {
+        final long cpu = cpuTime.getAsLong();
+        final long wall = wallTime.getAsLong();
+        final long elapsed = (wall - lastWallTime) * threadCount;
+        final double load = elapsed <= 0 ? 0 : (double) (cpu - lastCpuTime) / elapsed;
+
+        lastCpuTime = cpu;
+        lastWallTime = wall;
+        return Math.max(0, Math.min(1, load));
+    }
+
+
+    /**
+     * Returns the ids of the threads of an event loop group.  Asking each
+     * loop for its thread also starts the thread.
+     *
+     * @param group The event loop group.
+     * @return The thread ids, with -1 for a loop that failed to answer.
+     * @throws InterruptedException on interruption.
+     */
+    private static long[] threadIds(final EventExecutorGroup group) throws InterruptedException {
+        final List<Future<Long>> ids = new ArrayList<Future<Long>>();
+        for (final EventExecutor executor : group.children()) {
+            ids.add(executor.submit(() -> Thread.currentThread().getId()));
+        }
+
+        final long[] threadIds = new long[ids.size()];
+        for (int i = 0; i < threadIds.length; i++) {
+            try {
+                threadIds[i] = ids.get(i).get();
+            } catch (final ExecutionException ex) {
+                threadIds[i] = -1;
+            }
+        }
+        return threadIds;
+    }
+
+
+    /**
+     * Returns the total CPU time of some threads.  A thread that has died
+     * counts as zero.
+     *
+     * @param threads The thread management bean.
+     * @param threadIds The thread ids.
+     * @return The CPU time in nanoseconds.
+     */
+    private static long cpuTime(final ThreadMXBean threads, final long[] threadIds) {
+        long total = 0;
+        for (final long id : threadIds) {
+            if (id >= 0) {
+                total += Math.max(0, threads.getThreadCpuTime(id));
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,81 @@
+package nettyexample.server;
+
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * The MissCache class remembers recent (method, path) pairs that matched
+ * no route, so that repeated misses are rejected without walking the
+ * router.
+ *
+ * It is a direct-mapped table of a fixed number of slots: a new miss
+ * simply replaces whatever shared its slot, so the memory used is bounded
+ * no matter how many distinct URLs a scanner sends.  Slots are written
+ * without locking.  Entries are immutable, so a reader sees either the
+ * old or the new entry, and a lost update only costs a router walk.
+ *
+ * A cache belongs to one set of routes: adding or removing a route
+ * publishes a new RouteSnapshot with an empty cache.
+ */
+final class MissCache {
+    private static final int SLOTS = 4096;
+    private final Miss[] misses;
+
+
+    /**
+     * Creates a new, empty MissCache.
+     */
+    MissCache() {
+        this.misses = new Miss[SLOTS];
+    }
+
+
+    /**
+     * Returns true if a path is known to match no route.
+     *
+     * @param hash The hash of the method and path, from LiteralRouteIndex.hash.
+     * @param method The HTTP method.
+     * @param path The request path.
+     * @param end The end index of the path within the sequence.
+     * @return True if the pair is a recorded miss.
+     */
+    boolean contains(final int hash, final HttpMethod method, final CharSequence path, final int end) {
+        final Miss miss = misses[hash & (SLOTS - 1)];
+        return miss != null
+                && miss.hash == hash
+                && miss.method.equals(method)
+                && LiteralRouteIndex.contentEquals(miss.path, path, end);
+    }
+
+
+    /**
+     * Records a path that matched no route.
+     *
+     * @param hash The hash of the method and path, from LiteralRouteIndex.hash.
+     * @param method The HTTP method.
+     * @param path The request path.
+     * @param end The end index of the path within the sequence.
+     */
+    void add(final int hash, final HttpMethod method, final CharSequence path, final int end) {
+        final String copy = path instanceof AsciiString
+                ? ((AsciiString) path).toString(0, end)
+                : path.subSequence(0, end).toString();
+        misses[hash & (SLOTS - 1)] = new Miss(hash, method, copy);
+    }
+
+
+    /**
+     * The Miss class is one recorded miss.
+     */
+    private static final class Miss {
+        private final int hash;
+        private final HttpMethod method;
+        private final String path;
+
+        Miss(final int hash, final HttpMethod method, final String path) {
+            this.hash = hash;
+            this.method = method;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package nettyexample.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.stream.BaseStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * The NdjsonBody class streams the elements of a Stream, Iterator or
+ * Iterable as newline-delimited output, one element per line.
+ *
+ * Elements are pulled lazily: each chunk takes elements until it holds
+ * about CHUNK_SIZE bytes, and the next chunk is only requested once the
+ * channel is writable again.  Elements are converted like handler return
+ * values, so a stream of pre-serialized JSON strings becomes NDJSON.
+ */
+final class NdjsonBody implements ChunkedBody {
+    private static final int CHUNK_SIZE = 8192;
+    private final Iterator<?> elements;
+    private final BaseStream<?, ?> resource;
+
+
+    /**
+     * Creates a new NdjsonBody.
+     *
+     * @param elements The elements.
+     * @param resource The stream to close when done, or null.
+     */
+    private NdjsonBody(final Iterator<?> elements, final BaseStream<?, ?> resource) {
+        this.elements = elements;
+        this.resource = resource;
+    }
+
+
+    /**
+     * Returns a body for a handler result that is a sequence of elements.
+     *
+     * @param obj The handler's return value.
+     * @return The body, or null if the value is not a Stream, Iterator or Iterable.
+     */
+    static NdjsonBody of(final Object obj) {
+        if (obj instanceof BaseStream) {
+            final BaseStream<?, ?> stream = (BaseStream<?, ?>) obj;
+            return new NdjsonBody(stream.iterator(), stream);
+        }
+        if (obj instanceof Iterator) {
+            return new NdjsonBody((Iterator<?>) obj, null);
+        }
+        if (obj instanceof Iterable) {
+            return new NdjsonBody(((Iterable<?>) obj).iterator(), null);
+        }
+        return null;
+    }
+
+
+    @Override
+    public ByteBuf next(final ByteBufAllocator alloc) {
+        if (!elements.hasNext()) {
+            return null;
+        }
+
+        final ByteBuf buf = alloc.buffer(CHUNK_SIZE);
+        try {
+            do {
+                writeElement(buf, elements.next());
+                buf.writeByte('\n');
+            } while (buf.readableBytes() < CHUNK_SIZE && elements.hasNext());
+        } catch (final RuntimeException ex) {
+            buf.release();
+            throw ex;
+        }
+        return buf;
+    }
+
+
+    @Override
+    public void close() {
+        if (resource != null) {
+            resource.close();
+        }
+    }
+
+
+    /**
+     * Appends one element to a chunk.
+     *
+     * @param buf The chunk.
+     * @param element The element.
+     */
+    private static void writeElement(final ByteBuf buf, final Object element) {
+        if (element instanceof CharSequence) {
+            ByteBufUtil.writeUtf8(buf, (CharSequence) element);
+        } else if (element instanceof byte[]) {
+            buf.writeBytes((byte[]) element);
+        } else if (element instanceof ByteBuffer) {
+            buf.writeBytes(((ByteBuffer) element).duplicate());
+        } else if (element instanceof ByteBuf) {
+            final ByteBuf content = (ByteBuf) element;
+            try {
+                buf.writeBytes(content, content.readerIndex(), content.readableBytes());
+            } finally {
+                content.release();
+            }
+        } else {
+            ByteBufUtil.writeUtf8(buf, String.valueOf(element));
+        }
+    }
+}
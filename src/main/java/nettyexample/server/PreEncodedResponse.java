@@ -0,0 +1,241 @@
+package nettyexample.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * The PreEncodedResponse class holds a complete HTTP response that has
+ * already been encoded to bytes, apart from the Date header.
+ *
+ * The response is split into a head (status line and headers) and a tail
+ * (the blank line and the body).  The ResponseEncoder writes retained
+ * duplicates of both with the event loop's cached Date line in between, so
+ * sending one costs a few reference count updates instead of formatting
+ * and allocation.  Instances are immutable and may be shared by any number
+ * of channels.
+ *
+ * Each response also holds its variants for the content codings, which
+ * are encoded on first use.
+ */
+final class PreEncodedResponse {
+    static final byte[] CRLF = { '\r', '\n' };
+
+    private static final HttpResponseStatus[] ERROR_STATUSES = {
+        HttpResponseStatus.BAD_REQUEST,
+        HttpResponseStatus.FORBIDDEN,
+        HttpResponseStatus.NOT_FOUND,
+        HttpResponseStatus.METHOD_NOT_ALLOWED,
+        HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+        HttpResponseStatus.INTERNAL_SERVER_ERROR,
+        HttpResponseStatus.SERVICE_UNAVAILABLE,
+    };
+
+    private static final PreEncodedResponse[] ERRORS = new PreEncodedResponse[600];
+
+    static {
+        for (final HttpResponseStatus status : ERROR_STATUSES) {
+            ERRORS[status.code()] = newError(status);
+        }
+    }
+
+    private final HttpResponseStatus status;
+    private final CharSequence contentType;
+    private final HttpHeaders headers;
+    private final ByteBuf head;
+    private final ByteBuf tail;
+    private final int contentLength;
+    private final byte[] dictionary;
+    private final PreEncodedResponse[] variants;
+
+
+    /**
+     * Encodes a new PreEncodedResponse.
+     *
+     * @param status The response status.
+     * @param contentType The response content type.
+     * @param headers Additional response headers, or null.
+     * @param body The response body; its readable bytes are copied.
+     */
+    PreEncodedResponse(
+            final HttpResponseStatus status,
+            final CharSequence contentType,
+            final HttpHeaders headers,
+            final ByteBuf body) {
+
+        this(status, contentType, headers, body, null);
+    }
+
+
+    /**
+     * Encodes a new PreEncodedResponse that is the variant of another
+     * response for the dictionary coding.
+     *
+     * @param status The response status.
+     * @param contentType The response content type.
+     * @param headers Additional response headers, or null.
+     * @param body The response body; its readable bytes are copied.
+     * @param dictionary The preset dictionary the variant was built for, or null.
+     */
+    PreEncodedResponse(
+            final HttpResponseStatus status,
+            final CharSequence contentType,
+            final HttpHeaders headers,
+            final ByteBuf body,
+            final byte[] dictionary) {
+
+        this.status = status;
+        this.dictionary = dictionary;
+        this.contentType = contentType;
+        this.headers = headers;
+        this.contentLength = body.readableBytes();
+        this.variants = new PreEncodedResponse[ContentCoding.values().length];
+
+        final ByteBuf head = Unpooled.directBuffer();
+        ByteBufUtil.writeAscii(head, "HTTP/1.1 ");
+        ByteBufUtil.writeAscii(head, Integer.toString(status.code()));
+        head.writeByte(' ');
+        ByteBufUtil.writeAscii(head, status.reasonPhrase());
+        head.writeBytes(CRLF);
+        writeHeader(head, HttpHeaderNames.SERVER, WebServer.SERVER_NAME);
+        writeHeader(head, HttpHeaderNames.CONTENT_TYPE, contentType);
+        writeHeader(head, HttpHeaderNames.CONTENT_LENGTH, Integer.toString(contentLength));
+        if (headers != null) {
+            for (final Map.Entry<CharSequence, CharSequence> header : headers) {
+                writeHeader(head, header.getKey(), header.getValue());
+            }
+        }
+
+        final ByteBuf tail = Unpooled.directBuffer(CRLF.length + contentLength);
+        tail.writeBytes(CRLF);
+        tail.writeBytes(body, body.readerIndex(), contentLength);
+
+        this.head = Unpooled.unreleasableBuffer(head);
+        this.tail = Unpooled.unreleasableBuffer(tail);
+    }
+
+
+    /**
+     * Returns the shared response for an error status.
+     *
+     * @param status The error status.
+     * @return The pre-encoded response.
+     */
+    static PreEncodedResponse error(final HttpResponseStatus status) {
+        final int code = status.code();
+        final PreEncodedResponse response = code < ERRORS.length ? ERRORS[code] : null;
+        return response != null ? response : newError(status);
+    }
+
+
+    HttpResponseStatus status() {
+        return status;
+    }
+
+
+    CharSequence contentType() {
+        return contentType;
+    }
+
+
+    /**
+     * Returns the additional response headers.
+     *
+     * @return The headers, or null.
+     */
+    HttpHeaders headers() {
+        return headers;
+    }
+
+
+    int contentLength() {
+        return contentLength;
+    }
+
+
+    /**
+     * Returns the preset dictionary this variant was built for.
+     *
+     * @return The dictionary, or null if it is not a dictionary variant.
+     */
+    byte[] dictionary() {
+        return dictionary;
+    }
+
+
+    /**
+     * Returns the response body.  The buffer is shared and must not be
+     * released or modified.
+     *
+     * @return The body buffer.
+     */
+    ByteBuf body() {
+        return tail.slice(CRLF.length, contentLength);
+    }
+
+
+    /**
+     * Returns the variant of this response for a content coding.
+     *
+     * @param coding The content coding.
+     * @return The variant, or null if it has not been encoded yet.
+     */
+    PreEncodedResponse variant(final ContentCoding coding) {
+        return variants[coding.ordinal()];
+    }
+
+
+    /**
+     * Keeps the variant of this response for a content coding.
+     *
+     * Two threads may race to encode the same variant; either result is
+     * correct, and the final fields of the variant make it safe to publish
+     * without a lock.
+     *
+     * @param coding The content coding.
+     * @param variant The variant.
+     */
+    void variant(final ContentCoding coding, final PreEncodedResponse variant) {
+        variants[coding.ordinal()] = variant;
+    }
+
+
+    /**
+     * Returns a retained duplicate of the status line and headers.
+     *
+     * @return The head buffer.
+     */
+    ByteBuf head() {
+        return head.duplicate().retain();
+    }
+
+
+    /**
+     * Returns a retained duplicate of the blank line and body.
+     *
+     * @return The tail buffer.
+     */
+    ByteBuf tail() {
+        return tail.duplicate().retain();
+    }
+
+
+    private static PreEncodedResponse newError(final HttpResponseStatus status) {
+        final byte[] body = status.reasonPhrase().toString().getBytes(StandardCharsets.UTF_8);
+        return new PreEncodedResponse(status, WebServer.TYPE_PLAIN, null, Unpooled.wrappedBuffer(body));
+    }
+
+
+    static void writeHeader(final ByteBuf buf, final CharSequence name, final CharSequence value) {
+        ByteBufUtil.writeAscii(buf, name);
+        buf.writeByte(':').writeByte(' ');
+        ByteBufUtil.writeUtf8(buf, value);
+        buf.writeBytes(CRLF);
+    }
+}
@@ -1,8 +1,12 @@
 package nettyexample.server;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
 
 /**
  * The Request class provides convenience helpers to the underyling
@@ -10,6 +14,9 @@
  */
 public class Request {
     private final FullHttpRequest request;
+    private final Map<String, String> params;
+    private String path;
+    private QueryStringDecoder query;
 
 
     /**
@@ -18,7 +25,19 @@ public class Request {
      * @param request The Netty HTTP request.
      */
     public Request(final FullHttpRequest request) {
+        this(request, Collections.<String, String>emptyMap());
+    }
+
+
+    /**
+     * Creates a new Request.
+     *
+     * @param request The Netty HTTP request.
+     * @param params The path parameters captured by the route.
+     */
+    public Request(final FullHttpRequest request, final Map<String, String> params) {
         this.request = request;
+        this.params = params;
     }
 
 
@@ -30,4 +49,101 @@ public Request(final FullHttpRequest request) {
     public String body() {
         return request.content().toString(StandardCharsets.UTF_8);
     }
+
+
+    /**
+     * Returns the request URI, including any query string.
+     *
+     * @return The request URI.
+     */
+    public String uri() {
+        return request.uri();
+    }
+
+
+    /**
+     * Returns the first value of a request header.
+     *
+     * @param name The header name.
+     * @return The header value, or null if not present.
+     */
+    public String header(final CharSequence name) {
+        return request.headers().getAndConvert(name);
+    }
+
+
+    /**
+     * Returns the path of the request URI, without the query string.
+     *
+     * @return The request path.
+     */
+    public String path() {
+        if (path == null) {
+            final String uri = request.uri();
+            final int end = RouteTable.pathEnd(uri);
+            path = end == uri.length() ? uri : uri.substring(0, end);
+        }
+        return path;
+    }
+
+
+    /**
+     * Returns the first value of a query string parameter.
+     *
+     * @param name The parameter name.
+     * @return The decoded parameter value, or null if not present.
+     */
+    public String queryParam(final String name) {
+        final List<String> values = queryParams().get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+
+    /**
+     * Returns all values of a query string parameter.
+     *
+     * @param name The parameter name.
+     * @return The decoded parameter values, or an empty list if not present.
+     */
+    public List<String> queryParams(final String name) {
+        final List<String> values = queryParams().get(name);
+        return values == null ? Collections.<String>emptyList() : values;
+    }
+
+
+    /**
+     * Returns all query string parameters.
+     *
+     * The query string is only decoded the first time a parameter is
+     * requested, and the result is cached for the life of the request.
+     *
+     * @return The decoded query string parameters.
+     */
+    public Map<String, List<String>> queryParams() {
+        if (query == null) {
+            query = new QueryStringDecoder(request.uri());
+        }
+        return query.parameters();
+    }
+
+
+    /**
+     * Returns a path parameter captured by the route.
+     *
+     * @param name The parameter name, without the leading ':' or '*'.
+     * @return The parameter value, or null if the route has no such parameter.
+     */
+    public String param(final String name) {
+        return params.get(name);
+    }
+
+
+    /**
+     * Returns all path parameters captured by the route.
+     *
+     * @return The unmodifiable map of path parameters.
+     */
+    public Map<String, String> params() {
+        return params;
+    }
 }
@@ -1,5 +1,350 @@
 package nettyexample.server;
 
+import java.io.OutputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * The Response class lets a handler set the status, headers and body of
+ * the HTTP response.
+ *
+ * The body is encoded directly into a buffer taken from the channel's
+ * allocator, so handlers can build large bodies without intermediate
+ * Strings or byte arrays.
+ */
 public class Response {
+    private final ByteBufAllocator alloc;
+    private HttpResponseStatus status;
+    private CharSequence contentType;
+    private HttpHeaders headers;
+    private ByteBuf content;
+    private Object variantKey;
+    private boolean computeETag;
+
+
+    /**
+     * Creates a new Response.
+     *
+     * @param alloc The allocator for the response body.
+     */
+    public Response(final ByteBufAllocator alloc) {
+        this.alloc = alloc;
+        this.status = HttpResponseStatus.OK;
+    }
+
+
+    /**
+     * Returns the response status.
+     *
+     * @return The response status.
+     */
+    public HttpResponseStatus status() {
+        return status;
+    }
+
+
+    /**
+     * Sets the response status.
+     *
+     * @param status The response status.
+     * @return This Response.
+     */
+    public Response status(final HttpResponseStatus status) {
+        this.status = status;
+        return this;
+    }
+
+
+    /**
+     * Sets the response status.
+     *
+     * @param code The response status code.
+     * @return This Response.
+     */
+    public Response status(final int code) {
+        return status(HttpResponseStatus.valueOf(code));
+    }
+
+
+    /**
+     * Returns the response content type.
+     *
+     * @return The content type, plain text unless the handler set another.
+     */
+    public CharSequence contentType() {
+        return contentType == null ? WebServer.TYPE_PLAIN : contentType;
+    }
+
+
+    /**
+     * Sets the response content type.
+     *
+     * @param contentType The content type.
+     * @return This Response.
+     */
+    public Response contentType(final CharSequence contentType) {
+        this.contentType = contentType;
+        return this;
+    }
+
+
+    /**
+     * Sets a response header, replacing any existing values.
+     *
+     * @param name The header name.
+     * @param value The header value.
+     * @return This Response.
+     */
+    public Response header(final CharSequence name, final CharSequence value) {
+        headers().set(name, value);
+        return this;
+    }
+
+
+    /**
+     * Adds a response header value.
+     *
+     * @param name The header name.
+     * @param value The header value.
+     * @return This Response.
+     */
+    public Response addHeader(final CharSequence name, final CharSequence value) {
+        headers().add(name, value);
+        return this;
+    }
+
+
+    /**
+     * Sets the entity tag of the response, for example a version number
+     * of the resource.  A conditional GET whose If-None-Match names the
+     * tag is answered with 304 Not Modified.
+     *
+     * @param version The opaque tag, without quotes.
+     * @return This Response.
+     */
+    public Response etag(final CharSequence version) {
+        return header(HttpHeaderNames.ETAG, "\"" + version + '"');
+    }
+
+
+    /**
+     * Sets the Last-Modified time of the response.  A conditional GET
+     * whose If-Modified-Since is not earlier is answered with 304 Not
+     * Modified.
+     *
+     * @param millis The time in milliseconds since the epoch.
+     * @return This Response.
+     */
+    public Response lastModified(final long millis) {
+        return header(HttpHeaderNames.LAST_MODIFIED, HttpDate.format(millis));
+    }
+
+
+    /**
+     * Returns the additional response headers.
+     *
+     * Server, Date, Content-Type and Content-Length are set by the server.
+     *
+     * @return The response headers.
+     */
+    public HttpHeaders headers() {
+        if (headers == null) {
+            headers = new DefaultHttpHeaders(false);
+        }
+        return headers;
+    }
+
+
+    /**
+     * Appends UTF-8 encoded text to the response body.
+     *
+     * @param text The text.
+     * @return This Response.
+     */
+    public Response write(final CharSequence text) {
+        ByteBufUtil.writeUtf8(content(), text);
+        return this;
+    }
+
+
+    /**
+     * Appends bytes to the response body.
+     *
+     * @param bytes The bytes.
+     * @return This Response.
+     */
+    public Response write(final byte[] bytes) {
+        content().writeBytes(bytes);
+        return this;
+    }
+
+
+    /**
+     * Appends bytes to the response body.
+     *
+     * @param bytes The bytes.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     * @return This Response.
+     */
+    public Response write(final byte[] bytes, final int offset, final int length) {
+        content().writeBytes(bytes, offset, length);
+        return this;
+    }
+
+
+    /**
+     * Appends the readable bytes of a buffer to the response body.
+     * The source buffer is not released.
+     *
+     * @param buf The buffer.
+     * @return This Response.
+     */
+    public Response write(final ByteBuf buf) {
+        content().writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+        return this;
+    }
+
+
+    /**
+     * Returns an OutputStream that appends to the response body, for use
+     * with serializers that write to streams.
+     *
+     * @return The output stream.
+     */
+    public OutputStream outputStream() {
+        return new ByteBufOutputStream(content());
+    }
+
+
+    /**
+     * Returns the response body buffer, allocating it on first use.
+     *
+     * @return The response body buffer.
+     */
+    public ByteBuf content() {
+        if (content == null) {
+            content = alloc.buffer();
+        }
+        return content;
+    }
+
+
+    /**
+     * Appends a buffer to the body without copying, taking ownership of it.
+     *
+     * @param buf The buffer.
+     */
+    void append(final ByteBuf buf) {
+        if (content == null || !content.isReadable()) {
+            release();
+            content = buf;
+        } else {
+            content = Unpooled.wrappedBuffer(content, buf);
+        }
+    }
+
+
+    /**
+     * Sets the key under which compressed copies of the body may be cached.
+     * The key must change whenever the body does.
+     *
+     * @param key The variant key, or null if the body is not cacheable.
+     */
+    void variantKey(final Object key) {
+        this.variantKey = key;
+    }
+
+
+    /**
+     * Returns the key under which compressed copies of the body may be cached.
+     *
+     * @return The variant key, or null.
+     */
+    Object variantKey() {
+        return variantKey;
+    }
+
+
+    /**
+     * Sets whether an entity tag is computed from the body when the
+     * handler does not set one.
+     *
+     * @param computeETag True to compute the entity tag.
+     */
+    void computeETag(final boolean computeETag) {
+        this.computeETag = computeETag;
+    }
+
+
+    /**
+     * Returns true if an entity tag is computed from the body when the
+     * handler does not set one.
+     *
+     * @return True to compute the entity tag.
+     */
+    boolean computesETag() {
+        return computeETag;
+    }
+
+
+    /**
+     * Returns true if the handler set the content type.
+     *
+     * @return True if the content type is not the default.
+     */
+    boolean hasContentType() {
+        return contentType != null;
+    }
+
+
+    /**
+     * Returns true if the handler set any additional headers.
+     *
+     * @return True if there are additional headers.
+     */
+    boolean hasHeaders() {
+        return headers != null && !headers.isEmpty();
+    }
+
+
+    /**
+     * Returns true if anything has been written to the body.
+     *
+     * @return True if the body is not empty.
+     */
+    boolean hasContent() {
+        return content != null && content.isReadable();
+    }
+
+
+    /**
+     * Transfers ownership of the body buffer to the caller.
+     *
+     * @return The body buffer, or null if the body was never written.
+     */
+    ByteBuf detachContent() {
+        final ByteBuf result = content;
+        content = null;
+        return result;
+    }
+
 
+    /**
+     * Releases the body buffer, if any.
+     */
+    void release() {
+        if (content != null) {
+            content.release();
+            content = null;
+        }
+    }
 }
@@ -0,0 +1,470 @@
+package nettyexample.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.IllegalReferenceCountException;
+
+/**
+ * The ResponseCache class keeps complete responses of cacheable GET
+ * routes, so that a hit is answered without calling the handler.
+ *
+ * Entries are keyed on the request method and URI, the values of the
+ * route's key headers, and the negotiated content coding.  Each is stored
+ * as a CachedResponse in pooled off-heap buffers and expires after its
+ * route's time to live and stale window.  The cached bytes are held
+ * within a total budget.
+ *
+ * Admission follows W-TinyLFU: a new entry enters a small LRU window, and
+ * an entry pushed out of the window only moves to the main LRU if it has
+ * been requested more often than the entry it would evict there.  Request
+ * frequencies are kept in a count-min sketch of small counters that are
+ * halved periodically, so that old popularity fades.  A burst of one-off
+ * URLs thus cannot flush the entries that are actually reused.
+ *
+ * Lookups do not lock.  Entries are found in a ConcurrentHashMap, and each
+ * request is recorded in a lossy read buffer, striped by thread, instead
+ * of updating the sketch and the LRU order directly.  The buffers are
+ * drained under the eviction lock, by whichever reader finds its stripe
+ * half full and the lock free, and by every put before it evicts.  A
+ * read dropped from a full buffer only costs a little admission accuracy.
+ */
+final class ResponseCache {
+    private static final AsciiString NO_STORE = new AsciiString("no-store");
+    private static final AsciiString PRIVATE = new AsciiString("private");
+    private final long maxBytes;
+    private final long maxWindowBytes;
+    private final int maxEntrySize;
+    private final ConcurrentHashMap<String, CachedResponse> entries;
+    private final ReadBuffer[] readBuffers;
+    private final ReentrantLock evictionLock;
+    private final LinkedHashMap<String, CachedResponse> window;
+    private final LinkedHashMap<String, CachedResponse> main;
+    private final FrequencySketch sketch;
+    private long windowBytes;
+    private long mainBytes;
+
+
+    /**
+     * Creates a new ResponseCache.
+     *
+     * @param maxBytes The total number of bytes to keep cached.
+     */
+    ResponseCache(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxWindowBytes = maxBytes / 100;
+        this.maxEntrySize = (int) Math.min(Integer.MAX_VALUE, maxBytes / 8);
+        this.entries = new ConcurrentHashMap<String, CachedResponse>();
+        this.readBuffers = new ReadBuffer[Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1)];
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+        this.evictionLock = new ReentrantLock();
+        this.window = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+        this.main = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, maxBytes / 4096)));
+    }
+
+
+    /**
+     * Builds the cache key of a request.
+     *
+     * @param method The request method.
+     * @param uri The request URI.
+     * @param headers The request headers.
+     * @param keyHeaders The names of the headers that select the response.
+     * @param coding The negotiated content coding.
+     * @return The key.
+     */
+    static String key(
+            final CharSequence method,
+            final CharSequence uri,
+            final HttpHeaders headers,
+            final CharSequence[] keyHeaders,
+            final ContentCoding coding) {
+
+        final StringBuilder key = new StringBuilder(uri.length() + 16);
+        key.append(method).append(' ').append(uri).append(' ').append(coding.ordinal());
+        for (final CharSequence name : keyHeaders) {
+            final CharSequence value = headers.get(name);
+            key.append('\n');
+            if (value != null) {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+
+    /**
+     * Returns true if a response may be stored: it is a complete 200 that
+     * sets no cookie and does not forbid shared caching.
+     *
+     * @param response The rendered response.
+     * @return True if the response is cacheable.
+     */
+    static boolean isCacheable(final Object response) {
+        if (!(response instanceof FullHttpResponse)) {
+            return false;
+        }
+        final FullHttpResponse full = (FullHttpResponse) response;
+        if (full.status().code() != HttpResponseStatus.OK.code()) {
+            return false;
+        }
+        final HttpHeaders headers = full.headers();
+        if (headers.contains(HttpHeaderNames.SET_COOKIE)) {
+            return false;
+        }
+        final CharSequence cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+        return cacheControl == null
+                || (!contains(cacheControl, NO_STORE) && !contains(cacheControl, PRIVATE));
+    }
+
+
+    /**
+     * Returns a cached response and records the request for admission.
+     * An expired entry is dropped; a stale entry is still returned.
+     *
+     * @param key The cache key.
+     * @param now The current System.nanoTime().
+     * @return The retained entry, which the caller must release, or null.
+     */
+    CachedResponse get(final String key, final long now) {
+        record(key);
+
+        final CachedResponse entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(now)) {
+            expire(key, entry);
+            return null;
+        }
+        try {
+            return (CachedResponse) entry.retain();
+        } catch (final IllegalReferenceCountException ex) {
+            // Evicted and freed since it was looked up.
+            return null;
+        }
+    }
+
+
+    /**
+     * Offers a response to the cache.  It enters the window, which may push
+     * an older entry on to the main space or out of the cache.
+     *
+     * @param key The cache key.
+     * @param entry The response; the cache retains its own reference.
+     * @return True if the entry was stored.
+     */
+    boolean put(final String key, final CachedResponse entry) {
+        final int size = entry.size();
+        if (size > maxEntrySize) {
+            return false;
+        }
+
+        evictionLock.lock();
+        try {
+            drainReads();
+            remove(key);
+            entry.retain();
+            window.put(key, entry);
+            entries.put(key, entry);
+            windowBytes += size;
+
+            final Iterator<Map.Entry<String, CachedResponse>> it = window.entrySet().iterator();
+            while (windowBytes > maxWindowBytes && it.hasNext()) {
+                final Map.Entry<String, CachedResponse> candidate = it.next();
+                it.remove();
+                windowBytes -= candidate.getValue().size();
+                admit(candidate.getKey(), candidate.getValue());
+            }
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of bytes held by the cache.
+     *
+     * @return The size in bytes.
+     */
+    long size() {
+        evictionLock.lock();
+        try {
+            return windowBytes + mainBytes;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+
+    /**
+     * Drops every entry.
+     */
+    void clear() {
+        evictionLock.lock();
+        try {
+            drainReads();
+            entries.clear();
+            for (final CachedResponse entry : window.values()) {
+                entry.release();
+            }
+            for (final CachedResponse entry : main.values()) {
+                entry.release();
+            }
+            window.clear();
+            main.clear();
+            windowBytes = 0;
+            mainBytes = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+
+    /**
+     * Records a request in the calling thread's read buffer, and drains the
+     * buffers if it is filling up and no other thread holds the lock.
+     *
+     * @param key The cache key.
+     */
+    private void record(final String key) {
+        final ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (readBuffers.length - 1)];
+        if (buffer.offer(key) && buffer.pending() < ReadBuffer.DRAIN_THRESHOLD) {
+            return;
+        }
+        if (evictionLock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Applies the recorded requests to the sketch and the LRU order.  Must
+     * be called with the eviction lock held.
+     */
+    private void drainReads() {
+        for (final ReadBuffer buffer : readBuffers) {
+            String key;
+            while ((key = buffer.poll()) != null) {
+                sketch.increment(key);
+                if (window.get(key) == null) {
+                    main.get(key);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Drops an expired entry, unless it has been replaced meanwhile.
+     *
+     * @param key The cache key.
+     * @param entry The expired entry.
+     */
+    private void expire(final String key, final CachedResponse entry) {
+        evictionLock.lock();
+        try {
+            if (entries.get(key) == entry) {
+                remove(key);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+
+    /**
+     * Moves an entry from the window to the main space, evicting main
+     * entries that were requested less often.  If the entry loses against
+     * a victim it is dropped instead.
+     *
+     * @param key The cache key.
+     * @param candidate The entry leaving the window.
+     */
+    private void admit(final String key, final CachedResponse candidate) {
+        final long maxMainBytes = maxBytes - maxWindowBytes;
+        final int size = candidate.size();
+        final int frequency = sketch.frequency(key);
+
+        final Iterator<Map.Entry<String, CachedResponse>> it = main.entrySet().iterator();
+        while (mainBytes + size > maxMainBytes && it.hasNext()) {
+            final Map.Entry<String, CachedResponse> victim = it.next();
+            if (frequency <= sketch.frequency(victim.getKey())) {
+                entries.remove(key);
+                candidate.release();
+                return;
+            }
+            it.remove();
+            entries.remove(victim.getKey());
+            mainBytes -= victim.getValue().size();
+            victim.getValue().release();
+        }
+
+        if (mainBytes + size > maxMainBytes) {
+            entries.remove(key);
+            candidate.release();
+            return;
+        }
+        main.put(key, candidate);
+        mainBytes += size;
+    }
+
+
+    private void remove(final String key) {
+        entries.remove(key);
+        CachedResponse entry = window.remove(key);
+        if (entry != null) {
+            windowBytes -= entry.size();
+            entry.release();
+        }
+        entry = main.remove(key);
+        if (entry != null) {
+            mainBytes -= entry.size();
+            entry.release();
+        }
+    }
+
+
+    private static boolean contains(final CharSequence value, final AsciiString token) {
+        final int last = value.length() - token.length();
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < token.length() && Character.toLowerCase(value.charAt(i + j)) == token.charAt(j)) {
+                j++;
+            }
+            if (j == token.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * The ReadBuffer class is one stripe of recorded requests: a bounded
+     * ring that many threads offer to and the lock holder polls from.
+     *
+     * A slot is claimed by advancing the write counter, then filled.  An
+     * offer fails when the ring is full or when another thread claimed the
+     * same slot first; the read is then dropped rather than retried.  The
+     * poller stops at a claimed slot that is not filled yet.
+     */
+    private static final class ReadBuffer {
+        private static final int SIZE = 32;
+        private static final int DRAIN_THRESHOLD = SIZE / 2;
+        private final AtomicReferenceArray<String> slots;
+        private final AtomicLong writes;
+        private volatile long reads;
+
+        ReadBuffer() {
+            this.slots = new AtomicReferenceArray<String>(SIZE);
+            this.writes = new AtomicLong();
+        }
+
+        boolean offer(final String key) {
+            final long write = writes.get();
+            if (write - reads >= SIZE || !writes.compareAndSet(write, write + 1)) {
+                return false;
+            }
+            slots.lazySet((int) write & (SIZE - 1), key);
+            return true;
+        }
+
+        int pending() {
+            return (int) (writes.get() - reads);
+        }
+
+        String poll() {
+            final long read = reads;
+            if (read == writes.get()) {
+                return null;
+            }
+            final int index = (int) read & (SIZE - 1);
+            final String key = slots.get(index);
+            if (key != null) {
+                slots.lazySet(index, null);
+                reads = read + 1;
+            }
+            return key;
+        }
+    }
+
+
+    /**
+     * The FrequencySketch class estimates how often each key was requested.
+     *
+     * Each key maps to one counter in each of four rows; the estimate is
+     * the smallest of the four, which overcounts only when every one of
+     * them collides.  Counters saturate at 15, and after a number of
+     * increments proportional to the table size every counter is halved.
+     */
+    private static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(final int expectedEntries) {
+            final int width = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+            this.counters = new byte[width * ROWS];
+            this.mask = width - 1;
+            this.sampleSize = width * 10;
+        }
+
+        int frequency(final String key) {
+            final int hash = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                min = Math.min(min, counters[index(hash, row)]);
+            }
+            return min;
+        }
+
+        void increment(final String key) {
+            final int hash = spread(key.hashCode());
+            for (int row = 0; row < ROWS; row++) {
+                final int i = index(hash, row);
+                if (counters[i] < MAX_COUNT) {
+                    counters[i]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int index(final int hash, final int row) {
+            final int h = spread(hash + row * 0x9E3779B9);
+            return row * (mask + 1) + (h & mask);
+        }
+
+        private static int spread(final int x) {
+            int h = x * 0x45D9F3B;
+            h ^= h >>> 16;
+            return h * 0x45D9F3B ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package nettyexample.server;
+
+import java.util.List;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+
+/**
+ * The ResponseEncoder class is a HttpResponseEncoder that also writes
+ * PreEncodedResponse and CachedResponse messages.
+ *
+ * A pre-encoded response bypasses header encoding entirely: its head, the
+ * event loop's cached Date line and its tail are passed on as retained
+ * duplicates of shared buffers.  A cached response is written the same
+ * way, and released afterwards like any other message.
+ */
+final class ResponseEncoder extends HttpResponseEncoder {
+
+    @Override
+    public boolean acceptOutboundMessage(final Object msg) throws Exception {
+        return msg instanceof PreEncodedResponse
+                || msg instanceof CachedResponse
+                || super.acceptOutboundMessage(msg);
+    }
+
+
+    @Override
+    protected void encode(final ChannelHandlerContext ctx, final Object msg, final List<Object> out)
+            throws Exception {
+
+        if (msg instanceof PreEncodedResponse) {
+            final PreEncodedResponse response = (PreEncodedResponse) msg;
+            out.add(response.head());
+            out.add(HttpDate.line(ctx.executor()));
+            out.add(response.tail());
+            return;
+        }
+
+        if (msg instanceof CachedResponse) {
+            final CachedResponse response = (CachedResponse) msg;
+            out.add(response.head());
+            out.add(HttpDate.line(ctx.executor()));
+            out.add(response.tail());
+            return;
+        }
+
+        super.encode(ctx, msg, out);
+    }
+}
@@ -1,19 +1,71 @@
 package nettyexample.server;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.handler.codec.AsciiString;
 import io.netty.handler.codec.http.HttpMethod;
 
 /**
  * The Route class represents a single entry in the RouteTable.
+ *
+ * A route path is made of literal characters, ":name" segments which
+ * capture a single path segment, and an optional trailing "*" or "*name"
+ * segment which captures the remainder of the path.
  */
 public class Route {
     private final HttpMethod method;
     private final String path;
     private final Handler handler;
+    private final StreamingHandler streamingHandler;
+    private final Execution execution;
+    private final List<String> paramNames;
+    private final RouteMatch literalMatch;
+    private final LongAdder hits;
+    private final PreEncodedResponse constantResponse;
+    private final long cacheTtlNanos;
+    private final long cacheStaleNanos;
+    private final CharSequence[] cacheKeyHeaders;
+    private final boolean coalesced;
+    private final boolean etag;
 
     public Route(final HttpMethod method, final String path, final Handler handler) {
+        this(method, path, new RouteOptions(), handler);
+    }
+
+    public Route(final HttpMethod method, final String path, final RouteOptions options, final Handler handler) {
+        this(method, path, options, handler, null);
+    }
+
+    public Route(final HttpMethod method, final String path, final StreamingHandler streamingHandler) {
+        this(method, path, new RouteOptions(), null, streamingHandler);
+    }
+
+    private Route(
+            final HttpMethod method,
+            final String path,
+            final RouteOptions options,
+            final Handler handler,
+            final StreamingHandler streamingHandler) {
+
         this.method = method;
         this.path = path;
         this.handler = handler;
+        this.streamingHandler = streamingHandler;
+        this.execution = options.getExecution();
+        this.paramNames = parseParamNames(path);
+        this.literalMatch = new RouteMatch(this, Collections.<String, String>emptyMap());
+        this.hits = new LongAdder();
+        this.constantResponse = handler instanceof ConstantHandler ? ((ConstantHandler) handler).encode() : null;
+        this.cacheTtlNanos = options.getCacheTtlNanos();
+        this.cacheStaleNanos = options.getCacheStaleNanos();
+        this.cacheKeyHeaders = options.getCacheKeyHeaders();
+        this.coalesced = options.isCoalesced();
+        this.etag = options.isETag() || cacheTtlNanos > 0;
     }
 
     public HttpMethod getMethod() {
@@ -28,7 +80,271 @@ public Handler getHandler() {
         return handler;
     }
 
-    public boolean matches(final HttpMethod method, final String path) {
-        return this.method.equals(method) && this.path.equals(path);
+    /**
+     * Returns the handler of a streaming route.
+     *
+     * @return The streaming handler, or null if the route aggregates the request body.
+     */
+    public StreamingHandler getStreamingHandler() {
+        return streamingHandler;
+    }
+
+    public boolean isStreaming() {
+        return streamingHandler != null;
+    }
+
+    public Execution getExecution() {
+        return execution;
+    }
+
+    public List<String> getParamNames() {
+        return paramNames;
+    }
+
+    public boolean hasParams() {
+        return !paramNames.isEmpty();
+    }
+
+    /**
+     * Returns the complete response of a constant route, encoded when the
+     * route was created.
+     *
+     * @return The pre-encoded response, or null if the handler is not constant.
+     */
+    PreEncodedResponse getConstantResponse() {
+        return constantResponse;
+    }
+
+    /**
+     * Returns how long responses of this route are cached.
+     *
+     * @return The time to live in nanoseconds, or 0 if the route is not cached.
+     */
+    public long getCacheTtlNanos() {
+        return cacheTtlNanos;
+    }
+
+    /**
+     * Returns how long a cached response of this route is served stale
+     * while it is refreshed.
+     *
+     * @return The stale window in nanoseconds.
+     */
+    public long getCacheStaleNanos() {
+        return cacheStaleNanos;
+    }
+
+    /**
+     * Returns true if concurrent identical requests share a handler call.
+     *
+     * @return True if requests are coalesced.
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Returns true if an ETag is computed for responses that lack one.
+     *
+     * @return True if ETags are computed.
+     */
+    public boolean isETag() {
+        return etag;
+    }
+
+    /**
+     * Returns the request headers that are part of the cache key.
+     *
+     * @return The header names; the array is shared and must not be modified.
+     */
+    CharSequence[] getCacheKeyHeaders() {
+        return cacheKeyHeaders;
+    }
+
+    /**
+     * Returns the number of requests routed to this route.
+     *
+     * @return The hit count.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public boolean matches(final HttpMethod method, final CharSequence path) {
+        return this.method.equals(method) && walk(path, path.length(), null);
+    }
+
+
+    /**
+     * Records a request routed to this route.
+     * The counter is striped, so event loops do not contend on it.
+     */
+    void recordHit() {
+        hits.increment();
+    }
+
+
+    /**
+     * Returns the match of this route against a request path.
+     *
+     * Routes without parameters share a single immutable match instance,
+     * so a literal hit does not allocate.  Otherwise only the captured
+     * parameter values are materialized as Strings.
+     *
+     * @param requestPath The request path that the router matched to this route.
+     * @param end The end index of the path within the sequence.
+     * @return The route match.
+     */
+    RouteMatch match(final CharSequence requestPath, final int end) {
+        if (!hasParams()) {
+            return literalMatch;
+        }
+
+        final Map<String, String> params = new HashMap<String, String>();
+        walk(requestPath, end, params);
+        return new RouteMatch(this, Collections.unmodifiableMap(params));
+    }
+
+
+    /**
+     * Walks the route pattern and the request path side by side.
+     *
+     * @param requestPath The request path.
+     * @param requestLength The end index of the path within the sequence.
+     * @param params Optional map to receive the captured parameters.
+     * @return True if the request path matches the pattern.
+     */
+    private boolean walk(final CharSequence requestPath, final int requestLength, final Map<String, String> params) {
+        final int patternLength = path.length();
+        int p = 0;
+        int r = 0;
+
+        while (p < patternLength) {
+            final char c = path.charAt(p);
+
+            if (c == ':') {
+                final int nameEnd = segmentEnd(path, p, patternLength);
+                final int valueEnd = segmentEnd(requestPath, r, requestLength);
+                if (valueEnd == r) {
+                    return false;
+                }
+                if (params != null) {
+                    params.put(path.substring(p + 1, nameEnd), substring(requestPath, r, valueEnd));
+                }
+                p = nameEnd;
+                r = valueEnd;
+
+            } else if (c == '*') {
+                if (params != null) {
+                    params.put(wildcardName(path, p), substring(requestPath, r, requestLength));
+                }
+                return true;
+
+            } else {
+                if (r >= requestLength || requestPath.charAt(r) != c) {
+                    return false;
+                }
+                p++;
+                r++;
+            }
+        }
+
+        return r == requestLength;
+    }
+
+
+    /**
+     * Parses and validates the parameter names of a route pattern.
+     *
+     * @param path The route pattern.
+     * @return The parameter names in declaration order.
+     */
+    private static List<String> parseParamNames(final String path) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            throw new IllegalArgumentException("Route path must start with '/': " + path);
+        }
+
+        final List<String> names = new ArrayList<String>();
+
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c != ':' && c != '*') {
+                continue;
+            }
+
+            if (path.charAt(i - 1) != '/') {
+                throw new IllegalArgumentException("Parameter must start a path segment: " + path);
+            }
+
+            if (c == ':') {
+                final int end = segmentEnd(path, i, path.length());
+                if (end == i + 1) {
+                    throw new IllegalArgumentException("Parameter name must not be empty: " + path);
+                }
+                names.add(path.substring(i + 1, end));
+                i = end - 1;
+            } else {
+                if (path.indexOf('/', i) >= 0) {
+                    throw new IllegalArgumentException("Wildcard must be the last path segment: " + path);
+                }
+                names.add(wildcardName(path, i));
+                break;
+            }
+        }
+
+        for (int i = 0; i < names.size(); i++) {
+            if (names.indexOf(names.get(i)) != i) {
+                throw new IllegalArgumentException("Duplicate parameter name: " + path);
+            }
+        }
+
+        return Collections.unmodifiableList(names);
+    }
+
+
+    /**
+     * Returns the capture name of a wildcard segment.
+     * A bare "*" is captured under the name "*".
+     *
+     * @param path The route pattern.
+     * @param index The index of the '*' character.
+     * @return The capture name.
+     */
+    static String wildcardName(final String path, final int index) {
+        return index + 1 == path.length() ? "*" : path.substring(index + 1);
+    }
+
+
+    /**
+     * Returns the end index of the path segment starting at the given index.
+     *
+     * @param s The path.
+     * @param start The start index.
+     * @param end The end index of the path within the sequence.
+     * @return The index of the next '/' or the end of the path.
+     */
+    static int segmentEnd(final CharSequence s, final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '/') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+
+    /**
+     * Materializes part of a request path as a String.
+     *
+     * @param s The request path.
+     * @param start The start index.
+     * @param end The end index.
+     * @return The String value.
+     */
+    private static String substring(final CharSequence s, final int start, final int end) {
+        if (s instanceof AsciiString) {
+            return ((AsciiString) s).toString(start, end);
+        }
+        return s.subSequence(start, end).toString();
     }
 }
@@ -0,0 +1,24 @@
+package nettyexample.server;
+
+import java.util.Map;
+
+/**
+ * The RouteMatch class is the result of a successful RouteTable lookup.
+ */
+public class RouteMatch {
+    private final Route route;
+    private final Map<String, String> params;
+
+    public RouteMatch(final Route route, final Map<String, String> params) {
+        this.route = route;
+        this.params = params;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+}
@@ -0,0 +1,221 @@
+package nettyexample.server;
+
+import java.util.Arrays;
+
+/**
+ * The RouteNode class is a node in the compressed radix tree used by the
+ * RouteTable.
+ *
+ * Each node owns a literal prefix.  Static children are indexed by the first
+ * character of their prefix, and a node may additionally have one ":param"
+ * child and one trailing "*" child.  Lookups prefer static children, then the
+ * parameter child, then the wildcard child, so the cost of a lookup depends
+ * on the length of the path rather than the number of routes.
+ */
+final class RouteNode {
+    private static final char[] NO_INDICES = new char[0];
+    private static final RouteNode[] NO_CHILDREN = new RouteNode[0];
+
+    private String prefix;
+    private char[] indices;
+    private RouteNode[] children;
+    private String paramName;
+    private RouteNode paramChild;
+    private RouteNode wildcardChild;
+    private Route route;
+
+
+    /**
+     * Creates a new RouteNode.
+     *
+     * @param prefix The literal prefix matched by this node.
+     */
+    RouteNode(final String prefix) {
+        this.prefix = prefix;
+        this.indices = NO_INDICES;
+        this.children = NO_CHILDREN;
+    }
+
+
+    /**
+     * Inserts a route into the tree rooted at this node.
+     *
+     * @param route The route.
+     */
+    void insert(final Route route) {
+        final String path = route.getPath();
+        final int length = path.length();
+        RouteNode node = this;
+        int pos = 0;
+
+        while (pos < length) {
+            final char c = path.charAt(pos);
+
+            if (c == ':') {
+                final int end = Route.segmentEnd(path, pos, length);
+                final String name = path.substring(pos + 1, end);
+                if (node.paramChild == null) {
+                    node.paramName = name;
+                    node.paramChild = new RouteNode("");
+                } else if (!node.paramName.equals(name)) {
+                    throw new IllegalArgumentException("Parameter ':" + name
+                            + "' conflicts with ':" + node.paramName + "' in " + path);
+                }
+                node = node.paramChild;
+                pos = end;
+                continue;
+            }
+
+            if (c == '*') {
+                if (node.wildcardChild != null) {
+                    throw new IllegalArgumentException("Duplicate route: " + route.getMethod() + " " + path);
+                }
+                node.wildcardChild = new RouteNode("");
+                node.wildcardChild.route = route;
+                return;
+            }
+
+            final int end = literalEnd(path, pos);
+            final int index = node.indexOf(c);
+
+            if (index < 0) {
+                final RouteNode child = new RouteNode(path.substring(pos, end));
+                node.addChild(child);
+                node = child;
+                pos = end;
+                continue;
+            }
+
+            final RouteNode child = node.children[index];
+            final int common = commonPrefixLength(child.prefix, path, pos, end);
+
+            if (common < child.prefix.length()) {
+                final RouteNode split = new RouteNode(child.prefix.substring(0, common));
+                child.prefix = child.prefix.substring(common);
+                split.addChild(child);
+                node.children[index] = split;
+                node = split;
+            } else {
+                node = child;
+            }
+
+            pos += common;
+        }
+
+        if (node.route != null) {
+            throw new IllegalArgumentException("Duplicate route: " + route.getMethod() + " " + path);
+        }
+        node.route = route;
+    }
+
+
+    /**
+     * Finds the route matching a request path.
+     * This node's own prefix must already have been matched.
+     *
+     * @param path The request path.
+     * @param pos The index of the first unmatched character.
+     * @param end The end index of the path within the sequence.
+     * @return The matching route, or null if none.
+     */
+    Route find(final CharSequence path, final int pos, final int end) {
+        if (pos == end) {
+            if (route != null) {
+                return route;
+            }
+            return wildcardChild == null ? null : wildcardChild.route;
+        }
+
+        final int index = indexOf(path.charAt(pos));
+        if (index >= 0) {
+            final RouteNode child = children[index];
+            final int next = pos + child.prefix.length();
+            if (next <= end && child.prefixMatches(path, pos)) {
+                final Route result = child.find(path, next, end);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+
+        if (paramChild != null) {
+            final int segmentEnd = Route.segmentEnd(path, pos, end);
+            if (segmentEnd > pos) {
+                final Route result = paramChild.find(path, segmentEnd, end);
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+
+        return wildcardChild == null ? null : wildcardChild.route;
+    }
+
+
+    /**
+     * Compares this node's prefix against the request path character by
+     * character, so that String and AsciiString paths are handled alike
+     * without copying or decoding.  The first character has already been
+     * matched by the index lookup.
+     *
+     * @param path The request path.
+     * @param pos The index at which the prefix should start.
+     * @return True if the prefix matches.
+     */
+    private boolean prefixMatches(final CharSequence path, final int pos) {
+        final String prefix = this.prefix;
+        for (int i = 1; i < prefix.length(); i++) {
+            if (prefix.charAt(i) != path.charAt(pos + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private int indexOf(final char c) {
+        final char[] indices = this.indices;
+        for (int i = 0; i < indices.length; i++) {
+            if (indices[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private void addChild(final RouteNode child) {
+        indices = Arrays.copyOf(indices, indices.length + 1);
+        indices[indices.length - 1] = child.prefix.charAt(0);
+        children = Arrays.copyOf(children, children.length + 1);
+        children[children.length - 1] = child;
+    }
+
+
+    /**
+     * Returns the end of the literal run starting at the given index.
+     *
+     * @param path The route pattern.
+     * @param start The start index.
+     * @return The index of the next ':' or '*' character, or the length of the path.
+     */
+    private static int literalEnd(final String path, final int start) {
+        for (int i = start; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c == ':' || c == '*') {
+                return i;
+            }
+        }
+        return path.length();
+    }
+
+
+    private static int commonPrefixLength(final String prefix, final String path, final int start, final int end) {
+        final int max = Math.min(prefix.length(), end - start);
+        int i = 0;
+        while (i < max && prefix.charAt(i) == path.charAt(start + i)) {
+            i++;
+        }
+        return i;
+    }
+}
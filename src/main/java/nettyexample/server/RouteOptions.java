@@ -0,0 +1,202 @@
+package nettyexample.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The RouteOptions class holds the optional settings of a route.
+ *
+ * Options are read when the route is registered; changing a RouteOptions
+ * afterwards does not affect routes that were already added.
+ */
+public class RouteOptions {
+    private static final CharSequence[] NO_HEADERS = new CharSequence[0];
+    private Execution execution;
+    private long cacheTtlNanos;
+    private long cacheStaleNanos;
+    private CharSequence[] cacheKeyHeaders;
+    private boolean coalesced;
+    private boolean etag;
+
+
+    /**
+     * Creates a new RouteOptions with the default settings.
+     */
+    public RouteOptions() {
+        this.execution = Execution.EVENT_LOOP;
+        this.cacheKeyHeaders = NO_HEADERS;
+    }
+
+
+    /**
+     * Returns the thread the handler runs on.
+     *
+     * @return The execution mode.
+     */
+    public Execution getExecution() {
+        return execution;
+    }
+
+
+    /**
+     * Sets the thread the handler runs on.  Handlers that block, for example
+     * on JDBC or file I/O, should not run on the event loop.
+     *
+     * @param execution The execution mode.
+     * @return These RouteOptions.
+     */
+    public RouteOptions execution(final Execution execution) {
+        this.execution = execution;
+        return this;
+    }
+
+
+    /**
+     * Returns how long responses of the route are cached.
+     *
+     * @return The time to live in nanoseconds, or 0 if the route is not cached.
+     */
+    public long getCacheTtlNanos() {
+        return cacheTtlNanos;
+    }
+
+
+    /**
+     * Returns how long a cached response is served after its time to live
+     * while it is refreshed.
+     *
+     * @return The stale window in nanoseconds.
+     */
+    public long getCacheStaleNanos() {
+        return cacheStaleNanos;
+    }
+
+
+    /**
+     * Returns true if concurrent identical requests share a handler call.
+     *
+     * @return True if requests are coalesced.
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+
+    /**
+     * Returns true if an ETag is computed for responses that lack one.
+     *
+     * @return True if ETags are computed.
+     */
+    public boolean isETag() {
+        return etag;
+    }
+
+
+    /**
+     * Returns the request headers that are part of the cache key.
+     *
+     * @return The header names.
+     */
+    public CharSequence[] getCacheKeyHeaders() {
+        return cacheKeyHeaders.clone();
+    }
+
+
+    /**
+     * Caches the responses of a GET route in the server's ResponseCache.
+     *
+     * Responses are keyed on the request URI and the negotiated content
+     * coding.  A handler whose response also depends on request headers,
+     * such as Accept-Language or Authorization, must name them as key
+     * headers.  Only 200 responses with a complete body that set no cookie
+     * and are not marked no-store or private are cached.
+     *
+     * @param ttl How long a response is served from the cache.
+     * @param unit The unit of the time to live.
+     * @param keyHeaders The request headers that select the response, in
+     *                   addition to those given to coalesce.
+     * @return These RouteOptions.
+     */
+    public RouteOptions cache(final long ttl, final TimeUnit unit, final CharSequence... keyHeaders) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Cache time to live must be positive: " + ttl);
+        }
+        this.cacheTtlNanos = unit.toNanos(ttl);
+        this.cacheKeyHeaders = merge(cacheKeyHeaders, keyHeaders);
+        return this;
+    }
+
+
+    /**
+     * Keeps serving a cached response after its time to live while it is
+     * refreshed in the background.
+     *
+     * The first request after the time to live passes still gets the
+     * stale response, and starts a single refresh that runs the handler on
+     * the worker executor.  The entry is only dropped once the stale
+     * window has passed as well, which happens only if refreshes keep
+     * failing.  Has no effect unless the route is cached.
+     *
+     * @param stale How long a stale response may be served.
+     * @param unit The unit of the stale window.
+     * @return These RouteOptions.
+     */
+    public RouteOptions staleWhileRevalidate(final long stale, final TimeUnit unit) {
+        if (stale < 0) {
+            throw new IllegalArgumentException("Stale window must not be negative: " + stale);
+        }
+        this.cacheStaleNanos = unit.toNanos(stale);
+        return this;
+    }
+
+
+    /**
+     * Collapses concurrent identical GET requests into a single handler
+     * call.
+     *
+     * Requests are identical if they have the same URI, negotiated content
+     * coding and key headers, as for the response cache.  Requests that
+     * arrive while the handler runs for the first one wait for it, and are
+     * all sent the same encoded response.  A response that sets a cookie,
+     * or whose body is streamed, is not shared; the waiting requests then
+     * call the handler themselves.
+     *
+     * @param keyHeaders The request headers that select the response, in
+     *                   addition to those given to cache.
+     * @return These RouteOptions.
+     */
+    public RouteOptions coalesce(final CharSequence... keyHeaders) {
+        this.coalesced = true;
+        this.cacheKeyHeaders = merge(cacheKeyHeaders, keyHeaders);
+        return this;
+    }
+
+
+    /**
+     * Computes a strong ETag from the body of each complete 200 response
+     * whose handler did not set one, so that conditional GETs can be
+     * answered with 304 Not Modified.  Cached routes always compute one,
+     * since it is only computed when the response is stored.
+     *
+     * @return These RouteOptions.
+     */
+    public RouteOptions etag() {
+        this.etag = true;
+        return this;
+    }
+
+
+    /**
+     * Appends key headers to those already set, so that cache and coalesce
+     * may be called in either order.
+     *
+     * @param headers The key headers already set.
+     * @param added The key headers to add.
+     * @return The combined key headers.
+     */
+    private static CharSequence[] merge(final CharSequence[] headers, final CharSequence[] added) {
+        final CharSequence[] merged = new CharSequence[headers.length + added.length];
+        System.arraycopy(headers, 0, merged, 0, headers.length);
+        System.arraycopy(added, 0, merged, headers.length, added.length);
+        return merged;
+    }
+}
@@ -0,0 +1,174 @@
+package nettyexample.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.handler.codec.http.HttpMethod;
+
+/**
+ * The RouteSnapshot class is an immutable, compiled view of the routes in a
+ * RouteTable.
+ *
+ * A snapshot is fully built before it is published, and is never modified
+ * afterwards, so it can be read by any number of event loops without locking.
+ *
+ * Routes without parameters are served from an exact-match index.  Only
+ * pattern routes are placed in the per-method trees.
+ *
+ * Paths that matched no route are remembered in a MissCache, so repeated
+ * requests for unknown paths, such as those sent by vulnerability
+ * scanners, are rejected by the same lookup that serves hits, using the
+ * path hash it already computed, and are never walked through the trees
+ * again.  The cache is the one
+ * part of a snapshot that changes after publication; it is tied to the
+ * snapshot's routes and never outlives a route change.
+ */
+final class RouteSnapshot {
+    static final RouteSnapshot EMPTY = new RouteSnapshot(Collections.<Route>emptyList());
+
+    private final List<Route> routes;
+    private final LiteralRouteIndex literals;
+    private final Map<HttpMethod, RouteNode> trees;
+    private final MissCache misses;
+    private final boolean streaming;
+
+
+    /**
+     * Compiles a new RouteSnapshot.
+     *
+     * @param routes The routes, in registration order.
+     * @throws IllegalArgumentException if two routes conflict.
+     */
+    RouteSnapshot(final List<Route> routes) {
+        this.routes = Collections.unmodifiableList(new ArrayList<Route>(routes));
+        this.trees = new HashMap<HttpMethod, RouteNode>();
+
+        final List<Route> literalRoutes = new ArrayList<Route>();
+        final Set<String> literalKeys = new HashSet<String>();
+        boolean streaming = false;
+
+        for (final Route route : this.routes) {
+            streaming |= route.isStreaming();
+
+            if (!route.hasParams()) {
+                if (!literalKeys.add(route.getMethod() + " " + route.getPath())) {
+                    throw new IllegalArgumentException("Duplicate route: " + route.getMethod() + " " + route.getPath());
+                }
+                literalRoutes.add(route);
+                continue;
+            }
+
+            RouteNode root = this.trees.get(route.getMethod());
+            if (root == null) {
+                root = new RouteNode("");
+                this.trees.put(route.getMethod(), root);
+            }
+            root.insert(route);
+        }
+
+        this.literals = new LiteralRouteIndex(literalRoutes);
+        this.misses = new MissCache();
+        this.streaming = streaming;
+    }
+
+
+    /**
+     * Returns the routes in registration order.
+     *
+     * @return The unmodifiable list of routes.
+     */
+    List<Route> routes() {
+        return routes;
+    }
+
+
+    /**
+     * Finds the route for a request.
+     *
+     * @param method The HTTP method.
+     * @param uri The request URI.
+     * @param rejected Counts requests rejected as known misses.
+     * @return The route match, or null if no route matches.
+     */
+    RouteMatch findRoute(final HttpMethod method, final CharSequence uri, final LongAdder rejected) {
+        final int end = RouteTable.pathEnd(uri);
+
+        final Route route = lookup(method, uri, end, rejected);
+        if (route == null) {
+            return null;
+        }
+
+        route.recordHit();
+        return route.match(uri, end);
+    }
+
+
+    /**
+     * Returns true if a request is routed to a streaming route.
+     * Hits are not recorded.
+     *
+     * @param method The HTTP method.
+     * @param uri The request URI.
+     * @return True if the request body should be streamed.
+     */
+    boolean isStreaming(final HttpMethod method, final CharSequence uri) {
+        if (!streaming) {
+            return false;
+        }
+
+        final Route route = lookup(method, uri, RouteTable.pathEnd(uri), null);
+        return route != null && route.isStreaming();
+    }
+
+
+    /**
+     * Returns true if a request path is a recorded miss.
+     *
+     * @param method The HTTP method.
+     * @param uri The request URI.
+     * @return True if the path is known to match no route.
+     */
+    boolean isKnownMiss(final HttpMethod method, final CharSequence uri) {
+        final int end = RouteTable.pathEnd(uri);
+        return misses.contains(LiteralRouteIndex.hash(method, uri, end), method, uri, end);
+    }
+
+
+    /**
+     * Finds the route for a request path.
+     *
+     * @param method The HTTP method.
+     * @param uri The request URI.
+     * @param end The end index of the path within the URI.
+     * @param rejected Counts requests rejected as known misses, or null.
+     * @return The route, or null if no route matches.
+     */
+    private Route lookup(final HttpMethod method, final CharSequence uri, final int end, final LongAdder rejected) {
+        final int hash = LiteralRouteIndex.hash(method, uri, end);
+        final Route route = this.literals.find(hash, method, uri, end);
+        if (route != null) {
+            return route;
+        }
+
+        if (misses.contains(hash, method, uri, end)) {
+            if (rejected != null) {
+                rejected.increment();
+            }
+            return null;
+        }
+
+        final RouteNode root = this.trees.get(method);
+        final Route match = root == null ? null : root.find(uri, 0, end);
+        if (match == null) {
+            misses.add(hash, method, uri, end);
+        }
+        return match;
+    }
+
+}
@@ -1,30 +1,166 @@
 package nettyexample.server;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 import io.netty.handler.codec.http.HttpMethod;
 
 /**
  * The RouteTable class contains all URL routes in the WebServer.
+ *
+ * Lookups read an immutable RouteSnapshot through a single volatile
+ * reference.  Changes rebuild a complete new snapshot on the calling thread
+ * and then swap it in atomically, so routes may be added or removed while
+ * the server is running without lookups ever locking or observing a
+ * partially built table.
+ *
+ * Each route counts its hits, which getRanking() reports.
+ *
+ * Paths that match no route are remembered, so that repeated requests for
+ * them are answered with a 404 before the router is consulted.  Adding or
+ * removing a route forgets them.
  */
 public class RouteTable {
-    private final ArrayList<Route> routes;
+    private final Object lock;
+    private final LongAdder rejectedMisses;
+    private volatile RouteSnapshot snapshot;
 
     public RouteTable() {
-        this.routes = new ArrayList<Route>();
+        this.lock = new Object();
+        this.rejectedMisses = new LongAdder();
+        this.snapshot = RouteSnapshot.EMPTY;
     }
 
+
+    /**
+     * Adds a route.
+     *
+     * @param route The route.
+     * @throws IllegalArgumentException if the route conflicts with an existing route.
+     */
     public void addRoute(final Route route) {
-        this.routes.add(route);
+        synchronized (lock) {
+            final List<Route> routes = new ArrayList<Route>(snapshot.routes());
+            routes.add(route);
+            snapshot = new RouteSnapshot(routes);
+        }
     }
 
-    public Route findRoute(final HttpMethod method, final String path) {
-        for (final Route route : routes) {
-            if (route.matches(method, path)) {
-                return route;
+
+    /**
+     * Removes a route.
+     *
+     * @param method The HTTP method.
+     * @param path The route path, exactly as it was registered.
+     * @return True if a route was removed.
+     */
+    public boolean removeRoute(final HttpMethod method, final String path) {
+        synchronized (lock) {
+            final List<Route> routes = new ArrayList<Route>(snapshot.routes());
+            for (int i = 0; i < routes.size(); i++) {
+                final Route route = routes.get(i);
+                if (route.getMethod().equals(method) && route.getPath().equals(path)) {
+                    routes.remove(i);
+                    snapshot = new RouteSnapshot(routes);
+                    return true;
+                }
             }
+            return false;
         }
+    }
+
+
+    /**
+     * Returns the currently published routes in registration order.
+     *
+     * @return The unmodifiable list of routes.
+     */
+    public List<Route> getRoutes() {
+        return snapshot.routes();
+    }
+
+
+    /**
+     * Returns all routes ordered by hit count, hottest first.
+     *
+     * @return The list of routes.
+     */
+    public List<Route> getRanking() {
+        final List<Route> ranking = new ArrayList<Route>(snapshot.routes());
+        ranking.sort((a, b) -> Long.compare(b.getHits(), a.getHits()));
+        return ranking;
+    }
+
+
+    /**
+     * Finds the route for a request.
+     *
+     * Any query string in the URI is ignored, without copying the path.
+     * The URI may be a String or an AsciiString wrapping the raw request
+     * bytes; either way the tree is walked in place, and a hit on a route
+     * without parameters does not allocate.  A path remembered as matching
+     * no route is rejected without walking the tree, and counted.
+     *
+     * @param method The HTTP method.
+     * @param uri The request URI.
+     * @return The route match, or null if no route matches.
+     */
+    public RouteMatch findRoute(final HttpMethod method, final CharSequence uri) {
+        return snapshot.findRoute(method, uri, rejectedMisses);
+    }
 
-        return null;
+
+    /**
+     * Returns true if a request is routed to a streaming route, whose body
+     * must not be aggregated.  Hits are not recorded.
+     *
+     * @param method The HTTP method.
+     * @param uri The request URI.
+     * @return True if the request body should be streamed.
+     */
+    boolean isStreaming(final HttpMethod method, final CharSequence uri) {
+        return snapshot.isStreaming(method, uri);
+    }
+
+
+    /**
+     * Returns true if a request path is remembered as matching no route.
+     * Nothing is counted; findRoute() rejects known misses itself.
+     *
+     * @param method The HTTP method.
+     * @param uri The request URI.
+     * @return True if the path is a recorded miss.
+     */
+    boolean isKnownMiss(final HttpMethod method, final CharSequence uri) {
+        return snapshot.isKnownMiss(method, uri);
+    }
+
+
+    /**
+     * Returns the number of requests that were rejected as known misses
+     * without consulting the router.
+     *
+     * @return The number of rejected requests.
+     */
+    public long getRejectedMisses() {
+        return rejectedMisses.sum();
+    }
+
+
+    /**
+     * Returns the end index of the path component of a request URI.
+     *
+     * @param uri The request URI.
+     * @return The index of the '?' character, or the length of the URI.
+     */
+    static int pathEnd(final CharSequence uri) {
+        final int length = uri.length();
+        for (int i = 0; i < length; i++) {
+            if (uri.charAt(i) == '?') {
+                return i;
+            }
+        }
+        return length;
     }
 }
@@ -0,0 +1,113 @@
+package nettyexample.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The SingleFlight class collapses concurrent identical requests into a
+ * single handler call.
+ *
+ * The first request for a key becomes the leader of a Flight and runs the
+ * handler.  Requests for the same key that arrive before it finishes join
+ * the flight as followers, and are handed the leader's response when it
+ * is ready.  Flights are shared by all channels, so followers may be on
+ * other event loops; each follower takes care of getting the response
+ * back to its own channel.
+ */
+final class SingleFlight {
+    private final ConcurrentHashMap<String, Flight> flights;
+
+
+    /**
+     * Creates a new SingleFlight.
+     */
+    SingleFlight() {
+        this.flights = new ConcurrentHashMap<String, Flight>();
+    }
+
+
+    /**
+     * Joins the flight for a key, or starts a new one.
+     *
+     * @param key The request key.
+     * @param follower Receives the shared response if a flight is joined:
+     *                 either a response that may be written to any number
+     *                 of channels, or null if the leader's response cannot
+     *                 be shared.  It may be called on any thread.
+     * @return The new flight if the caller is the leader, or null if the
+     *         caller joined a flight as a follower.
+     */
+    Flight join(final String key, final Consumer<Object> follower) {
+        while (true) {
+            final Flight flight = new Flight(key);
+            final Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return flight;
+            }
+            if (existing.add(follower)) {
+                return null;
+            }
+            // The flight landed in the meantime; it leaves the map shortly.
+            flights.remove(key, existing);
+        }
+    }
+
+
+    /**
+     * Ends a flight and hands its response to the followers.
+     *
+     * @param flight The flight started by the caller.
+     * @param shared The shareable response, which is not consumed, or null.
+     */
+    void land(final Flight flight, final Object shared) {
+        flights.remove(flight.key, flight);
+        flight.complete(shared);
+    }
+
+
+    /**
+     * Returns the number of flights in progress.
+     *
+     * @return The number of keys being handled.
+     */
+    int size() {
+        return flights.size();
+    }
+
+
+    /**
+     * The Flight class holds the followers of one in-flight request.
+     */
+    static final class Flight {
+        private final String key;
+        private final List<Consumer<Object>> followers;
+        private boolean landed;
+
+        Flight(final String key) {
+            this.key = key;
+            this.followers = new ArrayList<Consumer<Object>>();
+        }
+
+        synchronized boolean add(final Consumer<Object> follower) {
+            if (landed) {
+                return false;
+            }
+            followers.add(follower);
+            return true;
+        }
+
+        void complete(final Object shared) {
+            final List<Consumer<Object>> waiting;
+            synchronized (this) {
+                landed = true;
+                waiting = new ArrayList<Consumer<Object>>(followers);
+                followers.clear();
+            }
+            for (final Consumer<Object> follower : waiting) {
+                follower.accept(shared);
+            }
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package nettyexample.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * The StaticFiles class is a handler that serves files from a directory.
+ *
+ * The file is named by the route's "*file" wildcard, as set up by
+ * WebServer.files().  Responses carry Last-Modified and ETag headers and
+ * honour If-None-Match, If-Modified-Since, and single byte ranges with
+ * If-Range.  The body is sent with a FileRegion, so on the epoll transport
+ * the kernel copies the file straight to the socket with sendfile.
+ *
+ * Small files are served from a FileCache instead, where a hit costs
+ * neither a stat nor a sendfile call.  When the response is compressed,
+ * the file is read and compressed instead, and the result is cached by
+ * the server's Compression.
+ *
+ * On a cache miss the file is stat'ed and opened on the thread that runs
+ * the handler, which is the event loop by default.  Local disks answer
+ * quickly, but a slow or network file system would stall every channel
+ * of that event loop; set an executor() to run those calls elsewhere.
+ */
+public class StaticFiles implements Handler {
+    private static final String INDEX = "index.html";
+    private static final long DEFAULT_CACHE_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_CACHED_FILE_SIZE = 256 * 1024;
+    static final long[] UNSATISFIABLE = new long[0];
+    private static final Map<String, AsciiString> TYPES = new HashMap<String, AsciiString>();
+
+    static {
+        TYPES.put("html", WebServer.TYPE_HTML);
+        TYPES.put("htm", WebServer.TYPE_HTML);
+        TYPES.put("txt", WebServer.TYPE_PLAIN);
+        TYPES.put("json", WebServer.TYPE_JSON);
+        TYPES.put("css", new AsciiString("text/css; charset=UTF-8"));
+        TYPES.put("js", new AsciiString("application/javascript; charset=UTF-8"));
+        TYPES.put("map", WebServer.TYPE_JSON);
+        TYPES.put("xml", new AsciiString("application/xml; charset=UTF-8"));
+        TYPES.put("svg", new AsciiString("image/svg+xml"));
+        TYPES.put("png", new AsciiString("image/png"));
+        TYPES.put("jpg", new AsciiString("image/jpeg"));
+        TYPES.put("jpeg", new AsciiString("image/jpeg"));
+        TYPES.put("gif", new AsciiString("image/gif"));
+        TYPES.put("webp", new AsciiString("image/webp"));
+        TYPES.put("ico", new AsciiString("image/x-icon"));
+        TYPES.put("woff", new AsciiString("font/woff"));
+        TYPES.put("woff2", new AsciiString("font/woff2"));
+        TYPES.put("pdf", new AsciiString("application/pdf"));
+        TYPES.put("wasm", new AsciiString("application/wasm"));
+    }
+
+    private final Path root;
+    private boolean zeroCopy;
+    private Executor executor;
+    private volatile FileCache cache;
+
+
+    /**
+     * Creates a new StaticFiles handler.
+     *
+     * @param root The directory to serve.
+     */
+    public StaticFiles(final Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        this.zeroCopy = true;
+        this.cache = new FileCache(DEFAULT_CACHE_BYTES, MAX_CACHED_FILE_SIZE);
+    }
+
+
+    /**
+     * Sets whether files are sent with a FileRegion.  When false, files are
+     * read into pooled buffers and sent as a chunked body instead, which is
+     * needed when a handler in the pipeline must see the bytes.
+     *
+     * @param zeroCopy True to send files with sendfile.
+     * @return This StaticFiles.
+     */
+    public StaticFiles zeroCopy(final boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+        return this;
+    }
+
+
+    /**
+     * Sets the executor that stats and opens files on a cache miss.
+     *
+     * The handler then returns a CompletionStage, and the response is
+     * written when the executor has run.  Requests that the executor
+     * rejects are answered with 503 Service Unavailable.  Cache hits are
+     * still served directly.
+     *
+     * @param executor The executor, or null to use the calling thread.
+     * @return This StaticFiles.
+     */
+    public StaticFiles executor(final Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+
+    /**
+     * Sets the budget of the in-memory cache for small files.
+     *
+     * Files up to MAX_CACHED_FILE_SIZE bytes are kept in pooled off-heap
+     * buffers and served without touching the file system, until the file
+     * changes or the entry is evicted.  A budget of 0 disables the cache.
+     *
+     * @param maxBytes The total number of bytes to keep cached.
+     * @return This StaticFiles.
+     */
+    public StaticFiles cache(final long maxBytes) {
+        final FileCache previous = this.cache;
+        this.cache = maxBytes > 0 ? new FileCache(maxBytes, MAX_CACHED_FILE_SIZE) : null;
+        if (previous != null) {
+            previous.close();
+        }
+        return this;
+    }
+
+
+    /**
+     * Drops the cached files and stops watching their directories.  Called
+     * by the WebServer when it stops.
+     */
+    void close() {
+        final FileCache cache = this.cache;
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+
+    @Override
+    public Object handle(final Request request, final Response response) throws Exception {
+        final Path file = resolve(request.param("file"));
+        if (file == null) {
+            return PreEncodedResponse.error(HttpResponseStatus.NOT_FOUND);
+        }
+
+        final FileCache cache = this.cache;
+        final FileCache.Entry cached = cache == null ? null : cache.get(file);
+        if (cached != null) {
+            return respond(request, response, file, cached);
+        }
+
+        final Executor executor = this.executor;
+        if (executor == null) {
+            return load(request, response, file, cache);
+        }
+
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(load(request, response, file, cache));
+                } catch (final Exception ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            return PreEncodedResponse.error(HttpResponseStatus.SERVICE_UNAVAILABLE);
+        }
+        return future;
+    }
+
+
+    /**
+     * Serves a file that is not in the cache: stats it, loads it into the
+     * cache if it is small enough, and returns its body.  A directory is
+     * served by its index file.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @param file The resolved file.
+     * @param cache The file cache, or null.
+     * @return The body: a ByteBuf, FileContent, PreEncodedResponse, or null.
+     * @throws IOException if the file cannot be opened.
+     */
+    private Object load(
+            final Request request,
+            final Response response,
+            final Path file,
+            final FileCache cache) throws IOException {
+
+        Path target = file;
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(target, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                target = file.resolve(INDEX);
+                final FileCache.Entry cached = cache == null ? null : cache.get(target);
+                if (cached != null) {
+                    return respond(request, response, target, cached);
+                }
+                attributes = Files.readAttributes(target, BasicFileAttributes.class);
+            }
+        } catch (final IOException ex) {
+            return PreEncodedResponse.error(HttpResponseStatus.NOT_FOUND);
+        }
+        if (!attributes.isRegularFile()) {
+            return PreEncodedResponse.error(HttpResponseStatus.NOT_FOUND);
+        }
+
+        final FileCache.Entry cached = cache == null ? null : cache.load(target, attributes);
+        if (cached != null) {
+            return respond(request, response, target, cached);
+        }
+        return respond(request, response, target, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+    }
+
+
+    /**
+     * Serves a file from a cache entry.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @param file The file.
+     * @param cached The cache entry.
+     * @return The body: a ByteBuf, FileContent, PreEncodedResponse, or null.
+     * @throws IOException if the file cannot be opened.
+     */
+    private Object respond(
+            final Request request,
+            final Response response,
+            final Path file,
+            final FileCache.Entry cached) throws IOException {
+
+        final ByteBuf content = cached.content();
+        boolean sent = false;
+        try {
+            final Object body = respond(request, response, file, cached.size(), cached.modified(), content);
+            sent = true;
+            return body;
+        } finally {
+            if (content != null && !sent) {
+                content.release();
+            }
+        }
+    }
+
+
+    /**
+     * Sets the response headers and status for a file, and returns its body.
+     *
+     * @param request The request.
+     * @param response The response.
+     * @param file The file.
+     * @param size The file size.
+     * @param modified The file's modification time.
+     * @param content The cached file content, or null to read the file.
+     * @return The body: a ByteBuf, FileContent, PreEncodedResponse, or null.
+     * @throws IOException if the file cannot be opened.
+     */
+    private Object respond(
+            final Request request,
+            final Response response,
+            final Path file,
+            final long size,
+            final long modified,
+            final ByteBuf content) throws IOException {
+
+        final String etag = '"' + Long.toHexString(size) + '-' + Long.toHexString(modified) + '"';
+
+        response.header(HttpHeaderNames.ETAG, etag);
+        response.header(HttpHeaderNames.LAST_MODIFIED, HttpDate.format(modified));
+        response.header(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+
+        if (isNotModified(request, etag, modified)) {
+            response.status(HttpResponseStatus.NOT_MODIFIED);
+            return release(content);
+        }
+
+        long offset = 0;
+        long length = size;
+
+        final String range = request.header(HttpHeaderNames.RANGE);
+        if (range != null && isRangeCurrent(request, etag, modified)) {
+            final long[] bounds = parseRange(range, size);
+            if (bounds == UNSATISFIABLE) {
+                response.status(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.header(HttpHeaderNames.CONTENT_RANGE, "bytes */" + size);
+                return release(content);
+            }
+            if (bounds != null) {
+                offset = bounds[0];
+                length = bounds[1] - bounds[0] + 1;
+                response.status(HttpResponseStatus.PARTIAL_CONTENT);
+                response.header(HttpHeaderNames.CONTENT_RANGE, "bytes " + bounds[0] + '-' + bounds[1] + '/' + size);
+            }
+        }
+
+        response.contentType(contentType(file));
+        if (length == size) {
+            // The ETag names this version of the file.
+            response.variantKey(file + etag);
+        }
+
+        if (content != null) {
+            // A slice shares the reference taken for this request.
+            return content.slice(content.readerIndex() + (int) offset, (int) length);
+        }
+
+        final RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(file.toFile(), "r");
+        } catch (final FileNotFoundException ex) {
+            return PreEncodedResponse.error(HttpResponseStatus.NOT_FOUND);
+        }
+        return new FileContent(raf, offset, length, zeroCopy);
+    }
+
+
+    private static Object release(final ByteBuf content) {
+        if (content != null) {
+            content.release();
+        }
+        return null;
+    }
+
+
+    /**
+     * Resolves a request path against the root directory.
+     *
+     * The name is percent-decoded as a path, so a '+' stays a '+'.  The
+     * file system is not touched; a directory is only recognised once the
+     * file is stat'ed.
+     *
+     * @param name The raw file name from the URL.
+     * @return The file, or null if the name escapes the root or is invalid.
+     */
+    private Path resolve(final String name) {
+        if (name == null) {
+            return null;
+        }
+
+        final Path file;
+        try {
+            // A '+' only means a space in query strings.
+            final String decoded = QueryStringDecoder.decodeComponent(name.replace("+", "%2B"), StandardCharsets.UTF_8);
+            file = root.resolve(decoded.startsWith("/") ? decoded.substring(1) : decoded).normalize();
+        } catch (final IllegalArgumentException ex) {
+            // Bad escapes, or an InvalidPathException.
+            return null;
+        }
+
+        if (!file.startsWith(root)) {
+            return null;
+        }
+        return file;
+    }
+
+
+    /**
+     * Returns true if the client's cached copy is current.
+     * If-None-Match takes precedence over If-Modified-Since.
+     *
+     * @param request The request.
+     * @param etag The file's entity tag.
+     * @param modified The file's modification time.
+     * @return True if the response should be 304 Not Modified.
+     */
+    static boolean isNotModified(final Request request, final String etag, final long modified) {
+        final String ifNoneMatch = request.header(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return matchesAny(ifNoneMatch, etag);
+        }
+
+        final String ifModifiedSince = request.header(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            final long since = HttpDate.parse(ifModifiedSince);
+            return since >= 0 && modified / 1000 <= since / 1000;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns true if a list of entity tags contains a tag, using the weak
+     * comparison that If-None-Match calls for.
+     *
+     * @param list The comma separated list, or "*".
+     * @param etag The entity tag.
+     * @return True if the tag is in the list.
+     */
+    static boolean matchesAny(final String list, final String etag) {
+        final String opaque = stripWeak(etag);
+        for (final String candidate : list.split(",")) {
+            final String tag = candidate.trim();
+            if (tag.equals("*") || stripWeak(tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static String stripWeak(final String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+
+    /**
+     * Returns true unless an If-Range header names a different version of
+     * the file, in which case the whole file must be sent.
+     *
+     * @param request The request.
+     * @param etag The file's entity tag.
+     * @param modified The file's modification time.
+     * @return True if the Range header applies.
+     */
+    private static boolean isRangeCurrent(final Request request, final String etag, final long modified) {
+        final String ifRange = request.header(HttpHeaderNames.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        final long date = HttpDate.parse(ifRange);
+        return date >= 0 && modified / 1000 == date / 1000;
+    }
+
+
+    /**
+     * Parses a Range header holding a single byte range.
+     *
+     * Multiple ranges and malformed headers are ignored, as the HTTP
+     * specification allows, and the whole file is sent.
+     *
+     * @param header The Range header.
+     * @param size The file size.
+     * @return The first and last byte positions, UNSATISFIABLE, or null to ignore the header.
+     */
+    static long[] parseRange(final String header, final long size) {
+        final String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6) || value.indexOf(',') >= 0) {
+            return null;
+        }
+
+        final String spec = value.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            if (dash == 0) {
+                final long suffix = Long.parseLong(spec.substring(1));
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || size == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[] { Math.max(0, size - suffix), size - 1 };
+            }
+
+            final long first = Long.parseLong(spec.substring(0, dash));
+            final long last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+            if (first < 0 || last < first) {
+                return null;
+            }
+            if (first >= size) {
+                return UNSATISFIABLE;
+            }
+            return new long[] { first, Math.min(last, size - 1) };
+
+        } catch (final NumberFormatException ex) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns the content type of a file from its extension.
+     *
+     * @param file The file.
+     * @return The content type.
+     */
+    private static AsciiString contentType(final Path file) {
+        final String name = file.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return WebServer.TYPE_OCTET_STREAM;
+        }
+        final AsciiString type = TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type == null ? WebServer.TYPE_OCTET_STREAM : type;
+    }
+}
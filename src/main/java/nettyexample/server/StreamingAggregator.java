@@ -0,0 +1,62 @@
+package nettyexample.server;
+
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * The StreamingAggregator class aggregates request bodies except for
+ * requests to streaming routes, whose headers and body chunks are passed
+ * through to the handler as they are decoded.
+ *
+ * When no streaming routes are registered this costs a single flag check
+ * per request.
+ */
+final class StreamingAggregator extends HttpObjectAggregator {
+    private final RouteTable routeTable;
+    private boolean streaming;
+
+
+    /**
+     * Creates a new StreamingAggregator.
+     *
+     * @param routeTable The route table.
+     * @param maxContentLength The maximum length of an aggregated body.
+     */
+    StreamingAggregator(final RouteTable routeTable, final int maxContentLength) {
+        super(maxContentLength);
+        this.routeTable = routeTable;
+    }
+
+
+    /**
+     * Returns false for the messages of a streaming request, so that they
+     * bypass aggregation.
+     *
+     * @param msg The inbound message.
+     * @return True if the message should be aggregated.
+     */
+    @Override
+    public boolean acceptInboundMessage(final Object msg) throws Exception {
+        if (streaming) {
+            if (msg instanceof LastHttpContent) {
+                streaming = false;
+            }
+            if (msg instanceof HttpContent) {
+                return false;
+            }
+        }
+
+        if (msg instanceof HttpRequest && !(msg instanceof FullHttpRequest)) {
+            final HttpRequest request = (HttpRequest) msg;
+            if (routeTable.isStreaming(request.method(), request.uri())) {
+                streaming = true;
+                return false;
+            }
+        }
+
+        return super.acceptInboundMessage(msg);
+    }
+}
@@ -0,0 +1,48 @@
+package nettyexample.server;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * The StreamingHandler interface handles requests whose body is delivered
+ * in chunks as it is decoded, instead of being aggregated in memory first.
+ *
+ * The handler is called as soon as the request headers arrive, and returns
+ * the BodyConsumer that receives the body of that request.  Request.body()
+ * is empty for streaming routes.
+ *
+ * Streaming handlers and their consumers run on the event loop, so a slow
+ * consumer slows down reading from the connection rather than buffering.
+ * Work that blocks should be handed off by returning a CompletionStage from
+ * BodyConsumer.complete().
+ */
+@FunctionalInterface
+public interface StreamingHandler {
+
+    BodyConsumer handle(Request request, Response response) throws Exception;
+
+
+    /**
+     * The BodyConsumer interface receives the body of one streaming request.
+     */
+    interface BodyConsumer {
+
+        /**
+         * Receives the next chunk of the body.  The chunk is released after
+         * this method returns; retain it to keep it longer.
+         *
+         * @param chunk The body chunk.
+         * @throws Exception on failure; the client receives 500.
+         */
+        void content(ByteBuf chunk) throws Exception;
+
+
+        /**
+         * Called after the last chunk.  The return value is written like
+         * the return value of a Handler, and may be a CompletionStage.
+         *
+         * @return The response content, or null.
+         * @throws Exception on failure; the client receives 500.
+         */
+        Object complete() throws Exception;
+    }
+}
@@ -1,51 +1,64 @@
 package nettyexample.server;
 
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
-import java.nio.charset.StandardCharsets;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFutureListener;
-import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
-import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.DefaultHttpHeaders;
-import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.AsciiString;
 import io.netty.handler.codec.http.HttpHeaderNames;
-import io.netty.handler.codec.http.HttpHeaderUtil;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpRequestDecoder;
-import io.netty.handler.codec.http.HttpResponseEncoder;
-import io.netty.handler.codec.http.HttpResponseStatus;
-import io.netty.handler.codec.http.HttpVersion;
 
 /**
  * The WebServer class is a convenience wrapper around the Netty HTTP server.
  */
 public class WebServer {
-    public static final String TYPE_PLAIN = "text/plain; charset=UTF-8";
-    public static final String TYPE_JSON = "application/json; charset=UTF-8";
-    public static final String SERVER_NAME = "Netty";
+    public static final AsciiString TYPE_PLAIN = new AsciiString("text/plain; charset=UTF-8");
+    public static final AsciiString TYPE_JSON = new AsciiString("application/json; charset=UTF-8");
+    public static final AsciiString TYPE_NDJSON = new AsciiString("application/x-ndjson");
+    public static final AsciiString TYPE_HTML = new AsciiString("text/html; charset=UTF-8");
+    public static final AsciiString TYPE_OCTET_STREAM = new AsciiString("application/octet-stream");
+    public static final AsciiString SERVER_NAME = new AsciiString("Netty");
+    private static final long LOAD_SAMPLE_INTERVAL_MILLIS = 1000;
+    private static final int WORKER_THREADS = 64;
+    private static final int WORKER_QUEUE_SIZE = 1024;
+    private static final long DEFAULT_RESPONSE_CACHE_BYTES = 64L * 1024 * 1024;
     private final RouteTable routeTable;
+    private final SingleFlight singleFlight;
     private final int port;
+    private ExecutorService workerPool;
+    private ExecutorService virtualThreads;
+    private volatile Compression compression;
+    private volatile ResponseCache responseCache;
 
 
     /**
@@ -54,6 +67,8 @@ public class WebServer {
     public WebServer() {
         this.routeTable = new RouteTable();
         this.port = 4567;
+        this.responseCache = new ResponseCache(DEFAULT_RESPONSE_CACHE_BYTES);
+        this.singleFlight = new SingleFlight();
     }
 
 
@@ -65,7 +80,20 @@ public WebServer() {
      * @return This WebServer.
      */
     public WebServer get(final String path, final Handler handler) {
-        this.routeTable.addRoute(new Route(HttpMethod.GET, path, handler));
+        return get(path, new RouteOptions(), handler);
+    }
+
+
+    /**
+     * Adds a GET route with options.
+     *
+     * @param path The URL path.
+     * @param options The route options.
+     * @param handler The request handler.
+     * @return This WebServer.
+     */
+    public WebServer get(final String path, final RouteOptions options, final Handler handler) {
+        this.routeTable.addRoute(new Route(HttpMethod.GET, path, options, handler));
         return this;
     }
 
@@ -78,11 +106,283 @@ public WebServer get(final String path, final Handler handler) {
      * @return This WebServer.
      */
     public WebServer post(final String path, final Handler handler) {
+        return post(path, new RouteOptions(), handler);
+    }
+
+
+    /**
+     * Adds a POST route with options.
+     *
+     * @param path The URL path.
+     * @param options The route options.
+     * @param handler The request handler.
+     * @return This WebServer.
+     */
+    public WebServer post(final String path, final RouteOptions options, final Handler handler) {
+        this.routeTable.addRoute(new Route(HttpMethod.POST, path, options, handler));
+        return this;
+    }
+
+
+    /**
+     * Serves the files in a directory under a URL prefix.
+     *
+     * @param prefix The URL prefix, for example "/static".
+     * @param root The directory to serve.
+     * @return This WebServer.
+     */
+    public WebServer files(final String prefix, final Path root) {
+        return get(prefix + "/*file", new StaticFiles(root));
+    }
+
+
+    /**
+     * Adds a POST route whose request body is streamed to the handler as
+     * it arrives, instead of being aggregated in memory.
+     *
+     * @param path The URL path.
+     * @param handler The streaming request handler.
+     * @return This WebServer.
+     */
+    public WebServer postStreaming(final String path, final StreamingHandler handler) {
         this.routeTable.addRoute(new Route(HttpMethod.POST, path, handler));
         return this;
     }
 
 
+    /**
+     * Adds an asynchronous GET route.
+     *
+     * @param path The URL path.
+     * @param handler The asynchronous request handler.
+     * @return This WebServer.
+     */
+    public WebServer getAsync(final String path, final AsyncHandler handler) {
+        return get(path, handler::handle);
+    }
+
+
+    /**
+     * Adds an asynchronous POST route.
+     *
+     * @param path The URL path.
+     * @param handler The asynchronous request handler.
+     * @return This WebServer.
+     */
+    public WebServer postAsync(final String path, final AsyncHandler handler) {
+        return post(path, handler::handle);
+    }
+
+
+    /**
+     * Removes a route.
+     *
+     * Routes may be added and removed while the server is running; the
+     * route table is rebuilt on the calling thread and swapped in atomically.
+     *
+     * @param method The HTTP method.
+     * @param path The URL path, exactly as it was registered.
+     * @return True if a route was removed.
+     */
+    public boolean removeRoute(final HttpMethod method, final String path) {
+        return this.routeTable.removeRoute(method, path);
+    }
+
+
+    /**
+     * Returns the route table.
+     *
+     * The table may be inspected at runtime, for example to report the
+     * route ranking from an admin endpoint.
+     *
+     * @return The route table.
+     */
+    public RouteTable getRouteTable() {
+        return this.routeTable;
+    }
+
+
+    /**
+     * Sets the executor for routes with Execution.WORKER.
+     *
+     * By default a pool of 64 daemon threads with a queue of 1024 requests
+     * is created on first use.  Requests that the executor rejects are
+     * answered with 503 Service Unavailable.
+     *
+     * @param workerPool The worker executor.
+     * @return This WebServer.
+     */
+    public synchronized WebServer workerPool(final ExecutorService workerPool) {
+        this.workerPool = workerPool;
+        return this;
+    }
+
+
+    /**
+     * Enables response compression.
+     *
+     * Compression is off by default.  Responses are compressed with gzip or
+     * deflate when the client accepts it and the settings allow it.  While
+     * the server runs, the event loop load is sampled every second and the
+     * compression level is adjusted to it.
+     *
+     * @param compression The compression settings, or null to disable compression.
+     * @return This WebServer.
+     */
+    public WebServer compression(final Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+
+    /**
+     * Sets the budget of the response cache, dropping every cached response.
+     *
+     * Only routes registered with RouteOptions.cache use the cache.  The
+     * default budget is 64MB of off-heap memory, which is only taken up as
+     * responses are cached.
+     *
+     * @param maxBytes The total number of bytes to keep cached.
+     * @return This WebServer.
+     */
+    public WebServer responseCache(final long maxBytes) {
+        final ResponseCache previous = this.responseCache;
+        this.responseCache = new ResponseCache(maxBytes);
+        previous.clear();
+        return this;
+    }
+
+
+    /**
+     * Returns the response cache.
+     *
+     * @return The response cache.
+     */
+    ResponseCache responseCache() {
+        return responseCache;
+    }
+
+
+    /**
+     * Returns the requests in flight on coalesced routes.
+     *
+     * @return The single flight registry.
+     */
+    SingleFlight singleFlight() {
+        return singleFlight;
+    }
+
+
+    /**
+     * Returns the response encoder for a request.
+     *
+     * @param headers The request headers.
+     * @return The encoder, or null if compression is off.
+     */
+    ContentEncoder encoder(final HttpHeaders headers) {
+        final Compression compression = this.compression;
+        if (compression == null) {
+            return null;
+        }
+        return compression.encoder(
+                headers.get(HttpHeaderNames.ACCEPT_ENCODING),
+                headers.get(Compression.DICTIONARY_ID));
+    }
+
+
+    /**
+     * Returns the executor for an offloaded execution mode, creating it on
+     * first use.
+     *
+     * Virtual threads are created through reflection so that the server
+     * still runs on JDKs without them, where the worker pool is used instead.
+     *
+     * @param execution The execution mode.
+     * @return The executor.
+     */
+    synchronized Executor executor(final Execution execution) {
+        if (execution == Execution.VIRTUAL_THREAD) {
+            if (virtualThreads == null) {
+                virtualThreads = newVirtualThreadExecutor();
+            }
+            if (virtualThreads != null) {
+                return virtualThreads;
+            }
+        }
+
+        if (workerPool == null) {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    WORKER_THREADS,
+                    WORKER_THREADS,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(WORKER_QUEUE_SIZE),
+                    daemonThreadFactory("web-server-worker-"));
+            pool.allowCoreThreadTimeOut(true);
+            workerPool = pool;
+        }
+        return workerPool;
+    }
+
+
+    /**
+     * Creates a virtual-thread-per-task executor.
+     *
+     * @return The executor, or null if the JDK has no virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (final ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Shuts down the handler executors.  Handlers that are still running
+     * are allowed to finish.
+     */
+    private synchronized void shutdownExecutors() {
+        if (workerPool != null) {
+            workerPool.shutdown();
+        }
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+    }
+
+
+    /**
+     * Closes the file caches of static file routes, which stops their
+     * watcher threads.
+     */
+    private void closeStaticFiles() {
+        for (final Route route : routeTable.getRoutes()) {
+            if (route.getHandler() instanceof StaticFiles) {
+                ((StaticFiles) route.getHandler()).close();
+            }
+        }
+    }
+
+
+    /**
+     * Returns a factory for named daemon threads.
+     *
+     * @param prefix The thread name prefix.
+     * @return The thread factory.
+     */
+    private static ThreadFactory daemonThreadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+
     /**
      * Starts the web server.
      *
@@ -109,6 +409,12 @@ private void start(
             final Class<? extends ServerChannel> serverChannelClass)
                     throws InterruptedException {
 
+        final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "web-server-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         try {
             final InetSocketAddress inet = new InetSocketAddress(port);
 
@@ -122,9 +428,29 @@ private void start(
             b.childOption(ChannelOption.MAX_MESSAGES_PER_READ, Integer.MAX_VALUE);
 
             final Channel ch = b.bind(inet).sync().channel();
+
+            // Adapt the compression level to the event loop load.
+            final LoadMonitor load = new LoadMonitor(loopGroup);
+            if (load.isSupported()) {
+                maintenance.scheduleAtFixedRate(
+                        () -> {
+                            final double sample = load.sample();
+                            final Compression compression = this.compression;
+                            if (compression != null) {
+                                compression.adjust(sample);
+                            }
+                        },
+                        LOAD_SAMPLE_INTERVAL_MILLIS,
+                        LOAD_SAMPLE_INTERVAL_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+
             ch.closeFuture().sync();
 
         } finally {
+            maintenance.shutdownNow();
+            shutdownExecutors();
+            closeStaticFiles();
             loopGroup.shutdownGracefully().sync();
         }
     }
@@ -142,203 +468,79 @@ private class WebServerInitializer extends ChannelInitializer<SocketChannel> {
          */
         @Override
         public void initChannel(SocketChannel ch) throws Exception {
-            final ChannelPipeline p = ch.pipeline();
-            p.addLast("decoder", new HttpRequestDecoder(4096, 8192, 8192, false));
-            p.addLast("aggregator", new HttpObjectAggregator(100 * 1024 * 1024));
-            p.addLast("encoder", new HttpResponseEncoder());
-            p.addLast("handler", new WebServerHandler());
+            initPipeline(ch.pipeline());
         }
     }
 
 
     /**
-     * The Handler class handles all inbound channel messages.
-     */
-    private class WebServerHandler extends SimpleChannelInboundHandler<Object> {
-
-        /**
-         * Handles a new message.
-         *
-         * @param ctx The channel context.
-         * @param msg The HTTP request message.
-         */
-        @Override
-        public void messageReceived(final ChannelHandlerContext ctx, final Object msg) {
-            if (!(msg instanceof FullHttpRequest)) {
-                return;
-            }
-
-            final FullHttpRequest request = (FullHttpRequest) msg;
-
-            if (HttpHeaderUtil.is100ContinueExpected(request)) {
-                send100Continue(ctx);
-            }
-
-            final HttpMethod method = request.method();
-            final String uri = request.uri();
-
-            final Route route = WebServer.this.routeTable.findRoute(method, uri);
-            if (route == null) {
-                writeNotFound(ctx, request);
-                return;
-            }
-
-            try {
-                final Request requestWrapper = new Request(request);
-                final Object obj = route.getHandler().handle(requestWrapper, null);
-                final String content = obj == null ? "" : obj.toString();
-                writeResponse(ctx, request, HttpResponseStatus.OK, TYPE_PLAIN, content);
-            } catch (final Exception ex) {
-                ex.printStackTrace();
-                writeInternalServerError(ctx, request);
-            }
-        }
-
-
-        /**
-         * Handles an exception caught.  Closes the context.
-         *
-         * @param ctx The channel context.
-         * @param cause The exception.
-         */
-        @Override
-        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
-            ctx.close();
-        }
-
-
-        /**
-         * Handles read complete event.  Flushes the context.
-         *
-         * @param ctx The channel context.
-         */
-        @Override
-        public void channelReadComplete(final ChannelHandlerContext ctx) {
-            ctx.flush();
-        }
-    }
-
-
-    /**
-     * Writes a 404 Not Found response.
+     * Adds the HTTP codec and request handlers to a channel pipeline.
      *
-     * @param ctx The channel context.
-     * @param request The HTTP request.
+     * @param p The channel pipeline.
      */
-    private static void writeNotFound(
-            final ChannelHandlerContext ctx,
-            final FullHttpRequest request) {
-
-        writeErrorResponse(ctx, request, HttpResponseStatus.NOT_FOUND);
+    void initPipeline(final ChannelPipeline p) {
+        p.addLast("decoder", new HttpRequestDecoder(4096, 8192, 8192, false));
+        p.addLast("aggregator", new StreamingAggregator(routeTable, 100 * 1024 * 1024));
+        p.addLast("encoder", new ResponseEncoder());
+        p.addLast("handler", new WebServerHandler(this));
     }
 
 
     /**
-     * Writes a 500 Internal Server Error response.
+     * Converts a handler's return value into a response body buffer.
      *
-     * @param ctx The channel context.
-     * @param request The HTTP request.
-     */
-    private static void writeInternalServerError(
-            final ChannelHandlerContext ctx,
-            final FullHttpRequest request) {
-
-        writeErrorResponse(ctx, request, HttpResponseStatus.INTERNAL_SERVER_ERROR);
-    }
-
-
-    /**
-     * Writes a HTTP error response.
+     * byte[], ByteBuffer and ByteBuf results are used as the body without
+     * copying; ownership of a returned ByteBuf passes to the server.  Any
+     * other value is converted to a CharSequence and UTF-8 encoded once,
+     * straight into a pooled direct buffer of the exact size.
      *
-     * @param ctx The channel context.
-     * @param request The HTTP request.
-     * @param status The error status.
+     * @param alloc The channel's allocator.
+     * @param obj The handler's return value.
+     * @return The body buffer.
      */
-    private static void writeErrorResponse(
-            final ChannelHandlerContext ctx,
-            final FullHttpRequest request,
-            final HttpResponseStatus status) {
-
-        writeResponse(ctx, request, status, TYPE_PLAIN, status.reasonPhrase().toString());
-    }
-
+    static ByteBuf toContent(final ByteBufAllocator alloc, final Object obj) {
+        if (obj instanceof ByteBuf) {
+            return (ByteBuf) obj;
+        }
+        if (obj instanceof byte[]) {
+            return Unpooled.wrappedBuffer((byte[]) obj);
+        }
+        if (obj instanceof ByteBuffer) {
+            return Unpooled.wrappedBuffer((ByteBuffer) obj);
+        }
 
-    /**
-     * Writes a HTTP response.
-     *
-     * @param ctx The channel context.
-     * @param request The HTTP request.
-     * @param status The HTTP status code.
-     * @param contentType The response content type.
-     * @param content The response content.
-     */
-    private static void writeResponse(
-            final ChannelHandlerContext ctx,
-            final FullHttpRequest request,
-            final HttpResponseStatus status,
-            final CharSequence contentType,
-            final String content) {
-
-        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
-        final ByteBuf entity = Unpooled.wrappedBuffer(bytes);
-        writeResponse(ctx, request, status, entity, contentType, bytes.length);
+        final CharSequence text = obj instanceof CharSequence ? (CharSequence) obj : obj.toString();
+        final ByteBuf buf = alloc.directBuffer(utf8Length(text));
+        ByteBufUtil.writeUtf8(buf, text);
+        return buf;
     }
 
 
     /**
-     * Writes a HTTP response.
+     * Returns the number of bytes needed to UTF-8 encode a CharSequence.
      *
-     * @param ctx The channel context.
-     * @param request The HTTP request.
-     * @param status The HTTP status code.
-     * @param buf The response content buffer.
-     * @param contentType The response content type.
-     * @param contentLength The response content length;
+     * @param text The text.
+     * @return The encoded length in bytes.
      */
-    private static void writeResponse(
-            final ChannelHandlerContext ctx,
-            final FullHttpRequest request,
-            final HttpResponseStatus status,
-            final ByteBuf buf,
-            final CharSequence contentType,
-            final int contentLength) {
-
-        // Decide whether to close the connection or not.
-        final boolean keepAlive = HttpHeaderUtil.isKeepAlive(request);
-
-        // Build the response object.
-        final FullHttpResponse response = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1,
-                status,
-                buf,
-                false);
-
-        final ZonedDateTime dateTime = ZonedDateTime.now();
-        final DateTimeFormatter formatter = DateTimeFormatter.RFC_1123_DATE_TIME;
-
-        final DefaultHttpHeaders headers = (DefaultHttpHeaders) response.headers();
-        headers.set(HttpHeaderNames.SERVER, SERVER_NAME);
-        headers.set(HttpHeaderNames.DATE, dateTime.format(formatter));
-        headers.set(HttpHeaderNames.CONTENT_TYPE, contentType);
-        headers.set(HttpHeaderNames.CONTENT_LENGTH, Integer.toString(contentLength));
-
-        // Close the non-keep-alive connection after the write operation is done.
-        if (!keepAlive) {
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-        } else {
-            ctx.writeAndFlush(response, ctx.voidPromise());
+    static int utf8Length(final CharSequence text) {
+        final int length = text.length();
+        int bytes = length;
+
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            } else if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 2;
+                i++;
+            } else {
+                bytes += 2;
+            }
         }
-    }
-
 
-    /**
-     * Writes a 100 Continue response.
-     *
-     * @param ctx The HTTP handler context.
-     */
-    private static void send100Continue(final ChannelHandlerContext ctx) {
-        ctx.write(new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1,
-                HttpResponseStatus.CONTINUE));
+        return bytes;
     }
-}
\ No newline at end of file
+}
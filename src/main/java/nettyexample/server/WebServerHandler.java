@@ -0,0 +1,1260 @@
+package nettyexample.server;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderUtil;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+
+/**
+ * The WebServerHandler class handles all inbound messages of one channel.
+ *
+ * Handlers run on the event loop unless their route asks for another
+ * Execution.  Offloaded handlers run on the server's executor and their
+ * responses are handed back to the event loop for writing.  Responses are
+ * always written in request order: while an offloaded request is pending,
+ * later responses on the same connection wait in a queue behind it.  The
+ * same queue holds the place of handlers that returned a CompletionStage.
+ *
+ * A ChunkedBody result is written chunk by chunk while the channel is
+ * writable, and resumed from channelWritabilityChanged; later responses
+ * wait until its last chunk has been written.
+ *
+ * When the server has a Compression, each request's Accept-Encoding picks
+ * a ContentEncoder, which is applied to the rendered response on the same
+ * thread that rendered it.
+ *
+ * GET routes with a cache time to live are looked up in the server's
+ * ResponseCache before their handler runs.  On a miss, a cacheable
+ * response is encoded into a CachedResponse, stored, and written.  A
+ * stale hit is written as well, and the first request to see it starts a
+ * refresh on the worker executor.
+ *
+ * Requests to a coalesced route wait for an identical request that is
+ * already being handled, on any channel, and are sent its response.
+ *
+ * Requests for a path that is remembered as matching no route are
+ * answered with the pre-encoded 404 before the router is consulted.
+ *
+ * A conditional GET whose validators match the response's ETag or
+ * Last-Modified is answered with 304 Not Modified; on a cache hit the
+ * handler is not called at all.
+ */
+final class WebServerHandler extends SimpleChannelInboundHandler<Object> {
+    private final WebServer server;
+    private final ArrayDeque<PendingResponse> pending;
+    private BodyStream stream;
+    private ChunkedResponse writing;
+    private boolean writingKeepAlive;
+    private boolean inWriteLoop;
+
+
+    /**
+     * Creates a new WebServerHandler.
+     *
+     * @param server The web server.
+     */
+    WebServerHandler(final WebServer server) {
+        this.server = server;
+        this.pending = new ArrayDeque<PendingResponse>();
+    }
+
+
+    /**
+     * Handles a new message.
+     *
+     * @param ctx The channel context.
+     * @param msg The HTTP request message.
+     */
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, final Object msg) {
+        if (msg instanceof FullHttpRequest) {
+            handleRequest(ctx, (FullHttpRequest) msg);
+        } else if (msg instanceof HttpRequest) {
+            startStream(ctx, (HttpRequest) msg);
+        } else if (msg instanceof HttpContent) {
+            streamContent(ctx, (HttpContent) msg);
+        }
+    }
+
+
+    /**
+     * Handles an aggregated request.
+     *
+     * @param ctx The channel context.
+     * @param request The HTTP request.
+     */
+    private void handleRequest(final ChannelHandlerContext ctx, final FullHttpRequest request) {
+        if (HttpHeaderUtil.is100ContinueExpected(request)) {
+            send100Continue(ctx);
+        }
+
+        final boolean keepAlive = HttpHeaderUtil.isKeepAlive(request);
+
+        final RouteMatch match = server.getRouteTable().findRoute(request.method(), request.uri());
+        if (match == null) {
+            respond(ctx, keepAlive, PreEncodedResponse.error(HttpResponseStatus.NOT_FOUND));
+            return;
+        }
+
+        final Route route = match.getRoute();
+        final ContentEncoder encoder = server.encoder(request.headers());
+
+        final PreEncodedResponse constant = route.getConstantResponse();
+        if (constant != null) {
+            respond(ctx, keepAlive, encoder == null ? constant : encoder.encode(ctx.alloc(), constant));
+            return;
+        }
+
+        if (route.isStreaming()) {
+            // The route became a streaming route while the body was aggregated.
+            startStream(ctx, request);
+            streamContent(ctx, request);
+            return;
+        }
+
+        final String cacheKey = cacheKey(request, route, encoder);
+        if (cacheKey != null && route.getCacheTtlNanos() > 0) {
+            final long now = System.nanoTime();
+            final CachedResponse cached = server.responseCache().get(cacheKey, now);
+            if (cached != null) {
+                if (cached.isStale(now) && cached.startRefresh()) {
+                    refresh(ctx, request, match, encoder, cacheKey, cached);
+                }
+                respond(ctx, keepAlive, conditional(ctx, request, cached));
+                return;
+            }
+        }
+
+        SingleFlight.Flight flight = null;
+        if (cacheKey != null && route.isCoalesced()) {
+            flight = join(ctx, request, match, keepAlive, encoder, cacheKey);
+            if (flight == null) {
+                return;
+            }
+        }
+
+        if (route.getExecution() != Execution.EVENT_LOOP) {
+            offload(ctx, request, match, keepAlive, encoder, cacheKey, flight);
+            return;
+        }
+
+        final Object response = conditional(
+                ctx,
+                request,
+                share(flight, store(cacheKey, route, invoke(ctx, request, match, encoder))));
+        if (response instanceof CompletionStage) {
+            defer(ctx, request, (CompletionStage<?>) response, keepAlive);
+        } else {
+            respond(ctx, keepAlive, response);
+        }
+    }
+
+
+    /**
+     * Returns the response cache key of a request, which also identifies
+     * identical requests to a coalesced route.
+     *
+     * @param request The HTTP request.
+     * @param route The matched route.
+     * @param encoder The response encoder, or null if compression is off.
+     * @return The key, or null if the route is neither cached nor coalesced.
+     */
+    private static String cacheKey(
+            final FullHttpRequest request,
+            final Route route,
+            final ContentEncoder encoder) {
+
+        if ((route.getCacheTtlNanos() == 0 && !route.isCoalesced()) || !HttpMethod.GET.equals(request.method())) {
+            return null;
+        }
+        return ResponseCache.key(
+                request.method().name(),
+                request.uri(),
+                request.headers(),
+                route.getCacheKeyHeaders(),
+                encoder == null ? ContentCoding.IDENTITY : encoder.coding());
+    }
+
+
+    /**
+     * Stores a handler's response in the response cache, if it is
+     * cacheable.  May be called from any thread.
+     *
+     * A coalesced route without a time to live has a key but is not
+     * cached, so its responses are not stored.
+     *
+     * @param key The cache key, or null if the route is not cached.
+     * @param route The matched route.
+     * @param result The HTTP response, PreEncodedResponse, or a CompletionStage of either.
+     * @return The response to write, which is a CachedResponse if it was cacheable.
+     */
+    private Object store(final String key, final Route route, final Object result) {
+        return store(key, route, result, null);
+    }
+
+
+    /**
+     * Stores a handler's response in the response cache, if it is
+     * cacheable.  May be called from any thread.
+     *
+     * @param key The cache key, or null if the route is not cached.
+     * @param route The matched route.
+     * @param result The HTTP response, PreEncodedResponse, or a CompletionStage of either.
+     * @param stale The stale entry this response refreshes, or null.  Its
+     *              refresh is given up if the cache rejects the response,
+     *              so that a later request tries again.
+     * @return The response to write, which is a CachedResponse if it was cacheable.
+     */
+    private Object store(final String key, final Route route, final Object result, final CachedResponse stale) {
+        if (key == null || route.getCacheTtlNanos() == 0) {
+            return result;
+        }
+        if (result instanceof CompletionStage) {
+            return ((CompletionStage<?>) result).thenApply(response -> store(key, route, response, stale));
+        }
+        if (!ResponseCache.isCacheable(result)) {
+            return result;
+        }
+
+        final FullHttpResponse full = (FullHttpResponse) result;
+        final long staleAt = System.nanoTime() + route.getCacheTtlNanos();
+        final CachedResponse cached = new CachedResponse(full, staleAt, staleAt + route.getCacheStaleNanos());
+        full.release();
+        if (!server.responseCache().put(key, cached) && stale != null) {
+            stale.refreshFailed();
+        }
+        return cached;
+    }
+
+
+    /**
+     * Joins the flight of an identical request to a coalesced route, or
+     * starts one.
+     *
+     * A follower's response slot is queued straight away.  It is filled
+     * with the leader's shared response, or if that cannot be shared, with
+     * the response of a handler call of its own.
+     *
+     * @param ctx The channel context.
+     * @param request The HTTP request.
+     * @param match The route match.
+     * @param keepAlive True if the connection stays open after the response.
+     * @param encoder The response encoder, or null if compression is off.
+     * @param key The request key.
+     * @return The new flight if this request leads it, or null if it follows.
+     */
+    private SingleFlight.Flight join(
+            final ChannelHandlerContext ctx,
+            final FullHttpRequest request,
+            final RouteMatch match,
+            final boolean keepAlive,
+            final ContentEncoder encoder,
+            final String key) {
+
+        final PendingResponse slot = new PendingResponse(keepAlive);
+        request.retain();
+        final SingleFlight.Flight flight = server.singleFlight().join(key, shared -> {
+            if (shared != null) {
+                final Object response = conditional(ctx, request, ReferenceCountUtil.retain(shared));
+                request.release();
+                complete(ctx, slot, response);
+            } else {
+                rerun(ctx, request, match, encoder, key, slot);
+            }
+        });
+
+        if (flight != null) {
+            request.release();
+        } else {
+            // Completions are always scheduled on the event loop, so the
+            // slot is queued before the follower can fill it.
+            pending.add(slot);
+        }
+        return flight;
+    }
+
+
+    /**
+     * Calls the handler for a follower whose leader's response could not
+     * be shared.
+     *
+     * @param ctx The channel context.
+     * @param request The retained HTTP request; released when done.
+     * @param match The route match.
+     * @param encoder The response encoder, or null if compression is off.
+     * @param key The request key.
+     * @param slot The follower's pending response.
+     */
+    private void rerun(
+            final ChannelHandlerContext ctx,
+            final FullHttpRequest request,
+            final RouteMatch match,
+            final ContentEncoder encoder,
+            final String key,
+            final PendingResponse slot) {
+
+        final Route route = match.getRoute();
+        final Executor executor = route.getExecution() == Execution.EVENT_LOOP
+                ? ctx.executor()
+                : server.executor(route.getExecution());
+        try {
+            executor.execute(() -> settle(
+                    ctx,
+                    request,
+                    slot,
+                    conditional(ctx, request, store(key, route, invoke(ctx, request, match, encoder)))));
+        } catch (final RejectedExecutionException ex) {
+            request.release();
+            complete(ctx, slot, PreEncodedResponse.error(HttpResponseStatus.SERVICE_UNAVAILABLE));
+        }
+    }
+
+
+    /**
+     * Hands a leader's response to the followers of its flight.  May be
+     * called from any thread.
+     *
+     * A complete response without cookies is encoded into a CachedResponse
+     * unless it already is one, so that every follower can write a
+     * retained reference to the same buffers.
+     *
+     * @param flight The flight led by the request, or null if it is not coalesced.
+     * @param result The HTTP response, PreEncodedResponse, or a CompletionStage of either.
+     * @return The response to write for the leader.
+     */
+    private Object share(final SingleFlight.Flight flight, final Object result) {
+        if (flight == null) {
+            return result;
+        }
+        if (result instanceof CompletionStage) {
+            return ((CompletionStage<?>) result).handle(
+                    (response, error) -> share(flight, response != null ? response : failure(error)));
+        }
+
+        Object shared = result;
+        if (result instanceof FullHttpResponse
+                && !((FullHttpResponse) result).headers().contains(HttpHeaderNames.SET_COOKIE)) {
+            final FullHttpResponse full = (FullHttpResponse) result;
+            shared = new CachedResponse(full, 0, 0);
+            full.release();
+        }
+
+        final boolean shareable = shared instanceof CachedResponse || shared instanceof PreEncodedResponse;
+        server.singleFlight().land(flight, shareable ? shared : null);
+        return shared;
+    }
+
+
+    /**
+     * Replaces a response with 304 Not Modified if the request is a
+     * conditional GET that its validators match.  May be called from any
+     * thread.
+     *
+     * @param ctx The channel context.
+     * @param request The HTTP request.
+     * @param result The HTTP response, CachedResponse, or a CompletionStage of either.
+     * @return The response to write.
+     */
+    private static Object conditional(final ChannelHandlerContext ctx, final FullHttpRequest request, final Object result) {
+        if (!HttpMethod.GET.equals(request.method()) || !ConditionalGet.isConditional(request.headers())) {
+            return result;
+        }
+        if (result instanceof CompletionStage) {
+            return ((CompletionStage<?>) result).thenApply(response -> conditional(ctx, request, response));
+        }
+
+        final HttpHeaders validators;
+        if (result instanceof CachedResponse) {
+            validators = ((CachedResponse) result).validators();
+        } else if (result instanceof FullHttpResponse
+                && ((FullHttpResponse) result).status().code() == HttpResponseStatus.OK.code()) {
+            validators = ((FullHttpResponse) result).headers();
+        } else {
+            return result;
+        }
+
+        if (!ConditionalGet.isNotModified(
+                request.headers(),
+                validators.get(HttpHeaderNames.ETAG),
+                validators.get(HttpHeaderNames.LAST_MODIFIED))) {
+            return result;
+        }
+
+        final FullHttpResponse notModified = ConditionalGet.notModified(
+                ctx.executor(),
+                result instanceof CachedResponse ? validators : ConditionalGet.validators(validators));
+        ReferenceCountUtil.release(result);
+        return notModified;
+    }
+
+
+    /**
+     * Runs a cached route's handler on the worker executor to replace a
+     * stale entry.  The response is stored but not written; if it cannot
+     * be stored, the entry may be refreshed again by a later request.
+     *
+     * @param ctx The channel context.
+     * @param request The HTTP request; a copy is passed to the handler.
+     * @param match The route match.
+     * @param encoder The response encoder, or null if compression is off.
+     * @param key The cache key.
+     * @param stale The stale entry.
+     */
+    private void refresh(
+            final ChannelHandlerContext ctx,
+            final FullHttpRequest request,
+            final RouteMatch match,
+            final ContentEncoder encoder,
+            final String key,
+            final CachedResponse stale) {
+
+        final FullHttpRequest copy = request.copy();
+        try {
+            server.executor(Execution.WORKER).execute(() -> {
+                final Object result = store(key, match.getRoute(), invoke(ctx, copy, match, encoder), stale);
+                if (result instanceof CompletionStage) {
+                    ((CompletionStage<?>) result).whenComplete((response, error) -> refreshed(copy, stale, response));
+                } else {
+                    refreshed(copy, stale, result);
+                }
+            });
+        } catch (final RejectedExecutionException ex) {
+            copy.release();
+            stale.refreshFailed();
+        }
+    }
+
+
+    /**
+     * Finishes a background refresh.
+     *
+     * @param request The copied HTTP request.
+     * @param stale The stale entry.
+     * @param response The refreshed response, or null if it failed.
+     */
+    private static void refreshed(final FullHttpRequest request, final CachedResponse stale, final Object response) {
+        request.release();
+        if (!(response instanceof CachedResponse)) {
+            stale.refreshFailed();
+        }
+        discard(response);
+    }
+
+
+    /**
+     * Handles an exception caught.  Closes the context.
+     *
+     * @param ctx The channel context.
+     * @param cause The exception.
+     */
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+        ctx.close();
+    }
+
+
+    /**
+     * Handles read complete event.  Flushes the context.
+     *
+     * @param ctx The channel context.
+     */
+    @Override
+    public void channelReadComplete(final ChannelHandlerContext ctx) {
+        ctx.flush();
+    }
+
+
+    /**
+     * Handles writability changed event.  Resumes a chunked response once
+     * the client has caught up.
+     *
+     * @param ctx The channel context.
+     */
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        if (writing != null && ctx.channel().isWritable()) {
+            writeChunks(ctx);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+
+    /**
+     * Handles channel inactive event.  Releases responses that are still
+     * waiting for an earlier response.
+     *
+     * @param ctx The channel context.
+     */
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        for (final PendingResponse response : pending) {
+            discard(response.message);
+        }
+        pending.clear();
+        if (writing != null) {
+            writing.close();
+            writing = null;
+        }
+        if (stream != null) {
+            stream.response.release();
+            stream = null;
+        }
+        super.channelInactive(ctx);
+    }
+
+
+    /**
+     * Runs a route's handler and builds the HTTP response.
+     *
+     * This may be called on any thread; it only touches the request, the
+     * allocator, and the handler.  If the handler returns a CompletionStage
+     * the response is built when the stage completes, and a stage of the
+     * response is returned instead.
+     *
+     * @param ctx The channel context.
+     * @param request The HTTP request.
+     * @param match The route match.
+     * @param encoder The response encoder, or null if compression is off.
+     * @return The HTTP response, PreEncodedResponse, or a CompletionStage of either.
+     */
+    private static Object invoke(
+            final ChannelHandlerContext ctx,
+            final FullHttpRequest request,
+            final RouteMatch match,
+            final ContentEncoder encoder) {
+
+        final Response response = new Response(ctx.alloc());
+        response.computeETag(match.getRoute().isETag());
+        final Request requestWrapper = new Request(request, match.getParams());
+        return invoke(ctx, response, () -> match.getRoute().getHandler().handle(requestWrapper, response), encoder);
+    }
+
+
+    /**
+     * Calls a handler and builds the HTTP response from its result.
+     *
+     * @param ctx The channel context.
+     * @param response The handler's response.
+     * @param handler The handler call.
+     * @param encoder The response encoder, or null if compression is off.
+     * @return The HTTP response, PreEncodedResponse, or a CompletionStage of either.
+     */
+    private static Object invoke(
+            final ChannelHandlerContext ctx,
+            final Response response,
+            final Callable<?> handler,
+            final ContentEncoder encoder) {
+
+        try {
+            final Object obj = handler.call();
+            if (obj instanceof CompletionStage) {
+                return ((CompletionStage<?>) obj).handle((value, error) -> render(ctx, response, value, error, encoder));
+            }
+            return render(ctx, response, obj, null, encoder);
+        } catch (final Exception ex) {
+            return render(ctx, response, null, ex, encoder);
+        }
+    }
+
+
+    /**
+     * Builds the HTTP response from a handler's result, compressed if the
+     * request allows it.
+     *
+     * @param ctx The channel context.
+     * @param response The handler's response.
+     * @param obj The handler's return value, or null.
+     * @param error The handler's failure, or null.
+     * @param encoder The response encoder, or null if compression is off.
+     * @return The HTTP response or PreEncodedResponse.
+     */
+    private static Object render(
+            final ChannelHandlerContext ctx,
+            final Response response,
+            final Object obj,
+            final Throwable error,
+            final ContentEncoder encoder) {
+
+        if (error == null) {
+            try {
+                final Object rendered = render(ctx, response, obj, encoder);
+                return encoder == null ? rendered : encoder.encode(ctx.alloc(), response, rendered);
+            } catch (final RuntimeException ex) {
+                return render(ctx, response, null, ex, encoder);
+            }
+        }
+
+        response.release();
+        error.printStackTrace();
+        return PreEncodedResponse.error(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+    }
+
+
+    /**
+     * Builds the uncompressed HTTP response from a handler's return value.
+     *
+     * A file that will be compressed is read into buffers rather than sent
+     * with a FileRegion, since its bytes must pass through the encoder.
+     *
+     * @param ctx The channel context.
+     * @param response The handler's response.
+     * @param obj The handler's return value, or null.
+     * @param encoder The response encoder, or null if compression is off.
+     * @return The HTTP response, PreEncodedResponse, ChunkedResponse, or FileResponse.
+     */
+    private static Object render(
+            final ChannelHandlerContext ctx,
+            final Response response,
+            final Object obj,
+            final ContentEncoder encoder) {
+
+        if (obj instanceof PreEncodedResponse) {
+            response.release();
+            return obj;
+        }
+        if (obj instanceof FileContent) {
+            final FileContent file = (FileContent) obj;
+            if (encoder != null && encoder.compresses(response, file.length())) {
+                return newChunkedResponse(ctx.executor(), response, new FileBody(file));
+            }
+            return newFileResponse(ctx.executor(), response, file);
+        }
+        if (obj instanceof ChunkedBody) {
+            return newChunkedResponse(ctx.executor(), response, (ChunkedBody) obj);
+        }
+        if (isContent(obj)) {
+            response.append(WebServer.toContent(ctx.alloc(), obj));
+            return newResponse(ctx.executor(), response);
+        }
+        final NdjsonBody elements = NdjsonBody.of(obj);
+        if (elements != null) {
+            if (!response.hasContentType()) {
+                response.contentType(WebServer.TYPE_NDJSON);
+            }
+            return newChunkedResponse(ctx.executor(), response, elements);
+        }
+        if (obj != null) {
+            response.append(WebServer.toContent(ctx.alloc(), obj));
+        }
+        return newResponse(ctx.executor(), response);
+    }
+
+
+    /**
+     * Returns true if a handler's return value is a single body even though
+     * it may also be Iterable, like a CompositeByteBuf or a Path.
+     *
+     * @param obj The handler's return value, or null.
+     * @return True if the value is sent as one body.
+     */
+    private static boolean isContent(final Object obj) {
+        return obj instanceof ByteBuf
+                || obj instanceof byte[]
+                || obj instanceof ByteBuffer
+                || obj instanceof CharSequence
+                || obj instanceof Path;
+    }
+
+
+    /**
+     * Waits for an asynchronous response without blocking the event loop.
+     *
+     * @param ctx The channel context.
+     * @param request The HTTP request, retained until the stage completes.
+     * @param stage The pending response.
+     * @param keepAlive True if the connection stays open after the response.
+     */
+    private void defer(
+            final ChannelHandlerContext ctx,
+            final FullHttpRequest request,
+            final CompletionStage<?> stage,
+            final boolean keepAlive) {
+
+        final PendingResponse slot = new PendingResponse(keepAlive);
+        pending.add(slot);
+        request.retain();
+        settle(ctx, request, slot, stage);
+    }
+
+
+    /**
+     * Completes a pending slot with a handler's result once it is
+     * available, then releases the request.
+     *
+     * @param ctx The channel context.
+     * @param request The retained HTTP request.
+     * @param slot The pending response.
+     * @param result The HTTP response, PreEncodedResponse, or a CompletionStage of either.
+     */
+    private void settle(
+            final ChannelHandlerContext ctx,
+            final FullHttpRequest request,
+            final PendingResponse slot,
+            final Object result) {
+
+        if (result instanceof CompletionStage) {
+            ((CompletionStage<?>) result).whenComplete((response, error) -> {
+                request.release();
+                complete(ctx, slot, response != null ? response : failure(error));
+            });
+        } else {
+            request.release();
+            complete(ctx, slot, result != null ? result : failure(null));
+        }
+    }
+
+
+    /**
+     * Returns the response for a result that produced no response, because
+     * a step after the handler failed or returned null.  The pending slot
+     * must still be filled, or every later response on the connection
+     * would wait behind it.
+     *
+     * @param error The failure, or null.
+     * @return A 500 Internal Server Error response.
+     */
+    private static Object failure(final Throwable error) {
+        if (error != null) {
+            error.printStackTrace();
+        }
+        return PreEncodedResponse.error(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+    }
+
+
+    /**
+     * Starts a streaming request when its headers arrive.
+     *
+     * The streaming handler is called with a Request whose body is empty,
+     * and the BodyConsumer it returns receives the chunks that follow.
+     *
+     * @param ctx The channel context.
+     * @param head The HTTP request headers.
+     */
+    private void startStream(final ChannelHandlerContext ctx, final HttpRequest head) {
+        if (HttpHeaderUtil.is100ContinueExpected(head)) {
+            send100Continue(ctx);
+        }
+
+        final boolean keepAlive = HttpHeaderUtil.isKeepAlive(head);
+
+        final RouteMatch match = server.getRouteTable().findRoute(head.method(), head.uri());
+        if (match == null || !match.getRoute().isStreaming()) {
+            // The route was removed or replaced since the aggregator saw it.
+            respond(ctx, keepAlive, PreEncodedResponse.error(HttpResponseStatus.NOT_FOUND));
+            return;
+        }
+
+        final FullHttpRequest request = new DefaultFullHttpRequest(
+                head.protocolVersion(),
+                head.method(),
+                head.uri(),
+                Unpooled.EMPTY_BUFFER,
+                false);
+        request.headers().set(head.headers());
+
+        final BodyStream stream = new BodyStream(
+                request,
+                new Response(ctx.alloc()),
+                keepAlive,
+                server.encoder(head.headers()));
+        try {
+            stream.consumer = match.getRoute().getStreamingHandler().handle(
+                    new Request(request, match.getParams()),
+                    stream.response);
+        } catch (final Exception ex) {
+            stream.failure = ex;
+        }
+        this.stream = stream;
+    }
+
+
+    /**
+     * Passes a chunk of a streaming request body to its consumer, and
+     * writes the response after the last chunk.
+     *
+     * A consumer that fails receives no further chunks; the client gets
+     * 500 once the whole body has been read.
+     *
+     * @param ctx The channel context.
+     * @param content The body chunk.
+     */
+    private void streamContent(final ChannelHandlerContext ctx, final HttpContent content) {
+        final BodyStream stream = this.stream;
+        if (stream == null) {
+            return;
+        }
+
+        if (stream.failure == null && content.content().isReadable()) {
+            try {
+                stream.consumer.content(content.content());
+            } catch (final Exception ex) {
+                stream.failure = ex;
+            }
+        }
+
+        if (!(content instanceof LastHttpContent)) {
+            return;
+        }
+
+        this.stream = null;
+
+        final Object response = invoke(ctx, stream.response, () -> {
+            if (stream.failure != null) {
+                throw stream.failure;
+            }
+            return stream.consumer.complete();
+        }, stream.encoder);
+
+        if (response instanceof CompletionStage) {
+            defer(ctx, stream.request, (CompletionStage<?>) response, stream.keepAlive);
+        } else {
+            respond(ctx, stream.keepAlive, response);
+        }
+    }
+
+
+    /**
+     * Runs a route's handler off the event loop.
+     *
+     * The request is retained until the handler's response is complete,
+     * and the response is written back on the channel's event loop in
+     * request order.  If the executor is saturated the request is answered
+     * with 503.
+     *
+     * @param ctx The channel context.
+     * @param request The HTTP request.
+     * @param match The route match.
+     * @param keepAlive True if the connection stays open after the response.
+     * @param encoder The response encoder, or null if compression is off.
+     * @param cacheKey The response cache key, or null if the route is not cached.
+     * @param flight The flight led by the request, or null if it is not coalesced.
+     */
+    private void offload(
+            final ChannelHandlerContext ctx,
+            final FullHttpRequest request,
+            final RouteMatch match,
+            final boolean keepAlive,
+            final ContentEncoder encoder,
+            final String cacheKey,
+            final SingleFlight.Flight flight) {
+
+        final PendingResponse slot = new PendingResponse(keepAlive);
+        pending.add(slot);
+
+        final Executor executor = server.executor(match.getRoute().getExecution());
+        request.retain();
+        try {
+            executor.execute(() -> settle(
+                    ctx,
+                    request,
+                    slot,
+                    conditional(
+                            ctx,
+                            request,
+                            share(flight, store(cacheKey, match.getRoute(), invoke(ctx, request, match, encoder))))));
+        } catch (final RejectedExecutionException ex) {
+            request.release();
+            if (flight != null) {
+                server.singleFlight().land(flight, null);
+            }
+            complete(ctx, slot, PreEncodedResponse.error(HttpResponseStatus.SERVICE_UNAVAILABLE));
+        }
+    }
+
+
+    /**
+     * Completes a pending response.  May be called from any thread.
+     *
+     * The write is always scheduled as an event loop task rather than run
+     * inline, so that completions from several threads are applied to the
+     * queue one at a time.
+     *
+     * @param ctx The channel context.
+     * @param slot The pending response.
+     * @param response The HTTP response or PreEncodedResponse.
+     */
+    private void complete(final ChannelHandlerContext ctx, final PendingResponse slot, final Object response) {
+        try {
+            ctx.executor().execute(() -> flushPending(ctx, slot, response));
+        } catch (final RejectedExecutionException ex) {
+            discard(response);
+        }
+    }
+
+
+    /**
+     * Fills a pending slot and writes every response at the head of the
+     * queue that is ready.  Must be called on the event loop.
+     *
+     * @param ctx The channel context.
+     * @param slot The pending response.
+     * @param response The HTTP response or PreEncodedResponse.
+     */
+    private void flushPending(final ChannelHandlerContext ctx, final PendingResponse slot, final Object response) {
+        if (!ctx.channel().isActive()) {
+            discard(response);
+            return;
+        }
+
+        slot.message = response;
+        drainPending(ctx);
+    }
+
+
+    /**
+     * Writes every response at the head of the queue that is ready, unless
+     * a chunked response is still being written.
+     *
+     * @param ctx The channel context.
+     */
+    private void drainPending(final ChannelHandlerContext ctx) {
+        while (writing == null && !pending.isEmpty() && pending.peek().message != null) {
+            final PendingResponse head = pending.poll();
+            sendResponse(ctx, head.keepAlive, head.message);
+        }
+    }
+
+
+    /**
+     * Sends a response built on the event loop, or queues it behind an
+     * earlier response that is still pending.
+     *
+     * @param ctx The channel context.
+     * @param keepAlive True if the connection stays open after the response.
+     * @param response The HTTP response or PreEncodedResponse.
+     */
+    private void respond(final ChannelHandlerContext ctx, final boolean keepAlive, final Object response) {
+        if (pending.isEmpty() && writing == null) {
+            sendResponse(ctx, keepAlive, response);
+            return;
+        }
+
+        final PendingResponse slot = new PendingResponse(keepAlive);
+        slot.message = response;
+        pending.add(slot);
+    }
+
+
+    /**
+     * Builds a HTTP response with the standard headers from a handler's
+     * Response.  If the route computes ETags and the handler did not set
+     * one, it is computed from the body.
+     *
+     * @param executor The channel's event loop.
+     * @param response The handler's response.
+     * @return The HTTP response.
+     */
+    private static FullHttpResponse newResponse(final EventExecutor executor, final Response response) {
+        final ByteBuf content = response.detachContent();
+        final ByteBuf buf = content == null ? Unpooled.EMPTY_BUFFER : content;
+
+        // Build the response object.
+        final FullHttpResponse fullResponse = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                response.status(),
+                buf,
+                false);
+
+        setHeaders(fullResponse.headers(), executor, response, buf.readableBytes());
+        if (response.computesETag()
+                && response.status().code() == HttpResponseStatus.OK.code()
+                && !fullResponse.headers().contains(HttpHeaderNames.ETAG)) {
+            fullResponse.headers().set(HttpHeaderNames.ETAG, ConditionalGet.etag(buf));
+        }
+        return fullResponse;
+    }
+
+
+    /**
+     * Builds a chunked HTTP response with the standard headers from a
+     * handler's Response.  Anything the handler wrote to the Response is
+     * sent as the first chunk.
+     *
+     * @param executor The channel's event loop.
+     * @param response The handler's response.
+     * @param body The body source.
+     * @return The chunked response.
+     */
+    private static ChunkedResponse newChunkedResponse(
+            final EventExecutor executor,
+            final Response response,
+            final ChunkedBody body) {
+
+        final HttpResponse head = new DefaultHttpResponse(HttpVersion.HTTP_1_1, response.status(), false);
+        head.headers().set(HttpHeaderNames.TRANSFER_ENCODING, HttpHeaderValues.CHUNKED);
+        setHeaders(head.headers(), executor, response, -1);
+
+        return new ChunkedResponse(head, body, response.detachContent());
+    }
+
+
+    /**
+     * Builds a file HTTP response from a handler's Response.
+     *
+     * The file is sent with a FileRegion when possible, and otherwise read
+     * into pooled buffers and sent chunked.
+     *
+     * @param executor The channel's event loop.
+     * @param response The handler's response.
+     * @param file The file range to send.
+     * @return The file response or chunked response.
+     */
+    private static Object newFileResponse(
+            final EventExecutor executor,
+            final Response response,
+            final FileContent file) {
+
+        if (!file.isZeroCopy()) {
+            return newChunkedResponse(executor, response, new FileBody(file));
+        }
+
+        response.release();
+
+        final HttpResponse head = new DefaultHttpResponse(HttpVersion.HTTP_1_1, response.status(), false);
+        setHeaders(head.headers(), executor, response, file.length());
+
+        return new FileResponse(
+                head,
+                new DefaultFileRegion(file.file().getChannel(), file.offset(), file.length()));
+    }
+
+
+    /**
+     * Sets the standard response headers, followed by the handler's own.
+     *
+     * A 304 Not Modified response describes the cached representation, so
+     * it carries neither a Content-Type nor a Content-Length.
+     *
+     * @param headers The response headers.
+     * @param executor The channel's event loop.
+     * @param response The handler's response.
+     * @param contentLength The body length, or -1 for a chunked body.
+     */
+    private static void setHeaders(
+            final HttpHeaders headers,
+            final EventExecutor executor,
+            final Response response,
+            final long contentLength) {
+
+        headers.set(HttpHeaderNames.SERVER, WebServer.SERVER_NAME);
+        headers.set(HttpHeaderNames.DATE, HttpDate.get(executor));
+
+        if (response.status().code() != HttpResponseStatus.NOT_MODIFIED.code()) {
+            headers.set(HttpHeaderNames.CONTENT_TYPE, response.contentType());
+            if (contentLength >= 0) {
+                headers.setLong(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+            }
+        }
+
+        if (response.hasHeaders()) {
+            headers.setAll(response.headers());
+        }
+    }
+
+
+    /**
+     * Sends a HTTP response, closing the connection afterwards unless the
+     * request asked for keep-alive.
+     *
+     * @param ctx The channel context.
+     * @param keepAlive True if the connection stays open after the response.
+     * @param message The HTTP response, PreEncodedResponse, ChunkedResponse, or FileResponse.
+     */
+    private void sendResponse(
+            final ChannelHandlerContext ctx,
+            final boolean keepAlive,
+            final Object message) {
+
+        Object response = message;
+
+        if (response instanceof FileResponse) {
+            final FileResponse file = (FileResponse) response;
+            ctx.write(file.head(), ctx.voidPromise());
+            ctx.write(file.region(), ctx.voidPromise());
+            response = LastHttpContent.EMPTY_LAST_CONTENT;
+        }
+
+        if (response instanceof ChunkedResponse) {
+            writing = (ChunkedResponse) response;
+            writingKeepAlive = keepAlive;
+            ctx.write(writing.head(), ctx.voidPromise());
+            writeChunks(ctx);
+            return;
+        }
+
+        // Close the non-keep-alive connection after the write operation is done.
+        if (!keepAlive) {
+            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            ctx.writeAndFlush(response, ctx.voidPromise());
+        }
+    }
+
+
+    /**
+     * Writes chunks of the current chunked response until the channel
+     * stops being writable or the body ends.
+     *
+     * Chunks are written without flushing until the outbound buffer passes
+     * its high water mark, then flushed.  If the flush drains the buffer
+     * straight away the loop carries on; otherwise it stops, and
+     * channelWritabilityChanged calls it again later.  A flush that makes
+     * the channel writable again re-enters this method, which is ignored
+     * because the outer loop is still running.
+     *
+     * @param ctx The channel context.
+     */
+    private void writeChunks(final ChannelHandlerContext ctx) {
+        if (inWriteLoop) {
+            return;
+        }
+
+        inWriteLoop = true;
+        try {
+            while (writing != null && ctx.channel().isWritable()) {
+                final ByteBuf chunk;
+                try {
+                    chunk = writing.next(ctx.alloc());
+                } catch (final Exception ex) {
+                    // The status line has been sent, so the only way to
+                    // signal the failure is to cut the connection.
+                    ex.printStackTrace();
+                    writing.close();
+                    writing = null;
+                    ctx.close();
+                    return;
+                }
+
+                if (chunk == null) {
+                    finishChunks(ctx);
+                } else if (!chunk.isReadable()) {
+                    chunk.release();
+                } else {
+                    ctx.write(new DefaultHttpContent(chunk), ctx.voidPromise());
+                    if (!ctx.channel().isWritable()) {
+                        ctx.flush();
+                    }
+                }
+            }
+        } finally {
+            inWriteLoop = false;
+        }
+    }
+
+
+    /**
+     * Ends the current chunked response and moves on to the responses
+     * queued behind it.
+     *
+     * @param ctx The channel context.
+     */
+    private void finishChunks(final ChannelHandlerContext ctx) {
+        final ChunkedResponse finished = writing;
+        writing = null;
+        finished.close();
+
+        if (!writingKeepAlive) {
+            ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT, ctx.voidPromise());
+        }
+
+        drainPending(ctx);
+    }
+
+
+    /**
+     * Releases a response that will not be written.
+     *
+     * @param response The HTTP response, PreEncodedResponse, or ChunkedResponse.
+     */
+    private static void discard(final Object response) {
+        if (response instanceof ChunkedResponse) {
+            ((ChunkedResponse) response).close();
+        } else if (response instanceof FileResponse) {
+            ((FileResponse) response).region().release();
+        } else {
+            ReferenceCountUtil.release(response);
+        }
+    }
+
+
+    /**
+     * Writes a 100 Continue response.
+     *
+     * @param ctx The HTTP handler context.
+     */
+    private static void send100Continue(final ChannelHandlerContext ctx) {
+        ctx.write(new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.CONTINUE));
+    }
+
+
+    /**
+     * The BodyStream class holds the state of the streaming request that
+     * is currently being received.
+     */
+    private static final class BodyStream {
+        private final FullHttpRequest request;
+        private final Response response;
+        private final boolean keepAlive;
+        private final ContentEncoder encoder;
+        private StreamingHandler.BodyConsumer consumer;
+        private Exception failure;
+
+        BodyStream(
+                final FullHttpRequest request,
+                final Response response,
+                final boolean keepAlive,
+                final ContentEncoder encoder) {
+
+            this.request = request;
+            this.response = response;
+            this.keepAlive = keepAlive;
+            this.encoder = encoder;
+        }
+    }
+
+
+    /**
+     * The PendingResponse class holds a response slot in request order.
+     */
+    private static final class PendingResponse {
+        private final boolean keepAlive;
+        private Object message;
+
+        PendingResponse(final boolean keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package nettyexample.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.FastThreadLocalThread;
+import junit.framework.TestCase;
+
+/**
+ * Tests for response compression.
+ */
+public class CompressionTest extends TestCase {
+    private static final String JSON = repeat("{\"id\":1,\"name\":\"compressible\"}", 100);
+
+    public void testNegotiate() {
+        assertEquals(ContentCoding.IDENTITY, ContentCoding.negotiate(null));
+        assertEquals(ContentCoding.IDENTITY, ContentCoding.negotiate(""));
+        assertEquals(ContentCoding.IDENTITY, ContentCoding.negotiate("br"));
+        assertEquals(ContentCoding.GZIP, ContentCoding.negotiate("gzip, deflate, br"));
+        assertEquals(ContentCoding.GZIP, ContentCoding.negotiate("deflate, GZIP"));
+        assertEquals(ContentCoding.DEFLATE, ContentCoding.negotiate("gzip;q=0, deflate"));
+        assertEquals(ContentCoding.DEFLATE, ContentCoding.negotiate("gzip;q=0.5, deflate;q=0.8"));
+        assertEquals(ContentCoding.GZIP, ContentCoding.negotiate("*"));
+        assertEquals(ContentCoding.DEFLATE, ContentCoding.negotiate("gzip; q=0, *"));
+        assertEquals(ContentCoding.IDENTITY, ContentCoding.negotiate("*;q=0"));
+    }
+
+    public void testContentTypePolicy() {
+        final Compression compression = new Compression();
+        assertTrue(compression.isCompressible(WebServer.TYPE_JSON));
+        assertTrue(compression.isCompressible("text/css"));
+        assertTrue(compression.isCompressible("Image/SVG+XML"));
+        assertFalse(compression.isCompressible("image/png"));
+        assertFalse(compression.isCompressible("text"));
+        assertFalse(compression.isCompressible(null));
+
+        compression.types("application/vnd.custom+json");
+        assertFalse(compression.isCompressible(WebServer.TYPE_JSON));
+        assertTrue(compression.isCompressible("application/vnd.custom+json; charset=UTF-8"));
+    }
+
+    public void testHandlerResponses() throws IOException {
+        final WebServer server = new WebServer()
+                .compression(new Compression())
+                .get("/json", (request, response) -> {
+                    response.contentType(WebServer.TYPE_JSON);
+                    return JSON;
+                })
+                .get("/small", (request, response) -> "small")
+                .get("/png", (request, response) -> {
+                    response.contentType("image/png");
+                    return JSON;
+                })
+                .get("/encoded", (request, response) -> {
+                    response.header("content-encoding", "br");
+                    return JSON;
+                });
+
+        final String gzip = exchange(server, "GET /json HTTP/1.1\r\naccept-encoding: gzip, deflate\r\n\r\n");
+        assertTrue(gzip, gzip.contains("content-encoding: gzip\r\n"));
+        assertTrue(gzip, gzip.contains("vary: accept-encoding\r\n"));
+        assertEquals(body(gzip).length(), contentLength(gzip));
+        assertTrue(contentLength(gzip) < JSON.length() / 5);
+        assertEquals(JSON, gunzip(body(gzip)));
+
+        final String deflate = exchange(server, "GET /json HTTP/1.1\r\naccept-encoding: gzip;q=0, deflate\r\n\r\n");
+        assertTrue(deflate, deflate.contains("content-encoding: deflate\r\n"));
+        assertEquals(JSON, inflate(body(deflate)));
+
+        final String identity = exchange(server, "GET /json HTTP/1.1\r\n\r\n");
+        assertFalse(identity, identity.contains("content-encoding"));
+        assertTrue(identity, identity.contains("vary: accept-encoding\r\n"));
+        assertEquals(JSON, body(identity));
+
+        final String small = exchange(server, "GET /small HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+        assertFalse(small, small.contains("content-encoding"));
+        assertEquals("small", body(small));
+
+        final String png = exchange(server, "GET /png HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+        assertFalse(png, png.contains("content-encoding"));
+        assertFalse(png, png.contains("vary"));
+
+        final String encoded = exchange(server, "GET /encoded HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+        assertTrue(encoded, encoded.contains("content-encoding: br\r\n"));
+        assertEquals(JSON, body(encoded));
+    }
+
+    public void testChunkedResponses() throws IOException {
+        final WebServer server = new WebServer()
+                .compression(new Compression())
+                .get("/ids", (request, response) -> IntStream.range(0, 5000).mapToObj(i -> "{\"id\":" + i + "}"));
+
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            expected.append("{\"id\":").append(i).append("}\n");
+        }
+
+        final String response = exchange(server, "GET /ids HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+        assertTrue(response, response.contains("transfer-encoding: chunked\r\n"));
+        assertTrue(response, response.contains("content-encoding: gzip\r\n"));
+        assertFalse(response, response.contains("content-length"));
+        assertEquals(expected.toString(), gunzip(WebServerTest.dechunk(response)));
+    }
+
+    public void testConstantVariants() throws IOException {
+        final WebServer server = new WebServer()
+                .compression(new Compression())
+                .get("/constant", new ConstantHandler(JSON, WebServer.TYPE_JSON));
+
+        final String gzip = exchange(server, "GET /constant HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+        assertTrue(gzip, gzip.contains("content-encoding: gzip\r\n"));
+        assertTrue(gzip, gzip.contains("vary: accept-encoding\r\n"));
+        assertEquals(JSON, gunzip(body(gzip)));
+
+        final String identity = exchange(server, "GET /constant HTTP/1.1\r\n\r\n");
+        assertTrue(identity, identity.contains("vary: accept-encoding\r\n"));
+        assertEquals(JSON, body(identity));
+
+        final PreEncodedResponse constant = new ConstantHandler(JSON, WebServer.TYPE_JSON).encode();
+        final ContentEncoder encoder = new Compression().encoder("gzip", null);
+        final PreEncodedResponse variant = encoder.encode(UnpooledByteBufAllocator.DEFAULT, constant);
+        assertNotSame(constant, variant);
+        assertSame(variant, encoder.encode(UnpooledByteBufAllocator.DEFAULT, constant));
+    }
+
+    public void testStaticFiles() throws IOException {
+        final Path root = Files.createTempDirectory("static");
+        try {
+            Files.write(root.resolve("app.js"), JSON.getBytes(StandardCharsets.UTF_8));
+            final Compression compression = new Compression();
+            final WebServer server = new WebServer()
+                    .compression(compression)
+                    .files("/static", root)
+                    .get("/large/*file", new StaticFiles(root).cache(0));
+
+            final String first = exchange(server, "GET /static/app.js HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+            assertTrue(first, first.contains("content-encoding: gzip\r\n"));
+            assertTrue(first, first.contains("etag: W/\""));
+            assertEquals(JSON, gunzip(body(first)));
+
+            final String second = exchange(server, "GET /static/app.js HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+            assertEquals(body(first), body(second));
+
+            final String etag = first.replaceAll("(?s).*\r\netag: (W/\"[^\"]+\")\r\n.*", "$1");
+            final String notModified = exchange(
+                    server,
+                    "GET /static/app.js HTTP/1.1\r\naccept-encoding: gzip\r\nif-none-match: " + etag + "\r\n\r\n");
+            assertTrue(notModified, notModified.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+
+            final String range = exchange(server, "GET /static/app.js HTTP/1.1\r\naccept-encoding: gzip\r\nrange: bytes=0-3\r\n\r\n");
+            assertTrue(range, range.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+            assertFalse(range, range.contains("content-encoding"));
+            assertEquals("{\"id", body(range));
+
+            // Drop the variant cached above; the file is then compressed
+            // as it is read, and the next request is served from the cache.
+            compression.cache(0);
+            compression.cache(1024 * 1024);
+            final String streamed = exchange(server, "GET /large/app.js HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+            assertTrue(streamed, streamed.contains("transfer-encoding: chunked\r\n"));
+            assertEquals(JSON, gunzip(WebServerTest.dechunk(streamed)));
+
+            final String cached = exchange(server, "GET /large/app.js HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+            assertFalse(cached, cached.contains("transfer-encoding"));
+            assertTrue(cached, cached.contains("content-encoding: gzip\r\n"));
+            assertEquals(JSON, gunzip(body(cached)));
+        } finally {
+            Files.deleteIfExists(root.resolve("app.js"));
+            Files.delete(root);
+        }
+    }
+
+    public void testAdaptiveLevel() {
+        final Compression compression = new Compression().level(2);
+        final WebServer server = new WebServer()
+                .compression(compression)
+                .get("/json", (request, response) -> {
+                    response.contentType(WebServer.TYPE_JSON);
+                    return JSON;
+                });
+
+        compression.adjust(0.95);
+        assertEquals(1, compression.getLevel());
+        compression.adjust(0.95);
+        compression.adjust(0.95);
+        assertEquals(0, compression.getLevel());
+        assertEquals(0.95, compression.getLoad());
+
+        final String suspended = exchange(server, "GET /json HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+        assertFalse(suspended, suspended.contains("content-encoding"));
+        assertTrue(suspended, suspended.contains("vary: accept-encoding\r\n"));
+        assertEquals(JSON, body(suspended));
+
+        // Inside the band the level holds.
+        compression.adjust(0.7);
+        assertEquals(0, compression.getLevel());
+
+        compression.adjust(0.1);
+        assertEquals(1, compression.getLevel());
+        assertTrue(exchange(server, "GET /json HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n").contains("content-encoding: gzip\r\n"));
+        compression.adjust(0.1);
+        compression.adjust(0.1);
+        assertEquals(2, compression.getLevel());
+
+        compression.adjust(0.95);
+        compression.adaptive(false);
+        assertEquals(2, compression.getLevel());
+        compression.adjust(0.95);
+        assertEquals(2, compression.getLevel());
+    }
+
+    public void testDictionary() throws Exception {
+        final DictionaryBuilder builder = new DictionaryBuilder();
+        for (int i = 0; i < 50; i++) {
+            builder.add(user(i * 7));
+        }
+        final byte[] dictionary = builder.build(4096);
+
+        final Compression compression = new Compression().dictionary(dictionary);
+        final String id = compression.getDictionaryId();
+        final WebServer server = new WebServer()
+                .compression(compression)
+                .get("/user", (request, response) -> {
+                    response.contentType(WebServer.TYPE_JSON);
+                    return user(1000);
+                });
+
+        final String dict = exchange(
+                server,
+                "GET /user HTTP/1.1\r\naccept-encoding: gzip, x-deflate-dict\r\nx-dictionary-id: " + id + "\r\n\r\n");
+        assertTrue(dict, dict.contains("content-encoding: x-deflate-dict\r\n"));
+        assertTrue(dict, dict.contains("vary: x-dictionary-id\r\n"));
+        assertEquals(user(1000), inflate(body(dict), dictionary));
+        assertTrue(body(dict).length() < user(1000).length() / 2);
+
+        final String stale = exchange(
+                server,
+                "GET /user HTTP/1.1\r\naccept-encoding: gzip, x-deflate-dict\r\nx-dictionary-id: 0\r\n\r\n");
+        assertFalse(stale, stale.contains("content-encoding"));
+        assertEquals(user(1000), body(stale));
+
+        assertEquals(ContentCoding.GZIP, ContentCoding.negotiate("gzip, x-deflate-dict", false));
+        assertEquals(ContentCoding.DICTIONARY, ContentCoding.negotiate("gzip, x-deflate-dict", true));
+        assertEquals(ContentCoding.GZIP, ContentCoding.negotiate("*", true));
+    }
+
+    public void testDictionaryChange() throws Exception {
+        final byte[] first = user(1).getBytes(StandardCharsets.UTF_8);
+        final byte[] second = user(2).getBytes(StandardCharsets.UTF_8);
+        final Compression compression = new Compression().dictionary(first);
+        final WebServer server = new WebServer()
+                .compression(compression)
+                .get("/constant", new ConstantHandler(user(1000), WebServer.TYPE_JSON));
+
+        final String before = exchange(
+                server,
+                "GET /constant HTTP/1.1\r\naccept-encoding: x-deflate-dict\r\nx-dictionary-id: "
+                        + compression.getDictionaryId() + "\r\n\r\n");
+        assertTrue(before, before.contains("content-encoding: x-deflate-dict\r\n"));
+        assertEquals(user(1000), inflate(body(before), first));
+
+        final byte[] old = compression.dictionary();
+        compression.store("key", ContentCoding.DICTIONARY, old, Unpooled.wrappedBuffer(new byte[] { 1 }));
+        compression.dictionary(second);
+        assertNull(compression.variant("key", ContentCoding.DICTIONARY, old));
+        assertNull(compression.variant("key", ContentCoding.DICTIONARY, compression.dictionary()));
+
+        final String after = exchange(
+                server,
+                "GET /constant HTTP/1.1\r\naccept-encoding: x-deflate-dict\r\nx-dictionary-id: "
+                        + compression.getDictionaryId() + "\r\n\r\n");
+        assertTrue(after, after.contains("content-encoding: x-deflate-dict\r\n"));
+        assertEquals(user(1000), inflate(body(after), second));
+    }
+
+    public void testBodyEncoderStream() throws IOException {
+        final BodyEncoder encoder = BodyEncoder.acquire(ContentCoding.GZIP, 6, null);
+        final StringBuilder out = new StringBuilder();
+        try {
+            for (int i = 0; i < 3; i++) {
+                final ByteBuf chunk = encoder.encode(
+                        UnpooledByteBufAllocator.DEFAULT,
+                        Unpooled.copiedBuffer(JSON, StandardCharsets.UTF_8),
+                        false);
+                out.append(chunk.toString(StandardCharsets.ISO_8859_1));
+                chunk.release();
+            }
+            final ByteBuf last = encoder.encode(UnpooledByteBufAllocator.DEFAULT, Unpooled.EMPTY_BUFFER, true);
+            out.append(last.toString(StandardCharsets.ISO_8859_1));
+            last.release();
+        } finally {
+            encoder.end();
+        }
+        assertEquals(JSON + JSON + JSON, gunzip(out.toString()));
+    }
+
+    public void testBodyEncoderReuse() throws Exception {
+        final byte[] dictionary = user(1).getBytes(StandardCharsets.UTF_8);
+        final String large = repeat(user(2), 300);
+        final ByteBuf direct = Unpooled.directBuffer();
+        direct.writeBytes(large.getBytes(StandardCharsets.UTF_8));
+        try {
+            // Pooled encoders start clean whatever the previous response
+            // used.  Only event loop threads pool them.
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final Thread loop = new FastThreadLocalThread(() -> {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        assertEquals(large, inflate(encode(ContentCoding.DICTIONARY, 9, dictionary, direct), dictionary));
+                        assertEquals(large, inflate(encode(ContentCoding.DEFLATE, 1, null, direct)));
+                        assertEquals(large, gunzip(encode(ContentCoding.GZIP, 6, null, direct)));
+                    }
+                } catch (final Throwable ex) {
+                    failure.set(ex);
+                }
+            });
+            loop.start();
+            loop.join();
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertEquals(large.length(), direct.readableBytes());
+        } finally {
+            direct.release();
+        }
+    }
+
+    public void testBodyEncoderPoolsOnEventLoopsOnly() throws Exception {
+        final BodyEncoder plain = BodyEncoder.acquire(ContentCoding.GZIP, 6, null);
+        plain.end();
+        final BodyEncoder next = BodyEncoder.acquire(ContentCoding.GZIP, 6, null);
+        next.end();
+        assertNotSame(plain, next);
+
+        final BodyEncoder[] encoders = new BodyEncoder[3];
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final CountDownLatch ended = new CountDownLatch(1);
+        final Thread loop = new FastThreadLocalThread(() -> {
+            encoders[0] = BodyEncoder.acquire(ContentCoding.GZIP, 6, null);
+            encoders[0].end();
+            encoders[1] = BodyEncoder.acquire(ContentCoding.GZIP, 6, null);
+            acquired.countDown();
+            try {
+                ended.await();
+            } catch (final InterruptedException ex) {
+                return;
+            }
+            encoders[2] = BodyEncoder.acquire(ContentCoding.GZIP, 6, null);
+            encoders[2].end();
+        });
+        loop.start();
+        acquired.await();
+        assertSame(encoders[0], encoders[1]);
+
+        // Ended on another thread, the encoder is freed rather than pooled.
+        encoders[1].end();
+        ended.countDown();
+        loop.join();
+        assertNotSame(encoders[1], encoders[2]);
+    }
+
+    private static String encode(final ContentCoding coding, final int level, final byte[] dictionary, final ByteBuf body) {
+        final ByteBuf out = BodyEncoder.encode(UnpooledByteBufAllocator.DEFAULT, coding, level, dictionary, body);
+        try {
+            return out.toString(StandardCharsets.ISO_8859_1);
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Writes a raw request into a new channel and returns the raw response,
+     * one character per byte.
+     */
+    private static String exchange(final WebServer server, final String request) {
+        final EmbeddedChannel channel = WebServerTest.newChannel(server);
+        channel.writeInbound(Unpooled.copiedBuffer(request, StandardCharsets.UTF_8));
+        channel.runPendingTasks();
+
+        final StringBuilder sb = new StringBuilder();
+        for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+            final ByteBuf buf = (ByteBuf) msg;
+            sb.append(buf.toString(StandardCharsets.ISO_8859_1));
+            buf.release();
+        }
+        return sb.toString();
+    }
+
+    private static String body(final String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    private static int contentLength(final String response) {
+        return Integer.parseInt(response.replaceAll("(?s).*\r\ncontent-length: (\\d+)\r\n.*", "$1"));
+    }
+
+    private static String gunzip(final String body) throws IOException {
+        return read(new GZIPInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.ISO_8859_1))));
+    }
+
+    private static String inflate(final String body) throws IOException {
+        return read(new InflaterInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.ISO_8859_1))));
+    }
+
+    private static String inflate(final String body, final byte[] dictionary) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(body.getBytes(StandardCharsets.ISO_8859_1));
+            final byte[] buffer = new byte[4096];
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (!inflater.finished()) {
+                final int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                }
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static String user(final int id) {
+        return "{\"id\":" + id + ",\"name\":\"user-" + id + "\",\"email\":\"user-" + id
+                + "@example.com\",\"active\":true,\"roles\":[\"reader\"],\"created\":\"2024-01-01T00:00:00Z\"}";
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(final String s, final int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,35 @@
+package nettyexample.server;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the DictionaryBuilder.
+ */
+public class DictionaryBuilderTest extends TestCase {
+
+    public void testBuildsDictionaryFromCommonStrings() {
+        final DictionaryBuilder builder = new DictionaryBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.add("{\"orderId\":" + i + ",\"status\":\"shipped\",\"carrier\":\"postal-service\",\"items\":" + (i % 5) + "}");
+        }
+
+        final byte[] dictionary = builder.build(512);
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 512);
+
+        final String text = new String(dictionary, StandardCharsets.ISO_8859_1);
+        assertTrue(text, text.contains("\"status\":\"shipped\""));
+        assertTrue(text, text.contains("\"carrier\":\"postal-service\""));
+
+        assertTrue(builder.compressedSize(dictionary) * 2 < builder.compressedSize(null));
+    }
+
+    public void testIgnoresUniqueStrings() {
+        final DictionaryBuilder builder = new DictionaryBuilder()
+                .add("first unique sample body")
+                .add("second body, nothing shared");
+        assertEquals(0, builder.build(1024).length);
+    }
+}
@@ -0,0 +1,172 @@
+package nettyexample.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the FileCache budget and invalidation.
+ */
+public class FileCacheTest extends TestCase {
+    private Path root;
+
+    @Override
+    protected void setUp() throws IOException {
+        root = Files.createTempDirectory("file-cache");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(root);
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        final FileCache cache = new FileCache(10, 8);
+        final Path a = write("a.txt", "aaaa");
+        final Path b = write("b.txt", "bbbb");
+        final Path c = write("c.txt", "cccc");
+        final Path big = write("big.txt", "123456789");
+
+        release(cache.load(a, attributes(a)));
+        release(cache.load(b, attributes(b)));
+        release(cache.get(a));
+        release(cache.load(c, attributes(c)));
+
+        assertEquals(8, cache.bytes());
+        assertNotNull(release(cache.get(a)));
+        assertNull(cache.get(b));
+        assertNotNull(release(cache.get(c)));
+
+        assertNull(cache.load(big, attributes(big)));
+        assertEquals(8, cache.bytes());
+    }
+
+    public void testHitOutlivesEviction() throws IOException {
+        final FileCache cache = new FileCache(4, 4);
+        final Path a = write("a.txt", "aaaa");
+        final Path b = write("b.txt", "bbbb");
+
+        final FileCache.Entry hit = cache.load(a, attributes(a));
+        release(cache.load(b, attributes(b)));
+        assertNull(cache.get(a));
+
+        assertEquals("aaaa", hit.content().toString(StandardCharsets.UTF_8));
+        release(hit);
+    }
+
+    public void testInvalidatesChangedFiles() throws Exception {
+        final FileCache cache = new FileCache(1024, 1024);
+        final Path a = write("a.txt", "old");
+        final FileCache.Entry entry = cache.load(a, attributes(a));
+        assertEquals("old", entry.content().toString(StandardCharsets.UTF_8));
+        release(entry);
+
+        write("a.txt", "new");
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (cache.bytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(cache.get(a));
+    }
+
+    public void testConcurrentGetAndInvalidate() throws Exception {
+        final FileCache cache = new FileCache(1024, 1024);
+        final Path a = write("a.txt", "aaaa");
+        final BasicFileAttributes attributes = attributes(a);
+        release(cache.load(a, attributes));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final long deadline = System.currentTimeMillis() + 500;
+        final Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        final FileCache.Entry entry = cache.get(a);
+                        if (entry != null) {
+                            assertEquals("aaaa", entry.content().toString(StandardCharsets.UTF_8));
+                            entry.content().release();
+                        }
+                    }
+                } catch (final Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                }
+            });
+            readers[i].start();
+        }
+
+        while (System.currentTimeMillis() < deadline) {
+            cache.invalidate(a);
+            release(cache.load(a, attributes));
+        }
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        final FileCache.Entry entry = cache.get(a);
+        if (entry != null) {
+            assertEquals(2, entry.content().refCnt());
+            release(entry);
+        }
+        cache.close();
+    }
+
+    public void testCloseStopsWatcher() throws Exception {
+        final Set<Thread> before = watcherThreads();
+        final FileCache cache = new FileCache(1024, 1024);
+        final Path a = write("a.txt", "aaaa");
+        release(cache.load(a, attributes(a)));
+
+        final Set<Thread> started = watcherThreads();
+        started.removeAll(before);
+        assertEquals(1, started.size());
+
+        cache.close();
+        assertEquals(0, cache.bytes());
+        assertNull(cache.get(a));
+        final Thread watcher = started.iterator().next();
+        watcher.join(10000);
+        assertFalse(watcher.isAlive());
+    }
+
+    private static Set<Thread> watcherThreads() {
+        final Set<Thread> threads = new HashSet<Thread>();
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("web-server-file-watcher")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    private Path write(final String name, final String content) throws IOException {
+        return Files.write(root.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static BasicFileAttributes attributes(final Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+
+    private static FileCache.Entry release(final FileCache.Entry entry) {
+        if (entry != null) {
+            entry.content().release();
+        }
+        return entry;
+    }
+}
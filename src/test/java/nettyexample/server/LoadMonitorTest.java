@@ -0,0 +1,77 @@
+package nettyexample.server;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.nio.NioEventLoopGroup;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the LoadMonitor event loop load samples.
+ */
+public class LoadMonitorTest extends TestCase {
+    private static final long MS = 1000000L;
+
+    private long cpu;
+    private long wall;
+
+    public void testSampleRatio() {
+        final LoadMonitor monitor = new LoadMonitor(2, () -> cpu, () -> wall, true);
+
+        // Two threads over 100ms: 150ms of CPU is 75% busy.
+        cpu += 150 * MS;
+        wall += 100 * MS;
+        assertEquals(0.75, monitor.sample(), 1e-9);
+
+        // Idle since the previous sample.
+        wall += 100 * MS;
+        assertEquals(0.0, monitor.sample(), 1e-9);
+
+        // Rounding in the CPU clock may exceed the wall time.
+        cpu += 300 * MS;
+        wall += 100 * MS;
+        assertEquals(1.0, monitor.sample(), 1e-9);
+
+        // No time passed.
+        cpu += MS;
+        assertEquals(0.0, monitor.sample(), 1e-9);
+    }
+
+    public void testSamplesStepLevel() {
+        final LoadMonitor monitor = new LoadMonitor(1, () -> cpu, () -> wall, true);
+        final Compression compression = new Compression().level(3);
+
+        compression.adjust(busy(monitor, 86));
+        assertEquals(2, compression.getLevel());
+
+        // The thresholds themselves are inside the band.
+        compression.adjust(busy(monitor, 85));
+        assertEquals(2, compression.getLevel());
+        compression.adjust(busy(monitor, 60));
+        assertEquals(2, compression.getLevel());
+
+        compression.adjust(busy(monitor, 59));
+        assertEquals(3, compression.getLevel());
+        compression.adjust(busy(monitor, 0));
+        assertEquals(3, compression.getLevel());
+    }
+
+    public void testEventLoopGroup() throws Exception {
+        final NioEventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            final LoadMonitor monitor = new LoadMonitor(group);
+            final double load = monitor.sample();
+            assertTrue(Double.toString(load), load >= 0 && load <= 1);
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    /**
+     * Advances the clocks by 100ms at a given busy percentage and samples.
+     */
+    private double busy(final LoadMonitor monitor, final int percent) {
+        cpu += percent * MS;
+        wall += 100 * MS;
+        return monitor.sample();
+    }
+}
@@ -0,0 +1,38 @@
+package nettyexample.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the Request wrapper.
+ */
+public class RequestTest extends TestCase {
+
+    public void testPathWithoutQueryIsUri() {
+        final String uri = "/hello";
+        final Request request = request(uri);
+        assertSame(uri, request.path());
+        assertTrue(request.queryParams().isEmpty());
+        assertNull(request.queryParam("x"));
+    }
+
+    public void testQueryParams() {
+        final Request request = request("/hello?x=1&y=a%20b&x=2&flag");
+        assertEquals("/hello", request.path());
+        assertEquals("1", request.queryParam("x"));
+        assertEquals(Arrays.asList("1", "2"), request.queryParams("x"));
+        assertEquals("a b", request.queryParam("y"));
+        assertEquals("", request.queryParam("flag"));
+        assertEquals(Collections.emptyList(), request.queryParams("missing"));
+        assertSame(request.queryParams(), request.queryParams());
+    }
+
+    private static Request request(final String uri) {
+        return new Request(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri));
+    }
+}
@@ -0,0 +1,354 @@
+package nettyexample.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the server-side response cache.
+ */
+public class ResponseCacheTest extends TestCase {
+
+    public void testCachedRoute() {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServer server = new WebServer()
+                .compression(new Compression())
+                .get("/greeting", new RouteOptions().cache(1, TimeUnit.HOURS, "accept-language"), (request, response) -> {
+                    response.contentType(WebServer.TYPE_JSON);
+                    return repeat("{\"greeting\":" + calls.incrementAndGet() + "}", 100);
+                })
+                .get("/cookie", new RouteOptions().cache(1, TimeUnit.HOURS), (request, response) -> {
+                    response.header("set-cookie", "id=1");
+                    return "call " + calls.incrementAndGet();
+                });
+
+        final String first = exchange(server, "GET /greeting HTTP/1.1\r\n\r\n");
+        assertTrue(first, first.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(first, first.contains("\r\ndate: -\r\n"));
+        assertTrue(first, first.contains("{\"greeting\":1}"));
+        assertEquals(first, exchange(server, "GET /greeting HTTP/1.1\r\n\r\n"));
+        assertEquals(1, calls.get());
+
+        // The key headers and the negotiated coding select separate entries.
+        assertTrue(exchange(server, "GET /greeting HTTP/1.1\r\naccept-language: de\r\n\r\n").contains(":2}"));
+        final String gzip = exchange(server, "GET /greeting HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+        assertTrue(gzip, gzip.contains("content-encoding: gzip\r\n"));
+        assertEquals(gzip, exchange(server, "GET /greeting HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n"));
+        assertEquals(3, calls.get());
+
+        // The query string is part of the key.
+        assertTrue(exchange(server, "GET /greeting?x=1 HTTP/1.1\r\n\r\n").contains(":4}"));
+
+        // Responses that set a cookie are never shared.
+        assertTrue(exchange(server, "GET /cookie HTTP/1.1\r\n\r\n").endsWith("call 5"));
+        assertTrue(exchange(server, "GET /cookie HTTP/1.1\r\n\r\n").endsWith("call 6"));
+    }
+
+    public void testConditionalHitSkipsHandler() {
+        final AtomicInteger calls = new AtomicInteger();
+        final WebServer server = new WebServer()
+                .compression(new Compression())
+                .get("/catalog", new RouteOptions().cache(1, TimeUnit.HOURS), (request, response) -> {
+                    calls.incrementAndGet();
+                    response.contentType(WebServer.TYPE_JSON);
+                    return repeat("{\"item\":1}", 200);
+                });
+
+        final String full = exchange(server, "GET /catalog HTTP/1.1\r\naccept-encoding: gzip\r\n\r\n");
+        final String etag = full.replaceAll("(?s).*\r\netag: (W/\"[^\"]+\")\r\n.*", "$1");
+        assertTrue(full, etag.startsWith("W/\""));
+
+        // Both the compressed and the identity entry validate against the tag.
+        for (final String encoding : new String[] { "gzip", "identity" }) {
+            final String response = exchange(server,
+                    "GET /catalog HTTP/1.1\r\naccept-encoding: " + encoding + "\r\nif-none-match: " + etag + "\r\n\r\n");
+            assertTrue(response, response.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+            assertTrue(response, response.contains("vary: accept-encoding\r\n"));
+        }
+        assertEquals(2, calls.get());
+
+        final String again = exchange(server,
+                "GET /catalog HTTP/1.1\r\naccept-encoding: gzip\r\nif-none-match: " + etag + "\r\n\r\n");
+        assertTrue(again, again.startsWith("HTTP/1.1 304 "));
+        assertEquals(2, calls.get());
+    }
+
+    public void testStaleWhileRevalidate() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final RouteOptions options = new RouteOptions()
+                .cache(1, TimeUnit.MILLISECONDS)
+                .staleWhileRevalidate(1, TimeUnit.HOURS);
+        final WebServer server = new WebServer()
+                .get("/version", options, (request, response) -> {
+                    if (failures.getAndDecrement() > 0) {
+                        throw new IllegalStateException("refresh failed");
+                    }
+                    return "version " + calls.incrementAndGet();
+                });
+
+        assertTrue(exchange(server, "GET /version HTTP/1.1\r\n\r\n").endsWith("version 1"));
+        Thread.sleep(5);
+
+        // A failed refresh keeps the stale entry, and a later request retries.
+        failures.set(1);
+        assertTrue(exchange(server, "GET /version HTTP/1.1\r\n\r\n").endsWith("version 1"));
+        while (failures.get() > 0) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(5);
+
+        // The stale entry is served while the refresh runs, then replaced.
+        String response = exchange(server, "GET /version HTTP/1.1\r\n\r\n");
+        assertTrue(response, response.endsWith("version 1"));
+        for (int i = 0; i < 1000 && response.endsWith("version 1"); i++) {
+            Thread.sleep(1);
+            response = exchange(server, "GET /version HTTP/1.1\r\n\r\n");
+        }
+        // With a 1 ms time to live the new entry may itself have been refreshed.
+        assertTrue(response, response.matches("(?s).*\r\n\r\nversion [2-9]"));
+    }
+
+    public void testRejectedRefreshRetries() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger();
+        final RouteOptions options = new RouteOptions()
+                .cache(1, TimeUnit.MILLISECONDS)
+                .staleWhileRevalidate(1, TimeUnit.HOURS);
+        final WebServer server = new WebServer()
+                .responseCache(8 * 1024)
+                .get("/grows", options, (request, response) ->
+                        calls.incrementAndGet() == 1 ? "small" : repeat("large", 1000));
+
+        assertTrue(exchange(server, "GET /grows HTTP/1.1\r\n\r\n").endsWith("small"));
+        Thread.sleep(5);
+
+        // The refreshed response is too large to cache, so the stale entry
+        // stays, and each later request tries to refresh it again.
+        for (int expected = 2; expected <= 3; expected++) {
+            assertTrue(exchange(server, "GET /grows HTTP/1.1\r\n\r\n").endsWith("small"));
+            for (int i = 0; i < 1000 && calls.get() < expected; i++) {
+                Thread.sleep(1);
+            }
+            assertEquals(expected, calls.get());
+            Thread.sleep(5);
+        }
+    }
+
+    public void testCoalescing() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger sessions = new AtomicInteger();
+        final RouteOptions options = new RouteOptions().execution(Execution.WORKER).coalesce();
+        final WebServer server = new WebServer()
+                .get("/report", options, (request, response) -> {
+                    release.await();
+                    return "report " + calls.incrementAndGet();
+                })
+                .get("/session", options, (request, response) -> {
+                    release.await();
+                    response.header("set-cookie", "id=" + sessions.incrementAndGet());
+                    return "session";
+                });
+
+        final EmbeddedChannel[] channels = new EmbeddedChannel[6];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = WebServerTest.newChannel(server);
+            channels[i].writeInbound(Unpooled.copiedBuffer(
+                    i < 4 ? "GET /report HTTP/1.1\r\n\r\n" : "GET /session HTTP/1.1\r\n\r\n",
+                    StandardCharsets.UTF_8));
+            channels[i].runPendingTasks();
+        }
+        assertEquals(2, server.singleFlight().size());
+        release.countDown();
+
+        // The followers of the report share the leader's single call.
+        for (int i = 0; i < 4; i++) {
+            final String response = WebServerTest.awaitOutbound(channels[i], 1);
+            assertTrue(response, response.endsWith("\r\n\r\nreport 1"));
+        }
+
+        // A response with a cookie is not shared; the follower calls the handler itself.
+        assertTrue(WebServerTest.awaitOutbound(channels[4], 1).endsWith("session"));
+        assertTrue(WebServerTest.awaitOutbound(channels[5], 1).endsWith("session"));
+        assertEquals(1, calls.get());
+        assertEquals(2, sessions.get());
+        assertEquals(0, server.singleFlight().size());
+
+        // Coalesced routes without a time to live are not cached.
+        assertEquals(0, server.responseCache().size());
+    }
+
+    public void testKeyHeadersInEitherOrder() {
+        final AtomicInteger calls = new AtomicInteger();
+        final Handler handler = (request, response) ->
+                request.header("authorization") + " " + calls.incrementAndGet();
+        final WebServer server = new WebServer()
+                .get("/cache-first", new RouteOptions().cache(1, TimeUnit.HOURS, "accept-language").coalesce("authorization"), handler)
+                .get("/coalesce-first", new RouteOptions().coalesce("authorization").cache(1, TimeUnit.HOURS, "accept-language"), handler);
+
+        for (final String path : new String[] { "/cache-first", "/coalesce-first" }) {
+            final String alice = exchange(server, "GET " + path + " HTTP/1.1\r\nauthorization: alice\r\n\r\n");
+            final String bob = exchange(server, "GET " + path + " HTTP/1.1\r\nauthorization: bob\r\n\r\n");
+            assertTrue(alice, alice.contains("\r\n\r\nalice "));
+            assertTrue(bob, bob.contains("\r\n\r\nbob "));
+            assertEquals(alice, exchange(server, "GET " + path + " HTTP/1.1\r\nauthorization: alice\r\n\r\n"));
+        }
+        assertEquals(4, calls.get());
+    }
+
+    public void testExpiry() {
+        final ResponseCache cache = new ResponseCache(1024 * 1024);
+        final CachedResponse entry = new CachedResponse(response("body"), 1000, 1000);
+        assertTrue(cache.put("a", entry));
+        entry.release();
+
+        final CachedResponse hit = cache.get("a", 999);
+        assertSame(entry, hit);
+        assertEquals(2, hit.refCnt());
+        hit.release();
+
+        assertNull(cache.get("a", 1000));
+        assertEquals(0, entry.refCnt());
+        assertEquals(0, cache.size());
+    }
+
+    public void testAdmission() {
+        final ResponseCache cache = new ResponseCache(8 * 1024);
+        final String body = repeat("x", 900);
+
+        // Fill the cache with entries that are requested often.
+        for (int i = 0; i < 8; i++) {
+            final String key = "hot" + i;
+            for (int j = 0; j < 5; j++) {
+                assertNull(cache.get(key, 0));
+            }
+            put(cache, key, body);
+        }
+        assertTrue(cache.size() <= 8 * 1024);
+
+        // A burst of one-off keys does not displace them.
+        for (int i = 0; i < 50; i++) {
+            assertNull(cache.get("cold" + i, 0));
+            put(cache, "cold" + i, body);
+        }
+        for (int i = 0; i < 7; i++) {
+            final CachedResponse hit = cache.get("hot" + i, 0);
+            assertNotNull("hot" + i, hit);
+            hit.release();
+        }
+        assertTrue(cache.size() <= 8 * 1024);
+
+        // Entries larger than an eighth of the budget are refused.
+        final CachedResponse large = new CachedResponse(response(repeat("x", 2048)), Long.MAX_VALUE, Long.MAX_VALUE);
+        assertFalse(cache.put("large", large));
+        large.release();
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testConcurrentHitsAndEvictions() throws InterruptedException {
+        final ResponseCache cache = new ResponseCache(16 * 1024);
+        final String body = repeat("x", 900);
+        final AtomicInteger hits = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] readers = new Thread[4];
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(() -> {
+                try {
+                    for (int n = 0; System.nanoTime() < end; n++) {
+                        final CachedResponse hit = cache.get("key" + (n % 40), 0);
+                        if (hit != null) {
+                            hits.incrementAndGet();
+                            hit.release();
+                        }
+                    }
+                } catch (final RuntimeException ex) {
+                    errors.incrementAndGet();
+                }
+            });
+            readers[i].start();
+        }
+        for (int n = 0; System.nanoTime() < end; n++) {
+            put(cache, "key" + (n % 40), body);
+        }
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(0, errors.get());
+        assertTrue(hits.get() > 0);
+        assertTrue(cache.size() <= 16 * 1024);
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testCacheability() {
+        assertTrue(ResponseCache.isCacheable(response("ok")));
+
+        final FullHttpResponse noStore = response("ok");
+        noStore.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=0, No-Store");
+        assertFalse(ResponseCache.isCacheable(noStore));
+
+        final FullHttpResponse notFound = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        assertFalse(ResponseCache.isCacheable(notFound));
+        assertFalse(ResponseCache.isCacheable(PreEncodedResponse.error(HttpResponseStatus.NOT_FOUND)));
+
+        noStore.release();
+        notFound.release();
+    }
+
+    private static void put(final ResponseCache cache, final String key, final String body) {
+        final CachedResponse entry = new CachedResponse(response(body), Long.MAX_VALUE, Long.MAX_VALUE);
+        cache.put(key, entry);
+        entry.release();
+    }
+
+    private static FullHttpResponse response(final String body) {
+        final FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK,
+                Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.length());
+        return response;
+    }
+
+    /**
+     * Writes a raw request into a new channel and returns the raw response
+     * without its Date header, one character per byte.
+     */
+    private static String exchange(final WebServer server, final String request) {
+        final EmbeddedChannel channel = WebServerTest.newChannel(server);
+        channel.writeInbound(Unpooled.copiedBuffer(request, StandardCharsets.UTF_8));
+        channel.runPendingTasks();
+
+        final StringBuilder sb = new StringBuilder();
+        for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+            final ByteBuf buf = (ByteBuf) msg;
+            sb.append(buf.toString(StandardCharsets.ISO_8859_1));
+            buf.release();
+        }
+        return sb.toString().replaceAll("(?i)\r\ndate: [^\r]*", "\r\ndate: -");
+    }
+
+    private static String repeat(final String s, final int count) {
+        final StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
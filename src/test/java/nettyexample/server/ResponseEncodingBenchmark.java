@@ -0,0 +1,79 @@
+package nettyexample.server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Measures heap bytes allocated per response body for the handler return
+ * types, comparing the original String path (toString, getBytes, wrap)
+ * with WebServer.toContent.
+ *
+ * This is not a unit test; run it with:
+ *
+ *     mvn test-compile exec:java -Dexec.classpathScope=test \
+ *         -Dexec.mainClass=nettyexample.server.ResponseEncodingBenchmark
+ */
+public class ResponseEncodingBenchmark {
+    private static final int WARMUP = 50000;
+    private static final int ITERATIONS = 200000;
+
+    private interface Encoder {
+        ByteBuf encode(Object body);
+    }
+
+    public static void main(final String[] args) {
+        final ByteBufAllocator alloc = new PooledByteBufAllocator(true);
+
+        for (final int size : new int[] { 64, 1024, 16 * 1024 }) {
+            final char[] chars = new char[size];
+            Arrays.fill(chars, 'x');
+            final String text = new String(chars);
+            final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+
+            System.out.println("Body size " + size + " bytes");
+
+            report("  String, before    ", text, ResponseEncodingBenchmark::legacy);
+            report("  String, after     ", text, body -> WebServer.toContent(alloc, body));
+            report("  byte[], before    ", bytes,
+                    body -> legacy(new String((byte[]) body, StandardCharsets.UTF_8)));
+            report("  byte[], after     ", bytes, body -> WebServer.toContent(alloc, body));
+            report("  ByteBuffer, after ", ByteBuffer.wrap(bytes), body -> WebServer.toContent(alloc, body));
+        }
+    }
+
+    /**
+     * The body encoding used before typed return handling.
+     */
+    private static ByteBuf legacy(final Object obj) {
+        final String content = obj.toString();
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return Unpooled.wrappedBuffer(bytes);
+    }
+
+    private static void report(final String label, final Object body, final Encoder encoder) {
+        for (int i = 0; i < WARMUP; i++) {
+            encoder.encode(body).release();
+        }
+
+        final long before = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoder.encode(body).release();
+        }
+        final long after = allocatedBytes();
+
+        System.out.println(label + (after - before) / ITERATIONS + " bytes allocated per response");
+    }
+
+    private static long allocatedBytes() {
+        final com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,175 @@
+package nettyexample.server;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.HttpMethod;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the RouteTable radix tree.
+ */
+public class RouteTableTest extends TestCase {
+    private static final Handler NOOP = (request, response) -> null;
+
+    private RouteTable table;
+
+    @Override
+    protected void setUp() {
+        table = new RouteTable();
+        add(HttpMethod.GET, "/");
+        add(HttpMethod.GET, "/hello");
+        add(HttpMethod.GET, "/help");
+        add(HttpMethod.GET, "/hello/world");
+        add(HttpMethod.GET, "/hello/:name");
+        add(HttpMethod.GET, "/users/:id/posts/:post");
+        add(HttpMethod.GET, "/static/*file");
+        add(HttpMethod.GET, "/files/*");
+        add(HttpMethod.POST, "/hello");
+    }
+
+    public void testLiteralRoutes() {
+        assertRoute(HttpMethod.GET, "/", "/");
+        assertRoute(HttpMethod.GET, "/hello", "/hello");
+        assertRoute(HttpMethod.GET, "/help", "/help");
+        assertRoute(HttpMethod.POST, "/hello", "/hello");
+        assertNull(table.findRoute(HttpMethod.GET, "/hel"));
+        assertNull(table.findRoute(HttpMethod.GET, "/hello/"));
+        assertNull(table.findRoute(HttpMethod.PUT, "/hello"));
+    }
+
+    public void testIgnoresQueryString() {
+        assertSame(table.findRoute(HttpMethod.GET, "/hello"), table.findRoute(HttpMethod.GET, "/hello?x=1"));
+        assertRoute(HttpMethod.GET, "/", "/?");
+
+        final RouteMatch match = table.findRoute(HttpMethod.GET, "/static/app.js?v=2");
+        assertEquals("app.js", match.getParams().get("file"));
+
+        assertNull(table.findRoute(HttpMethod.GET, "/hel?lo"));
+    }
+
+    public void testLiteralHitDoesNotAllocateMatch() {
+        assertSame(table.findRoute(HttpMethod.GET, "/hello"), table.findRoute(HttpMethod.GET, "/hello"));
+    }
+
+    public void testMatchesRawAsciiBytes() {
+        final byte[] requestLine = "GET /users/42/posts/7?x=1 HTTP/1.1".getBytes(StandardCharsets.US_ASCII);
+        final AsciiString uri = new AsciiString(requestLine, 4, 21, false);
+
+        final RouteMatch match = table.findRoute(HttpMethod.GET, uri);
+        assertEquals("/users/:id/posts/:post", match.getRoute().getPath());
+        assertEquals("42", match.getParams().get("id"));
+        assertEquals("7", match.getParams().get("post"));
+
+        assertSame(table.findRoute(HttpMethod.GET, "/hello"), table.findRoute(HttpMethod.GET, new AsciiString("/hello")));
+    }
+
+    public void testStaticSegmentBeatsParameter() {
+        assertRoute(HttpMethod.GET, "/hello/world", "/hello/world");
+        final RouteMatch match = assertRoute(HttpMethod.GET, "/hello/:name", "/hello/bob");
+        assertEquals("bob", match.getParams().get("name"));
+    }
+
+    public void testBacktracksFromStaticPrefixToParameter() {
+        final RouteMatch match = assertRoute(HttpMethod.GET, "/hello/:name", "/hello/worldwide");
+        assertEquals("worldwide", match.getParams().get("name"));
+    }
+
+    public void testMultipleParameters() {
+        final RouteMatch match = assertRoute(HttpMethod.GET, "/users/:id/posts/:post", "/users/42/posts/7");
+        assertEquals("42", match.getParams().get("id"));
+        assertEquals("7", match.getParams().get("post"));
+        assertNull(table.findRoute(HttpMethod.GET, "/users//posts/7"));
+        assertNull(table.findRoute(HttpMethod.GET, "/users/42/posts"));
+    }
+
+    public void testWildcards() {
+        RouteMatch match = assertRoute(HttpMethod.GET, "/static/*file", "/static/css/site.css");
+        assertEquals("css/site.css", match.getParams().get("file"));
+
+        match = assertRoute(HttpMethod.GET, "/static/*file", "/static/");
+        assertEquals("", match.getParams().get("file"));
+
+        match = assertRoute(HttpMethod.GET, "/files/*", "/files/a/b");
+        assertEquals("a/b", match.getParams().get("*"));
+    }
+
+    public void testRemoveRoute() {
+        assertTrue(table.removeRoute(HttpMethod.GET, "/hello/world"));
+        assertFalse(table.removeRoute(HttpMethod.GET, "/hello/world"));
+        assertRoute(HttpMethod.GET, "/hello/:name", "/hello/world");
+        assertRoute(HttpMethod.GET, "/hello", "/hello");
+
+        add(HttpMethod.GET, "/hello/world");
+        assertRoute(HttpMethod.GET, "/hello/world", "/hello/world");
+    }
+
+    public void testRejectedRouteIsNotPublished() {
+        final int before = table.getRoutes().size();
+        assertInvalid(HttpMethod.GET, "/hello/:other");
+        assertEquals(before, table.getRoutes().size());
+        assertRoute(HttpMethod.GET, "/hello/:name", "/hello/bob");
+    }
+
+    public void testRankingFollowsHits() {
+        for (int i = 0; i < 3; i++) {
+            table.findRoute(HttpMethod.GET, "/static/app.js");
+        }
+        table.findRoute(HttpMethod.GET, "/hello?x=1");
+        table.findRoute(HttpMethod.GET, "/missing");
+
+        final Route first = table.getRanking().get(0);
+        assertEquals("/static/*file", first.getPath());
+        assertEquals(3, first.getHits());
+        assertEquals(1, table.getRanking().get(1).getHits());
+    }
+
+    public void testKnownMisses() {
+        assertNull(table.findRoute(HttpMethod.GET, "/wp-login.php?redirect=1"));
+        assertTrue(table.isKnownMiss(HttpMethod.GET, "/wp-login.php"));
+        assertTrue(table.isKnownMiss(HttpMethod.GET, new AsciiString("/wp-login.php?x")));
+        assertFalse(table.isKnownMiss(HttpMethod.POST, "/wp-login.php"));
+        assertEquals(0, table.getRejectedMisses());
+        assertNull(table.findRoute(HttpMethod.GET, "/wp-login.php"));
+        assertEquals(1, table.getRejectedMisses());
+
+        // Routes that match are never recorded.
+        table.findRoute(HttpMethod.GET, "/hello/bob");
+        assertFalse(table.isKnownMiss(HttpMethod.GET, "/hello/bob"));
+        assertTrue(table.isKnownMiss(HttpMethod.GET, "/wp-login.php"));
+
+        // A new route forgets them.
+        add(HttpMethod.GET, "/wp-login.php");
+        assertFalse(table.isKnownMiss(HttpMethod.GET, "/wp-login.php"));
+        assertRoute(HttpMethod.GET, "/wp-login.php", "/wp-login.php");
+    }
+
+    public void testRejectsInvalidRoutes() {
+        assertInvalid(HttpMethod.GET, "/hello");
+        assertInvalid(HttpMethod.GET, "/hello/:other");
+        assertInvalid(HttpMethod.GET, "/bad/*/more");
+        assertInvalid(HttpMethod.GET, "/bad:param");
+        assertInvalid(HttpMethod.GET, "no-slash");
+    }
+
+    private void add(final HttpMethod method, final String path) {
+        table.addRoute(new Route(method, path, NOOP));
+    }
+
+    private RouteMatch assertRoute(final HttpMethod method, final String expected, final String path) {
+        final RouteMatch match = table.findRoute(method, path);
+        assertNotNull("No route for " + path, match);
+        assertEquals(expected, match.getRoute().getPath());
+        assertTrue(match.getRoute().matches(method, path.substring(0, RouteTable.pathEnd(path))));
+        return match;
+    }
+
+    private void assertInvalid(final HttpMethod method, final String path) {
+        try {
+            add(method, path);
+            fail("Expected IllegalArgumentException for " + path);
+        } catch (final IllegalArgumentException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package nettyexample.server;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for the StaticFiles range and validator parsing.
+ */
+public class StaticFilesTest extends TestCase {
+
+    public void testParseRange() {
+        assertRange(0, 9, "bytes=0-9", 100);
+        assertRange(90, 99, "bytes=90-", 100);
+        assertRange(90, 99, "bytes=90-200", 100);
+        assertRange(95, 99, "bytes=-5", 100);
+        assertRange(0, 99, "bytes=-500", 100);
+        assertRange(3, 3, "Bytes=3-3", 100);
+
+        assertSame(StaticFiles.UNSATISFIABLE, StaticFiles.parseRange("bytes=100-", 100));
+        assertSame(StaticFiles.UNSATISFIABLE, StaticFiles.parseRange("bytes=-0", 100));
+
+        assertNull(StaticFiles.parseRange("bytes=0-1,5-6", 100));
+        assertNull(StaticFiles.parseRange("bytes=5-1", 100));
+        assertNull(StaticFiles.parseRange("bytes=abc", 100));
+        assertNull(StaticFiles.parseRange("items=0-1", 100));
+        assertNull(StaticFiles.parseRange("bytes=--1", 100));
+    }
+
+    public void testMatchesAny() {
+        assertTrue(StaticFiles.matchesAny("\"a\"", "\"a\""));
+        assertTrue(StaticFiles.matchesAny("\"x\", W/\"a\"", "\"a\""));
+        assertTrue(StaticFiles.matchesAny("*", "\"a\""));
+        assertFalse(StaticFiles.matchesAny("\"b\"", "\"a\""));
+    }
+
+    private static void assertRange(final long first, final long last, final String header, final long size) {
+        assertEquals(header, Arrays.toString(new long[] { first, last }),
+                Arrays.toString(StaticFiles.parseRange(header, size)));
+    }
+}
@@ -0,0 +1,586 @@
+package nettyexample.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.IntStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import junit.framework.TestCase;
+
+/**
+ * End-to-end tests that run raw HTTP requests through the WebServer pipeline.
+ */
+public class WebServerTest extends TestCase {
+    private static final String SIXTY_FOUR = new String(new char[64]).replace('\0', 'x');
+
+    public void testHandlerReturnValue() {
+        final WebServer server = new WebServer().get("/hello", (request, response) -> "Hello world");
+        final String response = exchange(server, "GET /hello HTTP/1.1\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(response, response.contains("content-type: text/plain; charset=UTF-8\r\n"));
+        assertTrue(response, response.contains("content-length: 11\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\nHello world"));
+    }
+
+    public void testResponseApi() {
+        final WebServer server = new WebServer().post("/items", (request, response) -> {
+            response.status(HttpResponseStatus.CREATED)
+                    .contentType(WebServer.TYPE_JSON)
+                    .header("x-item", "42")
+                    .write("{\"id\":")
+                    .write("42".getBytes(StandardCharsets.UTF_8))
+                    .write("}");
+            return null;
+        });
+        final String response = exchange(server, "POST /items HTTP/1.1\r\ncontent-length: 0\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 201 Created\r\n"));
+        assertTrue(response, response.contains("content-type: application/json; charset=UTF-8\r\n"));
+        assertTrue(response, response.contains("x-item: 42\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\n{\"id\":42}"));
+    }
+
+    public void testBinaryReturnTypes() {
+        final byte[] bytes = "bytes".getBytes(StandardCharsets.UTF_8);
+        final WebServer server = new WebServer()
+                .get("/array", (request, response) -> bytes)
+                .get("/nio", (request, response) -> ByteBuffer.wrap(bytes, 1, 3))
+                .get("/buf", (request, response) -> Unpooled.copiedBuffer("buf", StandardCharsets.UTF_8))
+                .get("/mixed", (request, response) -> {
+                    response.write("head-");
+                    return bytes;
+                })
+                .get("/utf8", (request, response) -> new StringBuilder("h\u00e9llo \u20ac"))
+                .get("/composite", (request, response) -> Unpooled.wrappedBuffer(
+                        Unpooled.copiedBuffer("com", StandardCharsets.UTF_8),
+                        Unpooled.copiedBuffer("posite", StandardCharsets.UTF_8)))
+                .get("/path", (request, response) -> Paths.get("a", "b"));
+
+        assertTrue(exchange(server, "GET /array HTTP/1.1\r\n\r\n").endsWith("\r\n\r\nbytes"));
+        assertTrue(exchange(server, "GET /nio HTTP/1.1\r\n\r\n").endsWith("\r\n\r\nyte"));
+        assertTrue(exchange(server, "GET /buf HTTP/1.1\r\n\r\n").endsWith("\r\n\r\nbuf"));
+        assertTrue(exchange(server, "GET /mixed HTTP/1.1\r\n\r\n").endsWith("\r\n\r\nhead-bytes"));
+
+        // Iterable bodies are still sent whole, not as lines.
+        final String composite = exchange(server, "GET /composite HTTP/1.1\r\n\r\n");
+        assertTrue(composite, composite.contains("content-length: 9\r\n"));
+        assertTrue(composite, composite.endsWith("\r\n\r\ncomposite"));
+        assertTrue(exchange(server, "GET /path HTTP/1.1\r\n\r\n").endsWith("\r\n\r\n" + Paths.get("a", "b")));
+
+        final String utf8 = exchange(server, "GET /utf8 HTTP/1.1\r\n\r\n");
+        assertTrue(utf8, utf8.contains("content-length: 10\r\n"));
+        assertTrue(utf8, utf8.endsWith("\r\n\r\nh\u00e9llo \u20ac"));
+    }
+
+    public void testConditionalGet() {
+        final WebServer server = new WebServer()
+                .get("/computed", new RouteOptions().etag(), (request, response) -> "same body")
+                .get("/versioned", (request, response) -> {
+                    response.etag("v7");
+                    response.lastModified(1000000000000L);
+                    response.header("cache-control", "max-age=60");
+                    return "versioned body";
+                });
+
+        final String full = exchange(server, "GET /computed HTTP/1.1\r\n\r\n");
+        final String etag = full.replaceAll("(?s).*\r\netag: (\"[^\"]+\")\r\n.*", "$1");
+        assertTrue(full, etag.startsWith("\"9-"));
+        assertEquals(full, exchange(server, "GET /computed HTTP/1.1\r\n\r\n"));
+
+        final String notModified = exchange(server, "GET /computed HTTP/1.1\r\nif-none-match: W/" + etag + "\r\n\r\n");
+        assertTrue(notModified, notModified.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertTrue(notModified, notModified.contains("etag: " + etag + "\r\n"));
+        assertTrue(notModified, notModified.endsWith("\r\n\r\n"));
+        assertTrue(exchange(server, "GET /computed HTTP/1.1\r\nif-none-match: \"other\"\r\n\r\n").endsWith("same body"));
+
+        final String versioned = exchange(server, "GET /versioned HTTP/1.1\r\nif-none-match: \"v6\", \"v7\"\r\n\r\n");
+        assertTrue(versioned, versioned.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertTrue(versioned, versioned.contains("cache-control: max-age=60\r\n"));
+        assertFalse(versioned, versioned.contains("content-length"));
+
+        final String since = "if-modified-since: " + HttpDate.format(1000000000000L) + "\r\n";
+        assertTrue(exchange(server, "GET /versioned HTTP/1.1\r\n" + since + "\r\n").startsWith("HTTP/1.1 304 "));
+        assertTrue(exchange(server, "GET /versioned HTTP/1.1\r\nif-modified-since: "
+                + HttpDate.format(999999999000L) + "\r\n\r\n").endsWith("versioned body"));
+        assertTrue(exchange(server, "POST /versioned HTTP/1.1\r\ncontent-length: 0\r\n" + since + "\r\n")
+                .startsWith("HTTP/1.1 404 "));
+    }
+
+    public void testConstantRoute() {
+        final StringBuilder content = new StringBuilder("{\"status\":\"up\"}");
+        final WebServer server = new WebServer().get("/health", Handler.constant(content, WebServer.TYPE_JSON));
+        content.setLength(0);
+
+        final String response = exchange(server, "GET /health HTTP/1.1\r\n\r\nGET /health?probe=1 HTTP/1.1\r\n\r\n");
+        final String[] parts = response.split("HTTP/1.1 ");
+        assertEquals(response, 3, parts.length);
+        assertTrue(parts[1], parts[1].startsWith("200 OK\r\n"));
+        assertTrue(parts[1], parts[1].contains("content-type: application/json; charset=UTF-8\r\n"));
+        assertTrue(parts[1], parts[1].endsWith("\r\n\r\n{\"status\":\"up\"}"));
+        assertEquals(parts[1], parts[2]);
+    }
+
+    public void testNotFoundAndError() {
+        final WebServer server = new WebServer().get("/boom", (request, response) -> {
+            response.write("partial");
+            throw new Exception("boom");
+        });
+        assertTrue(exchange(server, "GET /missing HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 404 Not Found\r\n"));
+
+        final String response = exchange(server, "GET /boom HTTP/1.1\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 500 Internal Server Error\r\n"));
+        assertFalse(response, response.contains("partial"));
+    }
+
+    public void testKnownMissSkipsRouter() {
+        final WebServer server = new WebServer()
+                .get("/users/:id", (request, response) -> "user " + request.param("id"))
+                .get("/hello", (request, response) -> "Hello world");
+        final RouteTable routes = server.getRouteTable();
+
+        assertTrue(exchange(server, "GET /wp-login.php HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertEquals(0, routes.getRejectedMisses());
+
+        // The repeated miss is rejected before the router walks its tree.
+        final String response = exchange(server, "GET /wp-login.php?x=1 HTTP/1.1\r\n\r\nGET /users/7 HTTP/1.1\r\n\r\n");
+        final String[] parts = response.split("HTTP/1.1 ");
+        assertEquals(response, 3, parts.length);
+        assertTrue(parts[1], parts[1].startsWith("404 Not Found\r\n"));
+        assertTrue(parts[2], parts[2].endsWith("\r\n\r\nuser 7"));
+        assertEquals(1, routes.getRejectedMisses());
+
+        // Methods without pattern routes remember their misses as well.
+        exchange(server, "DELETE /hello HTTP/1.1\r\n\r\n");
+        assertTrue(exchange(server, "DELETE /hello HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 404 "));
+        assertEquals(2, routes.getRejectedMisses());
+    }
+
+    public void testPreEncodedErrorsInterleaveWithResponses() {
+        final WebServer server = new WebServer().get("/hello", (request, response) -> "Hello world");
+        final String response = exchange(server,
+                "GET /missing HTTP/1.1\r\n\r\nGET /hello HTTP/1.1\r\n\r\nGET /missing HTTP/1.1\r\n\r\n");
+
+        final String[] parts = response.split("HTTP/1.1 ");
+        assertEquals(response, 4, parts.length);
+        assertTrue(parts[1], parts[1].startsWith("404 Not Found\r\nserver: Netty\r\n"));
+        assertTrue(parts[1], parts[1].matches("(?s).*\r\ndate: [A-Z][a-z]{2}, \\d{2} [A-Z][a-z]{2} \\d{4} [0-9:]{8} GMT\r\n.*"));
+        assertTrue(parts[1], parts[1].contains("content-length: 9\r\n"));
+        assertTrue(parts[1], parts[1].endsWith("\r\n\r\nNot Found"));
+        assertTrue(parts[2], parts[2].endsWith("\r\n\r\nHello world"));
+        assertEquals(parts[1], parts[3]);
+    }
+
+    public void testOffloadedResponsesKeepRequestOrder() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final WebServer server = new WebServer()
+                .get("/slow", new RouteOptions().execution(Execution.WORKER), (request, response) -> {
+                    assertFalse(Thread.currentThread().getName().startsWith("main"));
+                    release.await();
+                    return "slow " + request.queryParam("n");
+                })
+                .get("/fast", (request, response) -> "fast")
+                .get("/virtual", new RouteOptions().execution(Execution.VIRTUAL_THREAD), (request, response) -> "virtual");
+
+        final EmbeddedChannel channel = newChannel(server);
+        channel.writeInbound(Unpooled.copiedBuffer(
+                "GET /slow?n=1 HTTP/1.1\r\n\r\nGET /fast HTTP/1.1\r\n\r\nGET /virtual HTTP/1.1\r\n\r\n",
+                StandardCharsets.UTF_8));
+        channel.runPendingTasks();
+        assertEquals("", readOutbound(channel));
+
+        release.countDown();
+        final String response = awaitOutbound(channel, 3);
+        final String[] parts = response.split("HTTP/1.1 ");
+        assertEquals(response, 4, parts.length);
+        assertTrue(parts[1], parts[1].endsWith("\r\n\r\nslow 1"));
+        assertTrue(parts[2], parts[2].endsWith("\r\n\r\nfast"));
+        assertTrue(parts[3], parts[3].endsWith("\r\n\r\nvirtual"));
+    }
+
+    public void testRejectedOffloadAnswersServiceUnavailable() {
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        pool.shutdown();
+        final WebServer server = new WebServer()
+                .workerPool(pool)
+                .get("/slow", new RouteOptions().execution(Execution.WORKER), (request, response) -> "slow");
+
+        final String response = exchange(server, "GET /slow HTTP/1.1\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 503 Service Unavailable\r\n"));
+    }
+
+    public void testAsyncHandlers() throws Exception {
+        final CompletableFuture<String> later = new CompletableFuture<String>();
+        final WebServer server = new WebServer()
+                .getAsync("/later", (request, response) -> later.thenApply(value -> value + " " + request.queryParam("x")))
+                .getAsync("/now", (request, response) -> {
+                    response.contentType(WebServer.TYPE_JSON);
+                    return CompletableFuture.completedFuture("{}");
+                })
+                .postAsync("/fail", (request, response) -> {
+                    final CompletableFuture<Object> failed = new CompletableFuture<Object>();
+                    failed.completeExceptionally(new IllegalStateException("async boom"));
+                    return failed;
+                })
+                .get("/fast", (request, response) -> "fast");
+
+        final EmbeddedChannel channel = newChannel(server);
+        channel.writeInbound(Unpooled.copiedBuffer(
+                "GET /later?x=1 HTTP/1.1\r\n\r\nGET /fast HTTP/1.1\r\n\r\n"
+                        + "GET /now HTTP/1.1\r\n\r\nPOST /fail HTTP/1.1\r\ncontent-length: 0\r\n\r\n",
+                StandardCharsets.UTF_8));
+        channel.runPendingTasks();
+        assertEquals("", readOutbound(channel));
+
+        new Thread(() -> later.complete("done")).start();
+        final String response = awaitOutbound(channel, 4);
+        final String[] parts = response.split("HTTP/1.1 ");
+        assertEquals(response, 5, parts.length);
+        assertTrue(parts[1], parts[1].endsWith("\r\n\r\ndone 1"));
+        assertTrue(parts[2], parts[2].endsWith("\r\n\r\nfast"));
+        assertTrue(parts[3], parts[3].contains("content-type: application/json; charset=UTF-8\r\n"));
+        assertTrue(parts[3], parts[3].endsWith("\r\n\r\n{}"));
+        assertTrue(parts[4], parts[4].startsWith("500 Internal Server Error\r\n"));
+    }
+
+    public void testAsyncWithoutResponse() throws Exception {
+        final CompletableFuture<Object> later = new CompletableFuture<Object>();
+        final Object unprintable = new Object() {
+            @Override
+            public String toString() {
+                throw new AssertionError("render boom");
+            }
+        };
+        final WebServer server = new WebServer()
+                .getAsync("/null", (request, response) -> later.thenApply(value -> null))
+                .getAsync("/broken", (request, response) -> later.thenApply(value -> unprintable))
+                .get("/coalesced", new RouteOptions().coalesce(), (request, response) -> later.thenApply(value -> unprintable))
+                .get("/fast", (request, response) -> "fast");
+
+        final EmbeddedChannel channel = newChannel(server);
+        channel.writeInbound(Unpooled.copiedBuffer(
+                "GET /null HTTP/1.1\r\n\r\nGET /broken HTTP/1.1\r\n\r\n"
+                        + "GET /coalesced HTTP/1.1\r\n\r\nGET /fast HTTP/1.1\r\n\r\n",
+                StandardCharsets.UTF_8));
+        channel.runPendingTasks();
+        assertEquals("", readOutbound(channel));
+
+        new Thread(() -> later.complete("done")).start();
+        final String response = awaitOutbound(channel, 4);
+        final String[] parts = response.split("HTTP/1.1 ");
+        assertEquals(response, 5, parts.length);
+        assertTrue(parts[1], parts[1].startsWith("200 OK\r\n"));
+        assertTrue(parts[1], parts[1].contains("content-length: 0\r\n"));
+        assertTrue(parts[2], parts[2].startsWith("500 Internal Server Error\r\n"));
+        assertTrue(parts[3], parts[3].startsWith("500 Internal Server Error\r\n"));
+        assertTrue(parts[4], parts[4].endsWith("\r\n\r\nfast"));
+    }
+
+    public void testStreamingRequestBody() {
+        final List<String> chunks = new ArrayList<String>();
+        final WebServer server = new WebServer()
+                .postStreaming("/upload/:name", (request, response) -> {
+                    assertEquals("", request.body());
+                    final String name = request.param("name");
+                    return new StreamingHandler.BodyConsumer() {
+                        private int length;
+
+                        @Override
+                        public void content(final ByteBuf chunk) {
+                            chunks.add(chunk.toString(StandardCharsets.UTF_8));
+                            length += chunk.readableBytes();
+                        }
+
+                        @Override
+                        public Object complete() {
+                            return name + " " + length;
+                        }
+                    };
+                })
+                .post("/echo", (request, response) -> request.body());
+
+        final EmbeddedChannel channel = newChannel(server);
+        channel.writeInbound(Unpooled.copiedBuffer(
+                "POST /upload/a.txt HTTP/1.1\r\ntransfer-encoding: chunked\r\n\r\n"
+                        + "5\r\nhello\r\n",
+                StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("hello"), chunks);
+        assertEquals("", readOutbound(channel));
+
+        channel.writeInbound(Unpooled.copiedBuffer(
+                "6\r\n world\r\n0\r\n\r\n"
+                        + "POST /echo HTTP/1.1\r\ncontent-length: 4\r\n\r\nbody",
+                StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("hello", " world"), chunks);
+
+        final String[] parts = readOutbound(channel).split("HTTP/1.1 ");
+        assertEquals(3, parts.length);
+        assertTrue(parts[1], parts[1].endsWith("\r\n\r\na.txt 11"));
+        assertTrue(parts[2], parts[2].endsWith("\r\n\r\nbody"));
+    }
+
+    public void testStreamingConsumerFailure() {
+        final WebServer server = new WebServer().postStreaming("/upload", (request, response) -> new StreamingHandler.BodyConsumer() {
+            @Override
+            public void content(final ByteBuf chunk) throws Exception {
+                throw new Exception("disk full");
+            }
+
+            @Override
+            public Object complete() {
+                return "unreachable";
+            }
+        });
+
+        final String response = exchange(server, "POST /upload HTTP/1.1\r\ncontent-length: 3\r\n\r\nabcGET /upload HTTP/1.1\r\n\r\n");
+        final String[] parts = response.split("HTTP/1.1 ");
+        assertEquals(response, 3, parts.length);
+        assertTrue(parts[1], parts[1].startsWith("500 Internal Server Error\r\n"));
+        assertTrue(parts[2], parts[2].startsWith("404 Not Found\r\n"));
+    }
+
+    public void testChunkedResponseWaitsForWritability() {
+        final EmbeddedChannel[] channel = new EmbeddedChannel[1];
+        final boolean[] closed = new boolean[1];
+        final WebServer server = new WebServer()
+                .get("/export", (request, response) -> {
+                    response.contentType(WebServer.TYPE_JSON).write("[");
+                    return new ChunkedBody() {
+                        private int row;
+
+                        @Override
+                        public ByteBuf next(final ByteBufAllocator alloc) {
+                            assertTrue(channel[0].isWritable());
+                            if (row == 100) {
+                                return null;
+                            }
+                            final ByteBuf buf = alloc.buffer();
+                            ByteBufUtil.writeUtf8(buf, (row++ == 0 ? "" : ",") + "\"" + SIXTY_FOUR + "\"");
+                            return buf;
+                        }
+
+                        @Override
+                        public void close() {
+                            closed[0] = true;
+                        }
+                    };
+                })
+                .get("/after", (request, response) -> "after");
+
+        channel[0] = newChannel(server);
+        channel[0].config().setWriteBufferLowWaterMark(512);
+        channel[0].config().setWriteBufferHighWaterMark(1024);
+        channel[0].writeInbound(Unpooled.copiedBuffer(
+                "GET /export HTTP/1.1\r\n\r\nGET /after HTTP/1.1\r\n\r\n", StandardCharsets.UTF_8));
+
+        final String response = readOutbound(channel[0]);
+        assertTrue(closed[0]);
+
+        final String[] parts = response.split("HTTP/1.1 ");
+        assertEquals(response, 3, parts.length);
+        assertTrue(parts[1], parts[1].contains("transfer-encoding: chunked\r\n"));
+        assertFalse(parts[1], parts[1].contains("content-length"));
+        assertTrue(parts[1], parts[1].endsWith("\r\n0\r\n\r\n"));
+
+        final String body = parts[1].substring(parts[1].indexOf("\r\n\r\n") + 4).replaceAll("(?m)^[0-9a-f]+\r\n|\r\n", "");
+        assertTrue(body, body.startsWith("[\"" + SIXTY_FOUR + "\",\""));
+        assertEquals(1 + 100 * 66 + 99, body.length());
+        assertTrue(parts[2], parts[2].endsWith("\r\n\r\nafter"));
+    }
+
+    public void testElementResultsStreamAsLines() {
+        final boolean[] closed = new boolean[1];
+        final WebServer server = new WebServer()
+                .get("/stream", (request, response) -> IntStream.range(0, 3000)
+                        .mapToObj(i -> "{\"id\":" + i + "}")
+                        .onClose(() -> closed[0] = true))
+                .get("/list", (request, response) -> {
+                    response.contentType(WebServer.TYPE_PLAIN);
+                    return Arrays.asList("a", 1, "c".getBytes(StandardCharsets.UTF_8));
+                })
+                .get("/iterator", (request, response) -> Arrays.asList("x", "y").iterator());
+
+        final String stream = exchange(server, "GET /stream HTTP/1.1\r\n\r\n");
+        assertTrue(closed[0]);
+        assertTrue(stream, stream.contains("content-type: application/x-ndjson\r\n"));
+        assertTrue(stream, stream.contains("transfer-encoding: chunked\r\n"));
+        final String lines = dechunk(stream);
+        assertEquals(3000, lines.split("\n").length);
+        assertTrue(lines, lines.startsWith("{\"id\":0}\n{\"id\":1}\n"));
+        assertTrue(lines, lines.endsWith("\n{\"id\":2999}\n"));
+
+        final String list = exchange(server, "GET /list HTTP/1.1\r\n\r\n");
+        assertTrue(list, list.contains("content-type: text/plain; charset=UTF-8\r\n"));
+        assertEquals("a\n1\nc\n", dechunk(list));
+
+        assertEquals("x\ny\n", dechunk(exchange(server, "GET /iterator HTTP/1.1\r\n\r\n")));
+    }
+
+    /**
+     * Returns the body of a single raw chunked response.
+     */
+    static String dechunk(final String response) {
+        final StringBuilder sb = new StringBuilder();
+        int pos = response.indexOf("\r\n\r\n") + 4;
+        while (true) {
+            final int lineEnd = response.indexOf("\r\n", pos);
+            final int size = Integer.parseInt(response.substring(pos, lineEnd), 16);
+            if (size == 0) {
+                return sb.toString();
+            }
+            sb.append(response, lineEnd + 2, lineEnd + 2 + size);
+            pos = lineEnd + 2 + size + 2;
+        }
+    }
+
+    public void testStaticFiles() throws Exception {
+        final Path root = Files.createTempDirectory("static");
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Files.write(root.resolve("app.js"), "0123456789".getBytes(StandardCharsets.UTF_8));
+            Files.write(root.resolve("index.html"), "<p>home</p>".getBytes(StandardCharsets.UTF_8));
+            Files.write(root.resolve("a+b.css"), "p{}".getBytes(StandardCharsets.UTF_8));
+            final WebServer server = new WebServer()
+                    .files("/static", root)
+                    .get("/copy/*file", new StaticFiles(root).zeroCopy(false).cache(0))
+                    .get("/offload/*file", new StaticFiles(root).executor(executor).cache(0));
+
+            final String full = exchange(server, "GET /static/app.js HTTP/1.1\r\n\r\n");
+            assertTrue(full, full.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(full, full.contains("content-type: application/javascript; charset=UTF-8\r\n"));
+            assertTrue(full, full.contains("content-length: 10\r\n"));
+            assertTrue(full, full.contains("accept-ranges: bytes\r\n"));
+            assertTrue(full, full.contains("last-modified: "));
+            assertTrue(full, full.endsWith("\r\n\r\n0123456789"));
+
+            final String etag = full.replaceAll("(?s).*\r\netag: (\"[^\"]+\")\r\n.*", "$1");
+            final String notModified = exchange(server, "GET /static/app.js HTTP/1.1\r\nif-none-match: " + etag + "\r\n\r\n");
+            assertTrue(notModified, notModified.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+            assertFalse(notModified, notModified.contains("content-length"));
+            assertTrue(notModified, notModified.endsWith("\r\n\r\n"));
+
+            final String range = exchange(server, "GET /static/app.js HTTP/1.1\r\nrange: bytes=2-4\r\n\r\n");
+            assertTrue(range, range.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+            assertTrue(range, range.contains("content-range: bytes 2-4/10\r\n"));
+            assertTrue(range, range.endsWith("\r\n\r\n234"));
+
+            final String staleRange = exchange(server, "GET /static/app.js HTTP/1.1\r\nrange: bytes=2-4\r\nif-range: \"old\"\r\n\r\n");
+            assertTrue(staleRange, staleRange.endsWith("\r\n\r\n0123456789"));
+
+            final String unsatisfiable = exchange(server, "GET /static/app.js HTTP/1.1\r\nrange: bytes=10-\r\n\r\n");
+            assertTrue(unsatisfiable, unsatisfiable.startsWith("HTTP/1.1 416 Requested Range Not Satisfiable\r\n"));
+            assertTrue(unsatisfiable, unsatisfiable.contains("content-range: bytes */10\r\n"));
+
+            assertTrue(exchange(server, "GET /static/ HTTP/1.1\r\n\r\n").endsWith("\r\n\r\n<p>home</p>"));
+            assertTrue(exchange(server, "GET /static/../secret HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 404 "));
+            assertTrue(exchange(server, "GET /static/%2e%2e/secret HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 404 "));
+            assertTrue(exchange(server, "GET /static/missing.js HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 404 "));
+            assertTrue(exchange(server, "GET /static/a+b.css HTTP/1.1\r\n\r\n").endsWith("\r\n\r\np{}"));
+            assertTrue(exchange(server, "GET /static/a%2Bb.css HTTP/1.1\r\n\r\n").endsWith("\r\n\r\np{}"));
+
+            final EmbeddedChannel channel = newChannel(server);
+            channel.writeInbound(Unpooled.copiedBuffer(
+                    "GET /offload/ HTTP/1.1\r\n\r\nGET /offload/missing.js HTTP/1.1\r\n\r\n",
+                    StandardCharsets.UTF_8));
+            final String offloaded = awaitOutbound(channel, 2);
+            assertTrue(offloaded, offloaded.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(offloaded, offloaded.contains("<p>home</p>HTTP/1.1 404 "));
+
+            final String copy = exchange(server, "GET /copy/app.js HTTP/1.1\r\nrange: bytes=-3\r\n\r\n");
+            assertTrue(copy, copy.contains("transfer-encoding: chunked\r\n"));
+            assertEquals("789", dechunk(copy));
+        } finally {
+            executor.shutdown();
+            for (final String name : new String[] { "app.js", "index.html", "a+b.css" }) {
+                Files.deleteIfExists(root.resolve(name));
+            }
+            Files.delete(root);
+        }
+    }
+
+    /**
+     * Runs the channel's tasks until the expected number of responses have
+     * been written by offloaded handlers.
+     */
+    static String awaitOutbound(final EmbeddedChannel channel, final int responses) throws InterruptedException {
+        final StringBuilder sb = new StringBuilder();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (sb.toString().split("HTTP/1.1 ").length <= responses && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            channel.runPendingTasks();
+            sb.append(readOutbound(channel));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes a raw request into a new channel and returns the raw response.
+     */
+    static String exchange(final WebServer server, final String request) {
+        final EmbeddedChannel channel = newChannel(server);
+        channel.writeInbound(Unpooled.copiedBuffer(request, StandardCharsets.UTF_8));
+        channel.runPendingTasks();
+        return readOutbound(channel);
+    }
+
+    /**
+     * Creates a channel with the server's pipeline installed.
+     */
+    static EmbeddedChannel newChannel(final WebServer server) {
+        return new EmbeddedChannel(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(final Channel ch) {
+                server.initPipeline(ch.pipeline());
+            }
+        });
+    }
+
+    /**
+     * Drains and decodes all outbound buffers of a channel.
+     */
+    static String readOutbound(final EmbeddedChannel channel) {
+        final StringBuilder sb = new StringBuilder();
+        for (Object msg = channel.readOutbound(); msg != null; msg = channel.readOutbound()) {
+            if (msg instanceof FileRegion) {
+                final FileRegion region = (FileRegion) msg;
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    final WritableByteChannel target = Channels.newChannel(out);
+                    for (long position = 0; position < region.count(); ) {
+                        position += region.transferTo(target, position);
+                    }
+                } catch (final IOException ex) {
+                    throw new AssertionError(ex);
+                } finally {
+                    region.release();
+                }
+                sb.append(new String(out.toByteArray(), StandardCharsets.UTF_8));
+                continue;
+            }
+            final ByteBuf buf = (ByteBuf) msg;
+            sb.append(buf.toString(StandardCharsets.UTF_8));
+            buf.release();
+        }
+        return sb.toString();
+    }
+}